@@ -55,6 +55,21 @@ public final class Client implements LifeCycle {
         logger.debug("Client closed");
     }
 
+    // wait up to drainTimeoutMillis for established connections to finish, shutdown() does not wait
+    public synchronized void shutdown(final long drainTimeoutMillis) {
+        if (state != State.RUNNING) throw new ClientStateException();
+        state = State.STOPPING;
+
+        cube.shutdown(drainTimeoutMillis);
+
+        state = State.STOPPED;
+        logger.debug("Client closed");
+    }
+
+    public Cube getCube() {
+        return cube;
+    }
+
     private void checkConfig(final ClientConfig clientConfig) throws ClientInitException {
         if (clientConfig == null) throw new ClientInitException("config can not be null");
     }
@@ -1,6 +1,7 @@
 package github.yukinomiu.directsocks.client.core;
 
 import github.yukinomiu.directsocks.client.exception.ClientRuntimeException;
+import github.yukinomiu.directsocks.common.crypto.Crypto;
 import github.yukinomiu.directsocks.common.cube.CubeContext;
 import github.yukinomiu.directsocks.common.cube.api.CloseableAttachment;
 import org.slf4j.Logger;
@@ -17,6 +18,7 @@ public final class ClientContext implements CloseableAttachment {
     private final CloseableAttachment currentChannelContext;
 
     private CubeContext associatedCubeContext;
+    private Crypto crypto;
 
     private boolean closeFlag = false;
 
@@ -74,4 +76,12 @@ public final class ClientContext implements CloseableAttachment {
     public void setAssociatedCubeContext(CubeContext associatedCubeContext) {
         this.associatedCubeContext = associatedCubeContext;
     }
+
+    public Crypto getCrypto() {
+        return crypto;
+    }
+
+    public void setCrypto(Crypto crypto) {
+        this.crypto = crypto;
+    }
 }
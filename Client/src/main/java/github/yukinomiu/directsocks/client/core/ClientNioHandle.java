@@ -276,8 +276,8 @@ public final class ClientNioHandle implements NioHandle {
             return;
         }
 
-        byte addressType = readBuffer.get();
-        byte[] address;
+        final byte addressType = readBuffer.get();
+        final byte[] address;
         final byte[] port;
 
         if (addressType == SocksAddressType.IPV4) {
@@ -338,28 +338,6 @@ public final class ClientNioHandle implements NioHandle {
             return;
         }
 
-        // local DNS resolve
-        if (clientConfig.getLocalDnsResolve() && addressType == SocksAddressType.DOMAIN_NAME) {
-            String targetHost = new String(address, StandardCharsets.US_ASCII);
-            try {
-                InetAddress targetAddress = InetAddress.getByName(targetHost); // resolve
-
-                if (targetAddress instanceof Inet4Address) {
-                    addressType = SocksAddressType.IPV4;
-                    address = targetAddress.getAddress();
-
-                } else if (targetAddress instanceof Inet6Address) {
-                    addressType = SocksAddressType.IPV6;
-                    address = targetAddress.getAddress();
-
-                } else {
-                    throw new ClientRuntimeException("resolved address type not supported");
-                }
-            } catch (UnknownHostException e) {
-                logger.warn("resolving host name fail, host name: {}", targetHost);
-            }
-        }
-
         // set context
         localRoleContext.setCommand(command);
         localRoleContext.setAddressType(addressType);
@@ -377,7 +355,32 @@ public final class ClientNioHandle implements NioHandle {
             return;
         }
 
-        // connect server
+        // local DNS resolve, the switcher keeps serving other channels until the result is back
+        if (clientConfig.getLocalDnsResolve() && addressType == SocksAddressType.DOMAIN_NAME) {
+            final String targetHost = new String(address, StandardCharsets.US_ASCII);
+            cubeContext.resolve(targetHost, (addresses, dnsException) -> {
+                if (dnsException != null) {
+                    // let the server try
+                    logger.warn("resolving host name fail, host name: {}, {}", targetHost, dnsException.getMessage());
+                } else {
+                    final InetAddress targetAddress = addresses[0];
+                    if (targetAddress instanceof Inet4Address) {
+                        localRoleContext.setAddressType(SocksAddressType.IPV4);
+                    } else {
+                        localRoleContext.setAddressType(SocksAddressType.IPV6);
+                    }
+                    localRoleContext.setAddress(targetAddress.getAddress());
+                }
+
+                connectServer(cubeContext, clientContext);
+            });
+            return;
+        }
+
+        connectServer(cubeContext, clientContext);
+    }
+
+    private void connectServer(final CubeContext cubeContext, final ClientContext clientContext) {
         InetAddress serverAddress = clientConfig.getServerAddress();
         Integer serverPort = clientConfig.getServerPort();
         SocketAddress serverSocketAddress = new InetSocketAddress(serverAddress, serverPort);
@@ -403,6 +406,10 @@ public final class ClientNioHandle implements NioHandle {
         // associate
         clientContext.setAssociatedCubeContext(serverCubeContext);
         serverClientContext.setAssociatedCubeContext(cubeContext);
+
+        final Crypto crypto = clientConfig.getCrypto().newSession();
+        clientContext.setCrypto(crypto);
+        serverClientContext.setCrypto(crypto);
     }
 
     private void handleLocalDirectSocksRead(final CubeContext cubeContext,
@@ -410,10 +417,15 @@ public final class ClientNioHandle implements NioHandle {
                                             final LocalRoleContext localRoleContext) {
 
         final CubeContext serverCubeContext = clientContext.getAssociatedCubeContext();
-        final Crypto crypto = clientConfig.getCrypto();
+        final Crypto crypto = clientContext.getCrypto();
+
+        // nothing to transform, hand the read buffer over
+        if (crypto.isIdentity() && serverCubeContext.relayReadBuffer(cubeContext)) {
+            return;
+        }
 
         final ByteBuffer readBuffer = cubeContext.getReadBuffer();
-        final ByteBuffer writeBuffer = serverCubeContext.readyWrite();
+        final ByteBuffer writeBuffer = serverCubeContext.readyWrite(readBuffer.remaining() + crypto.getMaxPadding());
 
         // encrypt and exchange
         try {
@@ -425,8 +437,7 @@ public final class ClientNioHandle implements NioHandle {
             return;
         }
 
-        serverCubeContext.readAfterWrite();
-        serverCubeContext.setAfterWriteCallback(arg -> cubeContext.readyRead(), null);
+        serverCubeContext.relayWrite(cubeContext);
     }
 
     private void handleServerDirectSocksRead(final CubeContext cubeContext,
@@ -434,16 +445,23 @@ public final class ClientNioHandle implements NioHandle {
                                              final ServerRoleContext serverRoleContext) {
 
         final CubeContext localCubeContext = clientContext.getAssociatedCubeContext();
-        final Crypto crypto = clientConfig.getCrypto();
+        final Crypto crypto = clientContext.getCrypto();
+
+        // nothing to transform, hand the read buffer over
+        if (crypto.isIdentity() && localCubeContext.relayReadBuffer(cubeContext)) {
+            return;
+        }
 
         final ByteBuffer readBuffer = cubeContext.getReadBuffer();
-        final ByteBuffer writeBuffer = localCubeContext.readyWrite();
         final ByteBuffer frameBuffer = cubeContext.getFrameBuffer();
 
-        // decrypt and exchange
-        boolean process;
+        // decrypt and exchange, a read may carry more frames than one write buffer holds
+        boolean process = false;
         try {
-            process = crypto.decrypt(frameBuffer, readBuffer, writeBuffer);
+            do {
+                final ByteBuffer writeBuffer = localCubeContext.readyWrite(frameBuffer.capacity());
+                process |= crypto.decrypt(frameBuffer, readBuffer, writeBuffer);
+            } while (readBuffer.hasRemaining());
         } catch (Exception e) {
             logger.warn("client decrypt exception: {}", e.getMessage());
             cubeContext.close();
@@ -452,8 +470,7 @@ public final class ClientNioHandle implements NioHandle {
         }
 
         if (process) {
-            localCubeContext.readAfterWrite();
-            localCubeContext.setAfterWriteCallback(arg -> cubeContext.readyRead(), null);
+            localCubeContext.relayWrite(cubeContext);
         } else {
             localCubeContext.cancelReadyWrite();
             cubeContext.readyRead();
@@ -558,12 +575,14 @@ public final class ClientNioHandle implements NioHandle {
                 writeBuffer.put(address);
                 writeBuffer.put(port);
                 localCubeContext.readAfterWrite();
+                cubeContext.readyRead(); // server relays target data from now on
 
                 // change state
                 serverRoleContext.setServerState(ServerState.DIRECT_SOCKS);
                 ClientContext localClientContext = (ClientContext) localCubeContext.attachment();
                 LocalRoleContext localRoleContext = (LocalRoleContext) localClientContext.getCurrentChannelContext();
                 localRoleContext.setLocalState(LocalState.DIRECT_SOCKS);
+                localCubeContext.finishHandshake();
                 return;
             }
 
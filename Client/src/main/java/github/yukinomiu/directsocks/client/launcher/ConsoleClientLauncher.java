@@ -6,7 +6,16 @@ import github.yukinomiu.directsocks.client.exception.ClientInitException;
 import github.yukinomiu.directsocks.common.auth.CachedMD5TokenGenerator;
 import github.yukinomiu.directsocks.common.auth.TokenGenerator;
 import github.yukinomiu.directsocks.common.crypto.Crypto;
+import github.yukinomiu.directsocks.common.crypto.EmptyCrypto;
 import github.yukinomiu.directsocks.common.crypto.RC4CRC32Crypto;
+import github.yukinomiu.directsocks.common.cube.Switcher;
+import github.yukinomiu.directsocks.common.cube.Transports;
+import github.yukinomiu.directsocks.common.cube.api.TransportProvider;
+import github.yukinomiu.directsocks.common.cube.cachepool.ByteBufferCachePool;
+import github.yukinomiu.directsocks.common.cube.dns.DnsCache;
+import github.yukinomiu.directsocks.common.cube.dns.SystemDnsConfig;
+import github.yukinomiu.directsocks.common.cube.exception.CubeInitException;
+import github.yukinomiu.directsocks.common.cube.placement.Placements;
 import github.yukinomiu.directsocks.common.exception.DirectSocksConfigException;
 import github.yukinomiu.directsocks.common.util.PropertiesUtil;
 import org.slf4j.Logger;
@@ -14,7 +23,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -64,6 +76,7 @@ public final class ConsoleClientLauncher {
              BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
 
             String line;
+            long drainTimeout = clientConfig.getDrainTimeout();
 
             control:
             while ((line = bufferedReader.readLine()) != null) {
@@ -74,15 +87,48 @@ public final class ConsoleClientLauncher {
 
                 switch (command) {
                     case "q":
+                        if (commands.length > 1 && "now".equals(commands[1])) {
+                            drainTimeout = 0;
+                        }
                         logger.info("client will quit");
                         break control;
 
+                    case "pool":
+                        for (ByteBufferCachePool pool : client.getCube().getBufferPools()) {
+                            logger.info("{}", pool);
+                        }
+                        break;
+
+                    case "worker":
+                        if (commands.length > 1 && "add".equals(commands[1])) {
+                            try {
+                                client.getCube().addSwitcher();
+                                logger.info("worker added");
+                            } catch (CubeInitException e) {
+                                logger.error("add worker exception: {}", e.getMessage());
+                            }
+                        } else if (commands.length > 1 && "retire".equals(commands[1])) {
+                            if (client.getCube().retireSwitcher()) {
+                                logger.info("worker retiring, it stops after its connections are closed");
+                            } else {
+                                logger.info("the last worker can not be retired");
+                            }
+                        } else {
+                            for (Switcher switcher : client.getCube().getSwitchers()) {
+                                logger.info("{}", switcher);
+                            }
+                            for (Switcher switcher : client.getCube().getRetiringSwitchers()) {
+                                logger.info("{}", switcher);
+                            }
+                        }
+                        break;
+
                     default:
                         logger.info("unknown command '{}'", line);
                 }
             }
 
-            client.shutdown();
+            client.shutdown(drainTimeout);
             logger.info("client closed");
         } catch (IOException e) {
             logger.error("IO exception: {}", e.getMessage());
@@ -119,18 +165,45 @@ public final class ConsoleClientLauncher {
         final String secret;
         final Crypto crypto;
 
+        final String engine;
         final String bindAddressName;
         final int bindPort;
         final int backlog;
+        final boolean reusePort;
         final int workerCount;
+        final String placementPolicyName;
+        final int drainTimeout;
         final boolean tcpNoDelay;
         final boolean tcpKeepAlive;
+        final int maxReadsPerEvent;
+        final int maxReadBytesPerEvent;
+        final boolean optimizeSelectedKeys;
+        final boolean eagerFlush;
         final int readBufferSize;
         final int readPoolSize;
         final int writeBufferSize;
         final int writePoolSize;
         final int frameBufferSize;
         final int framePoolSize;
+        final boolean directReadBuffer;
+        final boolean directWriteBuffer;
+        final boolean directFrameBuffer;
+        final String bufferPoolType;
+        final int bufferPoolIdleTimeout;
+        final boolean bufferPoolAutoTune;
+        final int bufferLeakSampleInterval;
+        final int writeHighWatermark;
+        final int writeLowWatermark;
+        final int handshakeTimeout;
+        final int connectTimeout;
+        final int idleTimeout;
+        final int writeStallTimeout;
+        final int hibernateTimeout;
+        final String dnsServersName;
+        final int dnsTimeout;
+        final int dnsCacheSize;
+        final int dnsCacheMaxTtl;
+        final int dnsNegativeTtl;
 
         localDnsResolve = PropertiesUtil.getBoolean(properties, "localDnsResolve");
         serverAddressName = PropertiesUtil.getString(properties, "serverAddressName");
@@ -138,23 +211,64 @@ public final class ConsoleClientLauncher {
         tokenGenerator = new CachedMD5TokenGenerator();
         key = PropertiesUtil.getString(properties, "key");
         secret = PropertiesUtil.getString(properties, "secret");
-        crypto = new RC4CRC32Crypto(secret);
+        switch (PropertiesUtil.getString(properties, "crypto", "rc4")) {
+            case "rc4":
+                crypto = new RC4CRC32Crypto(secret);
+                break;
 
+            case "none":
+                crypto = new EmptyCrypto();
+                break;
+
+            default:
+                throw new DirectSocksConfigException("crypto not supported, use 'rc4' or 'none'");
+        }
+
+        engine = PropertiesUtil.getString(properties, "engine", "selector");
         bindAddressName = PropertiesUtil.getString(properties, "bindAddressName");
         bindPort = PropertiesUtil.getInt(properties, "bindPort");
         backlog = PropertiesUtil.getInt(properties, "backlog");
-        workerCount = PropertiesUtil.getInt(properties, "workerCount");
+        reusePort = PropertiesUtil.getBoolean(properties, "reusePort", false);
+        workerCount = "auto".equals(PropertiesUtil.getString(properties, "workerCount"))
+                ? Runtime.getRuntime().availableProcessors()
+                : PropertiesUtil.getInt(properties, "workerCount");
+        placementPolicyName = PropertiesUtil.getString(properties, "placementPolicy", "roundRobin");
+        drainTimeout = PropertiesUtil.getInt(properties, "drainTimeout", 30000);
         tcpNoDelay = PropertiesUtil.getBoolean(properties, "tcpNoDelay");
         tcpKeepAlive = PropertiesUtil.getBoolean(properties, "tcpKeepAlive");
         int bufferSize = PropertiesUtil.getInt(properties, "bufferSize");
-        int poolSize = PropertiesUtil.getInt(properties, "poolSize");
+        bufferPoolAutoTune = "auto".equals(PropertiesUtil.getString(properties, "poolSize"));
+        // an auto tuned pool keeps what the peak concurrency needs, this only bounds it
+        int poolSize = bufferPoolAutoTune ? 65536 : PropertiesUtil.getInt(properties, "poolSize");
+        maxReadsPerEvent = PropertiesUtil.getInt(properties, "maxReadsPerEvent", 16);
+        maxReadBytesPerEvent = PropertiesUtil.getInt(properties, "maxReadBytesPerEvent", 16 * bufferSize);
+        optimizeSelectedKeys = PropertiesUtil.getBoolean(properties, "optimizeSelectedKeys", false);
+        eagerFlush = PropertiesUtil.getBoolean(properties, "eagerFlush", false);
 
         readBufferSize = bufferSize;
         readPoolSize = poolSize;
-        writeBufferSize = 2 * readBufferSize - 1;
-        writePoolSize = poolSize;
         frameBufferSize = bufferSize + crypto.getMaxPadding();
+        writeBufferSize = frameBufferSize;
+        writePoolSize = poolSize;
         framePoolSize = poolSize;
+        directReadBuffer = PropertiesUtil.getBoolean(properties, "directReadBuffer", false);
+        directWriteBuffer = PropertiesUtil.getBoolean(properties, "directWriteBuffer", false);
+        directFrameBuffer = PropertiesUtil.getBoolean(properties, "directFrameBuffer", false);
+        bufferPoolType = PropertiesUtil.getString(properties, "bufferPool", "simple");
+        bufferPoolIdleTimeout = PropertiesUtil.getInt(properties, "poolIdleTimeout", 60000);
+        bufferLeakSampleInterval = PropertiesUtil.getInt(properties, "leakSampleInterval", 0);
+        writeHighWatermark = PropertiesUtil.getInt(properties, "writeHighWatermark", 8 * bufferSize);
+        writeLowWatermark = PropertiesUtil.getInt(properties, "writeLowWatermark", 2 * bufferSize);
+        handshakeTimeout = PropertiesUtil.getInt(properties, "handshakeTimeout", 30000);
+        connectTimeout = PropertiesUtil.getInt(properties, "connectTimeout", 10000);
+        idleTimeout = PropertiesUtil.getInt(properties, "idleTimeout", 0);
+        writeStallTimeout = PropertiesUtil.getInt(properties, "writeStallTimeout", 0);
+        hibernateTimeout = PropertiesUtil.getInt(properties, "hibernateTimeout", 10000);
+        dnsServersName = PropertiesUtil.getString(properties, "dnsServers", null);
+        dnsTimeout = PropertiesUtil.getInt(properties, "dnsTimeout", 3000);
+        dnsCacheSize = PropertiesUtil.getInt(properties, "dnsCacheSize", 1024);
+        dnsCacheMaxTtl = PropertiesUtil.getInt(properties, "dnsCacheMaxTtl", 3600);
+        dnsNegativeTtl = PropertiesUtil.getInt(properties, "dnsNegativeTtl", 30);
 
         // init ClientConfig
         ClientConfig config = new ClientConfig();
@@ -167,6 +281,24 @@ public final class ConsoleClientLauncher {
             throw new DirectSocksConfigException("resolving host address exception");
         }
 
+        final TransportProvider transportProvider = Transports.byName(engine);
+
+        // with remote resolution the server resolves every host, no nameserver is ever asked here
+        List<InetSocketAddress> dnsServers = Collections.emptyList();
+        if (localDnsResolve) {
+            try {
+                dnsServers = dnsServersName == null
+                        ? SystemDnsConfig.nameservers()
+                        : SystemDnsConfig.parseNameservers(dnsServersName);
+            } catch (UnknownHostException | NumberFormatException e) {
+                throw new DirectSocksConfigException("illegal DNS servers: " + e.getMessage(), e);
+            }
+            if (dnsServers.isEmpty() && transportProvider == Transports.SELECTOR) {
+                // e.g. no resolv.conf, the other engines always use the system resolver
+                logger.info("no DNS server configured and none found in system config, the system resolver is used");
+            }
+        }
+
         config.setLocalDnsResolve(localDnsResolve);
         config.setServerAddress(serverAddress);
         config.setServerPort(serverPort);
@@ -175,18 +307,45 @@ public final class ConsoleClientLauncher {
         config.setSecret(secret);
         config.setCrypto(crypto);
 
+        config.setTransportProvider(transportProvider);
         config.setBindAddress(bindAddress);
         config.setBindPort(bindPort);
         config.setBacklog(backlog);
+        config.setReusePort(reusePort);
         config.setWorkerCount(workerCount);
+        config.setPlacementPolicy(Placements.byName(placementPolicyName));
+        config.setDrainTimeout(drainTimeout);
         config.setTcpNoDelay(tcpNoDelay);
         config.setTcpKeepAlive(tcpKeepAlive);
+        config.setMaxReadsPerEvent(maxReadsPerEvent);
+        config.setMaxReadBytesPerEvent(maxReadBytesPerEvent);
+        config.setOptimizeSelectedKeys(optimizeSelectedKeys);
+        config.setEagerFlush(eagerFlush);
         config.setReadBufferSize(readBufferSize);
         config.setReadPoolSize(readPoolSize);
         config.setWriteBufferSize(writeBufferSize);
         config.setWritePoolSize(writePoolSize);
         config.setFrameBufferSize(frameBufferSize);
         config.setFramePoolSize(framePoolSize);
+        config.setDirectReadBuffer(directReadBuffer);
+        config.setDirectWriteBuffer(directWriteBuffer);
+        config.setDirectFrameBuffer(directFrameBuffer);
+        config.setBufferPoolType(bufferPoolType);
+        config.setBufferPoolIdleTimeout(bufferPoolIdleTimeout);
+        config.setBufferPoolAutoTune(bufferPoolAutoTune);
+        config.setBufferLeakSampleInterval(bufferLeakSampleInterval);
+        config.setWriteHighWatermark(writeHighWatermark);
+        config.setWriteLowWatermark(writeLowWatermark);
+        config.setHandshakeTimeout(handshakeTimeout);
+        config.setConnectTimeout(connectTimeout);
+        config.setIdleTimeout(idleTimeout);
+        config.setWriteStallTimeout(writeStallTimeout);
+        config.setHibernateTimeout(hibernateTimeout);
+        config.setDnsServers(dnsServers);
+        config.setDnsTimeout(dnsTimeout);
+        if (dnsCacheSize > 0) {
+            config.setDnsCache(new DnsCache(dnsCacheSize, dnsCacheMaxTtl, dnsNegativeTtl));
+        }
 
         return config;
     }
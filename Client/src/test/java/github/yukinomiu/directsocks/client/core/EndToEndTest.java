@@ -0,0 +1,453 @@
+package github.yukinomiu.directsocks.client.core;
+
+import github.yukinomiu.directsocks.common.auth.CachedMD5TokenGenerator;
+import github.yukinomiu.directsocks.common.auth.DefaultTokenVerifier;
+import github.yukinomiu.directsocks.common.auth.TokenGenerator;
+import github.yukinomiu.directsocks.common.auth.TokenVerifier;
+import github.yukinomiu.directsocks.common.crypto.Crypto;
+import github.yukinomiu.directsocks.common.crypto.EmptyCrypto;
+import github.yukinomiu.directsocks.common.crypto.RC4CRC32Crypto;
+import github.yukinomiu.directsocks.common.cube.Cube;
+import github.yukinomiu.directsocks.common.cube.CubeConfig;
+import github.yukinomiu.directsocks.common.cube.Transports;
+import github.yukinomiu.directsocks.common.cube.cachepool.ByteBufferCachePool;
+import github.yukinomiu.directsocks.common.cube.cachepool.LeakDetectingByteBufferCachePool;
+import github.yukinomiu.directsocks.common.cube.placement.Placements;
+import github.yukinomiu.directsocks.server.core.Server;
+import github.yukinomiu.directsocks.server.core.ServerConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+// SOCKS5 through a client and a server on 127.0.0.1 to an echo target, on every engine with eager flush on and off
+@RunWith(Parameterized.class)
+public class EndToEndTest {
+    private static final int BUFFER_SIZE = 4096;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 300;
+    private static final int HIBERNATE_TIMEOUT_MILLIS = 200;
+    private static final String KEY = "e2e key";
+    private static final String SECRET = "e2e secret";
+
+    @Parameterized.Parameters(name = "{0} eagerFlush={1} crypto={2}")
+    public static List<Object[]> parameters() {
+        final List<Object[]> parameters = new ArrayList<>();
+        for (String engine : new String[]{"selector", "blocking", "async"}) {
+            for (boolean eagerFlush : new boolean[]{true, false}) {
+                for (String crypto : new String[]{"rc4", "none"}) {
+                    parameters.add(new Object[]{engine, eagerFlush, crypto});
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private final String engine;
+    private final boolean eagerFlush;
+    private final String crypto;
+
+    private EchoTarget echoTarget;
+    private Server server;
+    private Client client;
+    private InetSocketAddress serverAddress;
+    private InetSocketAddress clientAddress;
+
+    public EndToEndTest(final String engine, final boolean eagerFlush, final String crypto) {
+        this.engine = engine;
+        this.eagerFlush = eagerFlush;
+        this.crypto = crypto;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        echoTarget = new EchoTarget();
+
+        final ServerConfig serverConfig = serverConfig();
+        server = new Server(serverConfig);
+        server.start();
+        serverAddress = new InetSocketAddress(serverConfig.getBindAddress(), serverConfig.getBindPort());
+
+        final ClientConfig clientConfig = clientConfig(serverConfig.getBindPort());
+        client = new Client(clientConfig);
+        client.start();
+        clientAddress = new InetSocketAddress(clientConfig.getBindAddress(), clientConfig.getBindPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) client.shutdown(0);
+        if (server != null) server.shutdown(0);
+        echoTarget.close();
+    }
+
+    @Test
+    public void relaysBothWays() throws Exception {
+        try (Socket socket = socks(ipv4Request(echoTarget.getAddress().getPort()))) {
+            roundTrip(socket, 1);
+            roundTrip(socket, BUFFER_SIZE);
+            // far above the write watermarks, reads pause and resume on both hops
+            roundTrip(socket, 4 * 1024 * 1024);
+        }
+    }
+
+    @Test
+    public void connectsByDomainName() throws Exception {
+        // resolved by the server, a literal never reaches a DNS server
+        try (Socket socket = socks(domainRequest("127.0.0.1", echoTarget.getAddress().getPort()))) {
+            roundTrip(socket, 64 * 1024);
+        }
+    }
+
+    @Test
+    public void relaysConcurrentConnections() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                futures.add(executor.submit(() -> {
+                    try (Socket socket = socks(ipv4Request(echoTarget.getAddress().getPort()))) {
+                        for (int j = 0; j < 8; j++) {
+                            roundTrip(socket, 64 * 1024);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void unreachableTargetIsReported() throws Exception {
+        final int closedPort;
+        try (ServerSocket probe = new ServerSocket(0, 1, loopback())) {
+            closedPort = probe.getLocalPort();
+        }
+
+        try (Socket socket = connectClient()) {
+            final byte[] reply = handshake(socket, ipv4Request(closedPort));
+            assertEquals(5, reply[0]);
+            assertNotEquals(0, reply[1]);
+        }
+    }
+
+    @Test
+    public void silentConnectionsHitTheHandshakeTimeout() throws Exception {
+        try (Socket socket = connectClient()) {
+            assertClosedByPeer(socket);
+        }
+
+        // the server applies its own to a client which never authenticates
+        try (Socket socket = new Socket(serverAddress.getAddress(), serverAddress.getPort())) {
+            socket.setSoTimeout(10000);
+            assertClosedByPeer(socket);
+        }
+    }
+
+    @Test
+    public void drainLetsOpenConnectionsFinish() throws Exception {
+        final Socket socket = socks(ipv4Request(echoTarget.getAddress().getPort()));
+        roundTrip(socket, 1024);
+
+        final Client draining = client;
+        client = null;
+        final Thread drain = new Thread(() -> draining.shutdown(10000), "drain");
+        drain.start();
+
+        // no longer accepting, the open relay still works
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (canConnect(clientAddress)) {
+            assertTrue("client never stopped accepting", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+        roundTrip(socket, 64 * 1024);
+
+        socket.close();
+        drain.join(10000);
+        assertTrue("drain never finished", !drain.isAlive());
+        assertEquals(0, draining.getCube().getConnectionCount());
+    }
+
+    @Test
+    public void idleConnectionsHibernateAndResume() throws Exception {
+        try (Socket socket = socks(ipv4Request(echoTarget.getAddress().getPort()))) {
+            roundTrip(socket, 64 * 1024);
+
+            if ("selector".equals(engine)) {
+                // the other engines keep a read in flight, only the selector one can give every buffer back
+                awaitNoBuffersOut("idle connection kept its buffers");
+            } else {
+                Thread.sleep(HIBERNATE_TIMEOUT_MILLIS * 3);
+            }
+            roundTrip(socket, 64 * 1024);
+        }
+    }
+
+    @Test
+    public void closedConnectionsReturnEveryBuffer() throws Exception {
+        for (int i = 0; i < 8; i++) {
+            try (Socket socket = socks(ipv4Request(echoTarget.getAddress().getPort()))) {
+                roundTrip(socket, 256 * 1024);
+            }
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (client.getCube().getConnectionCount() > 0 || server.getCube().getConnectionCount() > 0) {
+            assertTrue("connections never closed", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+        awaitNoBuffersOut("buffers not returned after close");
+        assertEquals(0, leakCount(client.getCube()) + leakCount(server.getCube()));
+    }
+
+    private ServerConfig serverConfig() throws IOException {
+        final TokenGenerator tokenGenerator = new CachedMD5TokenGenerator();
+        final TokenVerifier tokenVerifier = new DefaultTokenVerifier(tokenGenerator);
+        tokenVerifier.add(KEY);
+
+        final ServerConfig config = new ServerConfig();
+        config.setTokenGenerator(tokenGenerator);
+        config.setTokenVerifier(tokenVerifier);
+        config.setSecret(SECRET);
+        config.setCrypto(newCrypto());
+        configCube(config);
+        return config;
+    }
+
+    private ClientConfig clientConfig(final int serverPort) throws IOException {
+        final ClientConfig config = new ClientConfig();
+        config.setLocalDnsResolve(false);
+        config.setServerAddress(loopback());
+        config.setServerPort(serverPort);
+        config.setTokenGenerator(new CachedMD5TokenGenerator());
+        config.setKey(KEY);
+        config.setSecret(SECRET);
+        config.setCrypto(newCrypto());
+        configCube(config);
+        return config;
+    }
+
+    private Crypto newCrypto() {
+        return "rc4".equals(crypto) ? new RC4CRC32Crypto(SECRET) : new EmptyCrypto();
+    }
+
+    // what the launchers set, sized down and with every sampled buffer tracked
+    private void configCube(final CubeConfig config) throws IOException {
+        final int frameBufferSize = BUFFER_SIZE + newCrypto().getMaxPadding();
+
+        config.setTransportProvider(Transports.byName(engine));
+        config.setBindAddress(loopback());
+        config.setBindPort(freePort());
+        config.setBacklog(128);
+        config.setReusePort(false);
+        config.setWorkerCount(2);
+        config.setPlacementPolicy(Placements.byName("roundRobin"));
+        config.setDrainTimeout(0);
+        config.setTcpNoDelay(true);
+        config.setTcpKeepAlive(false);
+        config.setMaxReadsPerEvent(16);
+        config.setMaxReadBytesPerEvent(16 * BUFFER_SIZE);
+        config.setOptimizeSelectedKeys(true);
+        config.setEagerFlush(eagerFlush);
+        config.setReadBufferSize(BUFFER_SIZE);
+        config.setReadPoolSize(256);
+        config.setWriteBufferSize(frameBufferSize);
+        config.setWritePoolSize(256);
+        config.setFrameBufferSize(frameBufferSize);
+        config.setFramePoolSize(256);
+        config.setDirectReadBuffer(false);
+        config.setDirectWriteBuffer(false);
+        config.setDirectFrameBuffer(false);
+        config.setBufferPoolType("simple");
+        config.setBufferPoolIdleTimeout(60000);
+        config.setBufferPoolAutoTune(false);
+        config.setBufferLeakSampleInterval(1);
+        config.setWriteHighWatermark(8 * BUFFER_SIZE);
+        config.setWriteLowWatermark(2 * BUFFER_SIZE);
+        config.setHandshakeTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        config.setConnectTimeout(5000);
+        config.setIdleTimeout(60000);
+        config.setWriteStallTimeout(60000);
+        config.setHibernateTimeout(HIBERNATE_TIMEOUT_MILLIS);
+        // never asked, targets are addresses or literals
+        config.setDnsServers(Collections.singletonList(new InetSocketAddress(loopback(), 53)));
+        config.setDnsTimeout(1000);
+    }
+
+    private Socket connectClient() throws IOException {
+        final Socket socket = new Socket(clientAddress.getAddress(), clientAddress.getPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private Socket socks(final byte[] request) throws IOException {
+        final Socket socket = connectClient();
+        final byte[] reply = handshake(socket, request);
+        if (reply[1] != 0) {
+            socket.close();
+            throw new IOException("SOCKS reply " + reply[1]);
+        }
+        return socket;
+    }
+
+    // no authentication, then CONNECT, the reply up to its address type
+    private static byte[] handshake(final Socket socket, final byte[] request) throws IOException {
+        final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        out.write(new byte[]{5, 1, 0});
+        out.flush();
+        final byte[] method = new byte[2];
+        in.readFully(method);
+        assertArrayEquals(new byte[]{5, 0}, method);
+
+        out.write(request);
+        out.flush();
+        final byte[] reply = new byte[2];
+        in.readFully(reply);
+        if (reply[1] != 0) {
+            return reply;
+        }
+
+        // reserved, address type, bound address and port
+        in.readUnsignedByte();
+        final int addressType = in.readUnsignedByte();
+        final int addressLength = addressType == 1 ? 4 : addressType == 4 ? 16 : in.readUnsignedByte();
+        in.readFully(new byte[addressLength + 2]);
+        return reply;
+    }
+
+    private static byte[] ipv4Request(final int port) {
+        return new byte[]{5, 1, 0, 1, 127, 0, 0, 1, (byte) (port >> 8), (byte) port};
+    }
+
+    private static byte[] domainRequest(final String host, final int port) {
+        final byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+        final byte[] request = new byte[7 + name.length];
+        request[0] = 5;
+        request[1] = 1;
+        request[3] = 3;
+        request[4] = (byte) name.length;
+        System.arraycopy(name, 0, request, 5, name.length);
+        request[5 + name.length] = (byte) (port >> 8);
+        request[6 + name.length] = (byte) port;
+        return request;
+    }
+
+    // write length random bytes and expect them echoed back in order
+    private static void roundTrip(final Socket socket, final int length) throws IOException {
+        final byte[] sent = new byte[length];
+        new Random().nextBytes(sent);
+
+        // written from another thread, a large payload would fill both directions otherwise
+        final OutputStream out = socket.getOutputStream();
+        final IOException[] writeException = new IOException[1];
+        final Thread writer = new Thread(() -> {
+            try {
+                out.write(sent);
+                out.flush();
+            } catch (IOException e) {
+                writeException[0] = e;
+            }
+        }, "round trip writer");
+        writer.start();
+
+        final byte[] received = new byte[length];
+        new DataInputStream(socket.getInputStream()).readFully(received);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writeException[0] != null) throw writeException[0];
+        assertArrayEquals(sent, received);
+    }
+
+    private static void assertClosedByPeer(final Socket socket) throws IOException {
+        final long start = System.nanoTime();
+        final InputStream in = socket.getInputStream();
+        try {
+            assertEquals(-1, in.read());
+        } catch (SocketException e) {
+            // reset, closed as well
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(HANDSHAKE_TIMEOUT_MILLIS / 2));
+    }
+
+    private static boolean canConnect(final InetSocketAddress address) {
+        try (Socket socket = new Socket()) {
+            socket.connect(address, 1000);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // every buffer taken from the pools of both nodes is back
+    private void awaitNoBuffersOut(final String message) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (trackedCount(client.getCube()) + trackedCount(server.getCube()) > 0) {
+            assertTrue(message, System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+    }
+
+    private static int trackedCount(final Cube cube) {
+        int count = 0;
+        for (ByteBufferCachePool pool : cube.getBufferPools()) {
+            count += ((LeakDetectingByteBufferCachePool) pool).trackedCount();
+        }
+        return count;
+    }
+
+    private static long leakCount(final Cube cube) {
+        long count = 0;
+        for (ByteBufferCachePool pool : cube.getBufferPools()) {
+            count += ((LeakDetectingByteBufferCachePool) pool).leakCount();
+        }
+        return count;
+    }
+
+    private static InetAddress loopback() throws IOException {
+        return InetAddress.getByAddress(new byte[]{127, 0, 0, 1});
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0, 1, loopback())) {
+            return probe.getLocalPort();
+        }
+    }
+}
@@ -11,7 +11,14 @@ import java.nio.ByteBuffer;
 public interface Crypto {
     int getMaxPadding();
 
+    // true if encrypt and decrypt leave the bytes as they are, the data is then relayed without copying
+    boolean isIdentity();
+
     void encrypt(final ByteBuffer src, final ByteBuffer dst) throws CryptoException;
 
+    // stops early once dst has less room than the frame capacity, call again while src has remaining
     boolean decrypt(final ByteBuffer frame, final ByteBuffer src, final ByteBuffer dst) throws CryptoException;
+
+    // what one relay encrypts and decrypts with, its two contexts share it under the lock they already share
+    Crypto newSession();
 }
@@ -12,6 +12,11 @@ public final class EmptyCrypto implements Crypto {
         return 0;
     }
 
+    @Override
+    public boolean isIdentity() {
+        return true;
+    }
+
     @Override
     public void encrypt(final ByteBuffer src, final ByteBuffer dst) {
         dst.put(src);
@@ -22,4 +27,9 @@ public final class EmptyCrypto implements Crypto {
         dst.put(src);
         return true;
     }
+
+    @Override
+    public Crypto newSession() {
+        return this;
+    }
 }
@@ -16,6 +16,17 @@ public class EmptyPackageCrypto implements Crypto {
         return MAX_PADDING;
     }
 
+    @Override
+    public boolean isIdentity() {
+        return false;
+    }
+
+    // nothing kept between packages, one instance serves every relay
+    @Override
+    public Crypto newSession() {
+        return this;
+    }
+
     @Override
     public void encrypt(final ByteBuffer src, final ByteBuffer dst) throws CryptoException {
         final int firstPosition = dst.position();
@@ -47,7 +58,7 @@ public class EmptyPackageCrypto implements Crypto {
                     src.limit(src.position() + length);
                     decryptPackage(src, dst);
                     src.limit(backupLimit);
-                    while (decrypt(frame, src, dst)) {
+                    while (dst.remaining() >= frame.capacity() && decrypt(frame, src, dst)) {
                     }
                     return true;
                 }
@@ -83,7 +94,7 @@ public class EmptyPackageCrypto implements Crypto {
                 frame.position(2);
                 decryptPackage(frame, dst);
                 frame.clear();
-                while (decrypt(frame, src, dst)) {
+                while (dst.remaining() >= frame.capacity() && decrypt(frame, src, dst)) {
                 }
                 return true;
             }
@@ -109,7 +120,7 @@ public class EmptyPackageCrypto implements Crypto {
                     decryptPackage(src, dst);
                     src.limit(backupLimit);
                     frame.clear();
-                    while (decrypt(frame, src, dst)) {
+                    while (dst.remaining() >= frame.capacity() && decrypt(frame, src, dst)) {
                     }
                     return true;
                 }
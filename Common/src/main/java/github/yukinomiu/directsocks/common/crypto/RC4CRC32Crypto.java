@@ -36,6 +36,11 @@ public final class RC4CRC32Crypto implements Crypto {
         return MAX_PADDING;
     }
 
+    @Override
+    public boolean isIdentity() {
+        return false;
+    }
+
     @Override
     public void encrypt(final ByteBuffer src, final ByteBuffer dst) throws CryptoException {
         Context context = CONTEXT_THREAD_LOCAL.get();
@@ -56,6 +61,12 @@ public final class RC4CRC32Crypto implements Crypto {
         return context.decrypt(frame, src, dst);
     }
 
+    // the relay keeps its own ciphers, a thread may serve a single connection and never come back for them
+    @Override
+    public Crypto newSession() {
+        return new Context(secret);
+    }
+
     private final class Context extends EmptyPackageCrypto {
         private final String secret;
         private final CRC32 crc32;
@@ -68,6 +79,11 @@ public final class RC4CRC32Crypto implements Crypto {
             return RC4CRC32Crypto.MAX_PADDING;
         }
 
+        @Override
+        public Crypto newSession() {
+            return new Context(secret);
+        }
+
         private Context(final String secret) {
             this.secret = secret;
             crc32 = new CRC32();
@@ -0,0 +1,395 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.NioHandle;
+import github.yukinomiu.directsocks.common.cube.exception.CubeConnectionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+final class AsyncCubeContext extends LockingCubeContext {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncCubeContext.class);
+
+    private static final int MAX_GATHER = 64;
+
+    private static final CompletionHandler<Void, AsyncCubeContext> CONNECT_HANDLER = new ConnectHandler();
+    private static final CompletionHandler<Integer, AsyncCubeContext> READ_HANDLER = new ReadHandler();
+    private static final CompletionHandler<Long, AsyncCubeContext> WRITE_HANDLER = new WriteHandler();
+
+    private final AsyncEngine engine;
+    private final NioHandle nioHandle;
+    private final AsynchronousSocketChannel socketChannel;
+
+    // contexts of the relay with a read or a write to issue, shared like the lock, issued when the lock is left
+    private final ArrayList<AsyncCubeContext> pending;
+    private boolean inPending;
+
+    private boolean connecting;
+    // taken out of the context while the read is in flight
+    private ByteBuffer readingBuffer;
+    private boolean writing;
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+    private int gatherCount;
+    private long gatherWritten;
+
+    AsyncCubeContext(final AsyncEngine engine, final AsynchronousSocketChannel socketChannel, final AsyncCubeContext session) {
+        super(engine, session);
+
+        this.engine = engine;
+        this.nioHandle = engine.nioHandle;
+        this.socketChannel = socketChannel;
+        pending = session != null ? session.pending : new ArrayList<>(2);
+    }
+
+    void accepted(final int handshakeTimeout) {
+        enter();
+        try {
+            start();
+            scheduleDeadline(handshakeTimeout, () -> {
+                logger.debug("handshake timeout, connection will be closed");
+                close();
+            });
+            readyRead(); // default ready read
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    void exit() {
+        try {
+            // completions on this thread while issuing run nested, the outermost exit issues what they armed
+            if (isOutermost()) {
+                issuePending();
+            }
+        } finally {
+            super.exit();
+        }
+    }
+
+    @Override
+    protected InetSocketAddress remoteSocketAddress() {
+        try {
+            return (InetSocketAddress) socketChannel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected InetSocketAddress localSocketAddress() {
+        try {
+            return (InetSocketAddress) socketChannel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // an operation in flight can not be withdrawn, the flags are checked again when issuing
+    @Override
+    protected void interestRead(final boolean interested) {
+        if (interested) issueLater();
+    }
+
+    @Override
+    protected void interestWrite(final boolean interested) {
+        if (interested) issueLater();
+    }
+
+    @Override
+    void closeIo() {
+        try {
+            // operations in flight complete with AsynchronousCloseException and give their buffers back
+            socketChannel.close();
+        } catch (IOException e) {
+            logger.error("closing AsynchronousSocketChannel IO exception", e);
+        }
+    }
+
+    @Override
+    public CubeContext readyConnect(final SocketAddress remoteAddress) throws CubeConnectionException {
+        if (remoteAddress == null) throw new NullPointerException("remote SocketAddress can not be null");
+
+        final AsyncCubeContext newCubeContext;
+        AsynchronousSocketChannel newSocketChannel = null;
+        try {
+            newSocketChannel = engine.openChannel();
+            newCubeContext = engine.newContext(newSocketChannel, this);
+        } catch (IOException e) {
+            logger.error("open new AsynchronousSocketChannel exception", e);
+            if (newSocketChannel != null) {
+                try {
+                    newSocketChannel.close();
+                } catch (IOException ioe) {
+                    logger.error("closing AsynchronousSocketChannel IO exception", ioe);
+                }
+            }
+            throw new CubeConnectionException("open new AsynchronousSocketChannel exception: " + e.getMessage(), e);
+        }
+
+        newCubeContext.start();
+        newCubeContext.connect(remoteAddress);
+        return newCubeContext;
+    }
+
+    private void connect(final SocketAddress remoteAddress) {
+        connecting = true;
+        scheduleDeadline(engine.cubeConfig.getConnectTimeout(), () -> {
+            // the pending connect is aborted when the handler closes the context
+            connecting = false;
+            logger.debug("connect remote host timeout");
+            handleConnectFail(new CubeConnectionException("connection timeout"));
+        });
+
+        ioStarted();
+        socketChannel.connect(remoteAddress, this, CONNECT_HANDLER);
+    }
+
+    private void connectDone(final Throwable exc) {
+        ioEnded();
+        if (isClosed() || !connecting) return;
+        connecting = false;
+        cancelDeadline();
+
+        if (exc != null) {
+            logger.warn("connect remote host IO exception: {}", exc.getMessage());
+            handleConnectFail(new CubeConnectionException("connection IO exception: " + exc.getMessage(), exc));
+            return;
+        }
+
+        // what the handler armed before the connection was up
+        issueLater();
+        try {
+            nioHandle.handleConnectSuccess(this);
+        } catch (CancelledKeyException e) {
+            logger.debug("connection is closed while handle connection success");
+            close();
+        } catch (Exception e) {
+            logger.error("NioHandle handle connect success exception, connection will be closed", e);
+            close();
+        }
+    }
+
+    private void handleConnectFail(final CubeConnectionException cubeConnectionException) {
+        try {
+            nioHandle.handleConnectFail(this, cubeConnectionException);
+        } catch (CancelledKeyException e) {
+            logger.debug("connection is closed while handle connection fail");
+            close();
+        } catch (Exception e) {
+            logger.error("NioHandle handle connection fail exception, connection will be closed", e);
+            close();
+        }
+    }
+
+    private void issueLater() {
+        if (inPending) return;
+        inPending = true;
+        pending.add(this);
+    }
+
+    private void issuePending() {
+        while (!pending.isEmpty()) {
+            final AsyncCubeContext cubeContext = pending.remove(pending.size() - 1);
+            cubeContext.inPending = false;
+            cubeContext.issue();
+        }
+    }
+
+    private void issue() {
+        if (isClosed() || connecting) return;
+
+        if (isReadReady() && readingBuffer == null) {
+            finishRead();
+            readingBuffer = takeReadBuffer();
+            ioStarted();
+            socketChannel.read(readingBuffer, this, READ_HANDLER);
+        }
+
+        if (isWriteReady() && !writing && !isClosed()) {
+            issueWrite();
+        }
+    }
+
+    private void readDone(final int n, final Throwable exc) {
+        final ByteBuffer readBuffer = readingBuffer;
+        readingBuffer = null;
+        final boolean open = putReadBuffer(readBuffer);
+        ioEnded();
+        if (!open) return;
+
+        if (exc != null) {
+            logger.warn("read exception: {}, connection will be closed", exc.getMessage());
+            close();
+            return;
+        }
+
+        if (n == -1) {
+            logger.debug("end of stream, connection will be closed");
+            close();
+            return;
+        }
+
+        if (n == 0) {
+            // the handler left the buffer full
+            logger.warn("can not read any data into a full read buffer");
+            readyRead();
+            return;
+        }
+        markRead();
+
+        // the handler relays into the peer, whose write is issued as soon as the lock is left
+        readBuffer.flip();
+        try {
+            nioHandle.handleRead(this);
+        } catch (CancelledKeyException e) {
+            logger.debug("connection is closed while handle read");
+            close();
+        } catch (Exception e) {
+            logger.error("NioHandle handle read exception, connection will be closed", e);
+            close();
+        }
+    }
+
+    private void issueWrite() {
+        final int count = takeWriteBuffers(gatherBuffers);
+        if (count == 0) {
+            flushDone();
+            return;
+        }
+
+        writing = true;
+        gatherCount = count;
+        gatherWritten = 0;
+        ioStarted();
+        socketChannel.write(gatherBuffers, 0, count, 0, TimeUnit.MILLISECONDS, this, WRITE_HANDLER);
+    }
+
+    private void writeDone(final long n, final Throwable exc) {
+        if (exc == null && n > 0) {
+            gatherWritten += n;
+            if (!isClosed()) markWritten();
+        }
+
+        if (exc == null && !isClosed() && gatherBuffers[gatherCount - 1].hasRemaining()) {
+            // partial write, the rest goes out before anything queued meanwhile
+            int offset = 0;
+            while (!gatherBuffers[offset].hasRemaining()) {
+                offset++;
+            }
+            socketChannel.write(gatherBuffers, offset, gatherCount - offset, 0, TimeUnit.MILLISECONDS, this, WRITE_HANDLER);
+            return;
+        }
+
+        writing = false;
+        takenWriteDone(gatherBuffers, gatherCount, gatherWritten);
+        ioEnded();
+        if (isClosed()) return;
+
+        if (exc != null) {
+            logger.warn("write exception: {}, connection will be closed", exc.getMessage());
+            close();
+            return;
+        }
+
+        resumeRelaySource();
+        if (hasPendingWrite()) {
+            // queued meanwhile
+            issueLater();
+            return;
+        }
+        flushDone();
+    }
+
+    private void flushDone() {
+        try {
+            finishFlush();
+        } catch (CancelledKeyException e) {
+            logger.debug("connection is closed while handle write");
+            close();
+        } catch (Exception e) {
+            logger.error("after write exception, connection will be closed", e);
+            close();
+        }
+    }
+
+    // completions take the relay lock, IO armed meanwhile is issued when they leave it
+
+    private static final class ConnectHandler implements CompletionHandler<Void, AsyncCubeContext> {
+        @Override
+        public void completed(final Void result, final AsyncCubeContext cubeContext) {
+            cubeContext.enter();
+            try {
+                cubeContext.connectDone(null);
+            } finally {
+                cubeContext.exit();
+            }
+        }
+
+        @Override
+        public void failed(final Throwable exc, final AsyncCubeContext cubeContext) {
+            cubeContext.enter();
+            try {
+                cubeContext.connectDone(exc);
+            } finally {
+                cubeContext.exit();
+            }
+        }
+    }
+
+    private static final class ReadHandler implements CompletionHandler<Integer, AsyncCubeContext> {
+        @Override
+        public void completed(final Integer n, final AsyncCubeContext cubeContext) {
+            cubeContext.enter();
+            try {
+                cubeContext.readDone(n, null);
+            } finally {
+                cubeContext.exit();
+            }
+        }
+
+        @Override
+        public void failed(final Throwable exc, final AsyncCubeContext cubeContext) {
+            cubeContext.enter();
+            try {
+                cubeContext.readDone(-1, exc);
+            } finally {
+                cubeContext.exit();
+            }
+        }
+    }
+
+    private static final class WriteHandler implements CompletionHandler<Long, AsyncCubeContext> {
+        @Override
+        public void completed(final Long n, final AsyncCubeContext cubeContext) {
+            cubeContext.enter();
+            try {
+                cubeContext.writeDone(n, null);
+            } finally {
+                cubeContext.exit();
+            }
+        }
+
+        @Override
+        public void failed(final Throwable exc, final AsyncCubeContext cubeContext) {
+            cubeContext.enter();
+            try {
+                cubeContext.writeDone(0, exc);
+            } finally {
+                cubeContext.exit();
+            }
+        }
+    }
+}
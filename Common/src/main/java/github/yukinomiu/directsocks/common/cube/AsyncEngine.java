@@ -0,0 +1,188 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.NioHandle;
+import github.yukinomiu.directsocks.common.cube.exception.CubeInitException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+final class AsyncEngine extends LockingEngine {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncEngine.class);
+
+    private static final long GROUP_TERMINATION_TIMEOUT_MILLIS = 5000;
+
+    // completions of every connection run on workerCount threads, no thread waits on a connection
+    private final AsynchronousChannelGroup channelGroup;
+    private final AsynchronousServerSocketChannel serverSocketChannel;
+    // the system resolver blocks, it must not hold a completion thread
+    private final ExecutorService resolveExecutor;
+
+    // accept completions come one at a time, the next accept is issued when one is done
+    private final CompletionHandler<AsynchronousSocketChannel, Void> acceptHandler = new AcceptHandler();
+    private final CountDownLatch acceptStopped = new CountDownLatch(1);
+    private boolean accepting;
+    private long acceptCount;
+
+    AsyncEngine(final CubeConfig cubeConfig, final NioHandle nioHandle, final BufferPools bufferPools) throws CubeInitException {
+        super("async engine", cubeConfig, nioHandle, bufferPools);
+        checkConfig(cubeConfig);
+
+        final AtomicLong counter = new AtomicLong();
+        try {
+            channelGroup = AsynchronousChannelGroup.withFixedThreadPool(cubeConfig.getWorkerCount(),
+                    runnable -> new Thread(runnable, "cube async thread " + counter.getAndIncrement()));
+        } catch (IOException e) {
+            logger.error("init async engine exception", e);
+            throw new CubeInitException("init async engine exception", e);
+        }
+
+        final InetSocketAddress bindSocketAddress = new InetSocketAddress(cubeConfig.getBindAddress(), cubeConfig.getBindPort());
+        try {
+            serverSocketChannel = AsynchronousServerSocketChannel.open(channelGroup);
+        } catch (IOException e) {
+            channelGroup.shutdown();
+            logger.error("init async engine exception", e);
+            throw new CubeInitException("init async engine exception", e);
+        }
+
+        try {
+            serverSocketChannel.bind(bindSocketAddress, cubeConfig.getBacklog());
+        } catch (IOException e) {
+            channelGroup.shutdown();
+            throw bindFailed(serverSocketChannel, e);
+        }
+
+        resolveExecutor = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "cube resolve thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void checkConfig(final CubeConfig cubeConfig) throws CubeInitException {
+        Integer workerCount = cubeConfig.getWorkerCount();
+        if (workerCount == null) throw new CubeInitException("worker count can not be null");
+        if (workerCount < 1) throw new CubeInitException("worker count can not be less than 1");
+    }
+
+    @Override
+    void startAccepting() {
+        logger.debug("start listening at address {}:{}", cubeConfig.getBindAddress().getHostAddress(), cubeConfig.getBindPort());
+        accepting = true;
+        serverSocketChannel.accept(null, acceptHandler);
+    }
+
+    @Override
+    void stopAccepting() {
+        try {
+            serverSocketChannel.close();
+        } catch (IOException e) {
+            logger.error("closing AsynchronousServerSocketChannel IO exception", e);
+        }
+
+        if (accepting) {
+            // the pending accept fails once the channel is closed
+            try {
+                acceptStopped.await();
+            } catch (InterruptedException e) {
+                logger.warn("interrupted while waiting accept to stop");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    void stopIo() {
+        resolveExecutor.shutdownNow();
+        try {
+            channelGroup.shutdownNow();
+        } catch (IOException e) {
+            logger.error("shutdown async channel group IO exception", e);
+        }
+
+        try {
+            if (!channelGroup.awaitTermination(GROUP_TERMINATION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                logger.warn("async channel group not terminated in {}ms", GROUP_TERMINATION_TIMEOUT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            logger.warn("interrupted while waiting async channel group to terminate");
+            Thread.currentThread().interrupt();
+        }
+        logger.debug("acceptCount={}", acceptCount);
+    }
+
+    @Override
+    void executeBlocking(final Runnable task) {
+        resolveExecutor.execute(task);
+    }
+
+    AsynchronousSocketChannel openChannel() throws IOException {
+        return AsynchronousSocketChannel.open(channelGroup);
+    }
+
+    AsyncCubeContext newContext(final AsynchronousSocketChannel socketChannel, final AsyncCubeContext session) throws IOException {
+        configOptions(socketChannel);
+
+        final AsyncCubeContext cubeContext = new AsyncCubeContext(this, socketChannel, session);
+        register(cubeContext);
+        return cubeContext;
+    }
+
+    private void accepted(final AsynchronousSocketChannel socketChannel) {
+        acceptCount++;
+
+        final AsyncCubeContext cubeContext;
+        try {
+            cubeContext = newContext(socketChannel, null);
+        } catch (IOException e) {
+            logger.warn("config AsynchronousSocketChannel exception, connection will be closed", e);
+            try {
+                socketChannel.close();
+            } catch (IOException ioe) {
+                logger.error("closing AsynchronousSocketChannel IO exception", ioe);
+            }
+            return;
+        }
+        cubeContext.accepted(cubeConfig.getHandshakeTimeout());
+    }
+
+    private final class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, Void> {
+        @Override
+        public void completed(final AsynchronousSocketChannel socketChannel, final Void attachment) {
+            try {
+                accepted(socketChannel);
+            } finally {
+                serverSocketChannel.accept(null, this);
+            }
+        }
+
+        @Override
+        public void failed(final Throwable exc, final Void attachment) {
+            if (exc instanceof AsynchronousCloseException || exc instanceof ClosedChannelException) {
+                logger.debug("stop listening");
+                acceptStopped.countDown();
+                return;
+            }
+
+            logger.error("accept IO exception", exc);
+            serverSocketChannel.accept(null, this);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.NioHandle;
+import github.yukinomiu.directsocks.common.cube.exception.CubeConnectionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+final class BlockingCubeContext extends LockingCubeContext {
+    private static final Logger logger = LoggerFactory.getLogger(BlockingCubeContext.class);
+
+    private static final int MAX_GATHER = 64;
+
+    private final BlockingEngine engine;
+    private final NioHandle nioHandle;
+    private final SocketChannel socketChannel;
+
+    private final Condition readReady;
+    private final Condition writeReady;
+
+    // only touched by the writer thread
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+
+    // the IO threads leave the lock only while blocked in IO
+    BlockingCubeContext(final BlockingEngine engine, final SocketChannel socketChannel, final BlockingCubeContext session) {
+        super(engine, session);
+
+        this.engine = engine;
+        this.nioHandle = engine.nioHandle;
+        this.socketChannel = socketChannel;
+        readReady = newCondition();
+        writeReady = newCondition();
+    }
+
+    void accepted(final int handshakeTimeout) {
+        enter();
+        try {
+            start();
+            scheduleDeadline(handshakeTimeout, () -> {
+                logger.debug("handshake timeout, connection will be closed");
+                close();
+            });
+            startIoThreads();
+            readyRead(); // default ready read
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    protected InetSocketAddress remoteSocketAddress() {
+        return (InetSocketAddress) socketChannel.socket().getRemoteSocketAddress();
+    }
+
+    @Override
+    protected InetSocketAddress localSocketAddress() {
+        return (InetSocketAddress) socketChannel.socket().getLocalSocketAddress();
+    }
+
+    @Override
+    protected void interestRead(final boolean interested) {
+        if (interested) readReady.signal();
+    }
+
+    @Override
+    protected void interestWrite(final boolean interested) {
+        if (interested) writeReady.signal();
+    }
+
+    @Override
+    void closeIo() {
+        try {
+            // threads blocked in IO on it fail at once and come back for the lock
+            socketChannel.close();
+        } catch (IOException e) {
+            logger.error("closing SocketChannel IO exception", e);
+        }
+
+        readReady.signalAll();
+        writeReady.signalAll();
+    }
+
+    @Override
+    public CubeContext readyConnect(final SocketAddress remoteAddress) throws CubeConnectionException {
+        if (remoteAddress == null) throw new NullPointerException("remote SocketAddress can not be null");
+
+        final BlockingCubeContext newCubeContext;
+        SocketChannel newSocketChannel = null;
+        try {
+            newSocketChannel = SocketChannel.open();
+            newCubeContext = engine.newContext(newSocketChannel, this);
+        } catch (IOException e) {
+            logger.error("open new SocketChannel exception", e);
+            if (newSocketChannel != null) {
+                try {
+                    newSocketChannel.close();
+                } catch (IOException ioe) {
+                    logger.error("closing SocketChannel IO exception", ioe);
+                }
+            }
+            throw new CubeConnectionException("open new SocketChannel exception: " + e.getMessage(), e);
+        }
+
+        newCubeContext.start();
+        newCubeContext.startIoThread(() -> newCubeContext.connect(remoteAddress));
+        return newCubeContext;
+    }
+
+    private void connect(final SocketAddress remoteAddress) {
+        IOException connectException = null;
+        try {
+            socketChannel.socket().connect(remoteAddress, engine.cubeConfig.getConnectTimeout());
+        } catch (IOException e) {
+            connectException = e;
+        }
+
+        enter();
+        try {
+            if (isClosed()) return;
+
+            if (connectException == null) {
+                startIoThreads();
+                try {
+                    nioHandle.handleConnectSuccess(this);
+                } catch (CancelledKeyException e) {
+                    logger.debug("connection is closed while handle connection success");
+                    close();
+                } catch (Exception e) {
+                    logger.error("NioHandle handle connect success exception, connection will be closed", e);
+                    close();
+                }
+                return;
+            }
+
+            final CubeConnectionException cubeConnectionException;
+            if (connectException instanceof SocketTimeoutException) {
+                logger.debug("connect remote host timeout");
+                cubeConnectionException = new CubeConnectionException("connection timeout");
+            } else {
+                logger.warn("connect remote host {} IO exception: {}", remoteAddress, connectException.getMessage());
+                cubeConnectionException = new CubeConnectionException("connection IO exception: " + connectException.getMessage(), connectException);
+            }
+
+            try {
+                nioHandle.handleConnectFail(this, cubeConnectionException);
+            } catch (CancelledKeyException e) {
+                logger.debug("connection is closed while handle connection fail");
+                close();
+            } catch (Exception e) {
+                logger.error("NioHandle handle connection fail exception, connection will be closed", e);
+                close();
+            }
+        } finally {
+            ioEnded();
+            exit();
+        }
+    }
+
+    private void readLoop() {
+        enter();
+        try {
+            while (true) {
+                while (!isReadReady() && !isClosed()) {
+                    readReady.awaitUninterruptibly();
+                }
+                if (isClosed()) return;
+
+                finishRead();
+                final ByteBuffer readBuffer = takeReadBuffer();
+                int n = 0;
+                IOException readException = null;
+                exit();
+                try {
+                    n = socketChannel.read(readBuffer);
+                } catch (IOException e) {
+                    readException = e;
+                } finally {
+                    enter();
+                }
+
+                if (!putReadBuffer(readBuffer)) return;
+
+                if (readException != null) {
+                    logger.warn("read exception: {}, connection will be closed", readException.getMessage());
+                    close();
+                    return;
+                }
+
+                if (n == -1) {
+                    logger.debug("end of stream, connection will be closed");
+                    close();
+                    return;
+                }
+
+                if (n == 0) {
+                    // the handler left the buffer full
+                    logger.warn("can not read any data into a full read buffer");
+                    readyRead();
+                    continue;
+                }
+                markRead();
+
+                readBuffer.flip();
+                try {
+                    nioHandle.handleRead(this);
+                } catch (CancelledKeyException e) {
+                    logger.debug("connection is closed while handle read");
+                    close();
+                    return;
+                } catch (Exception e) {
+                    logger.error("NioHandle handle read exception, connection will be closed", e);
+                    close();
+                    return;
+                }
+            }
+        } finally {
+            ioEnded();
+            exit();
+        }
+    }
+
+    private void writeLoop() {
+        enter();
+        try {
+            while (true) {
+                while (!isWriteReady() && !isClosed()) {
+                    writeReady.awaitUninterruptibly();
+                }
+                if (isClosed()) return;
+
+                final int count = takeWriteBuffers(gatherBuffers);
+                if (count > 0) {
+                    long n = 0;
+                    IOException writeException = null;
+                    exit();
+                    try {
+                        // everything taken leaves before the lock is taken again
+                        final ByteBuffer last = gatherBuffers[count - 1];
+                        while (last.hasRemaining()) {
+                            n += count == 1 ? socketChannel.write(last) : socketChannel.write(gatherBuffers, 0, count);
+                        }
+                    } catch (IOException e) {
+                        writeException = e;
+                    } finally {
+                        enter();
+                    }
+
+                    takenWriteDone(gatherBuffers, count, n);
+                    if (isClosed()) return;
+
+                    if (writeException != null) {
+                        logger.warn("write exception: {}, connection will be closed", writeException.getMessage());
+                        close();
+                        return;
+                    }
+                    markWritten();
+
+                    resumeRelaySource();
+                    if (hasPendingWrite()) {
+                        // queued meanwhile
+                        continue;
+                    }
+                }
+
+                try {
+                    finishFlush();
+                } catch (CancelledKeyException e) {
+                    logger.debug("connection is closed while handle write");
+                    close();
+                    return;
+                } catch (Exception e) {
+                    logger.error("after write exception, connection will be closed", e);
+                    close();
+                    return;
+                }
+            }
+        } finally {
+            ioEnded();
+            exit();
+        }
+    }
+
+    private void startIoThreads() {
+        startIoThread(this::readLoop);
+        startIoThread(this::writeLoop);
+    }
+
+    private void startIoThread(final Runnable task) {
+        ioStarted();
+        engine.newIoThread(task).start();
+    }
+}
@@ -0,0 +1,131 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.NioHandle;
+import github.yukinomiu.directsocks.common.cube.exception.CubeInitException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+final class BlockingEngine extends LockingEngine {
+    private static final Logger logger = LoggerFactory.getLogger(BlockingEngine.class);
+
+    private final ServerSocketChannel serverSocketChannel;
+
+    // a reader and a writer per connection, parked in blocking IO while idle
+    private final ThreadFactory ioThreadFactory;
+
+    private Thread acceptThread;
+    private long acceptCount;
+
+    BlockingEngine(final CubeConfig cubeConfig, final NioHandle nioHandle, final BufferPools bufferPools) throws CubeInitException {
+        super("blocking engine", cubeConfig, nioHandle, bufferPools);
+
+        final InetSocketAddress bindSocketAddress = new InetSocketAddress(cubeConfig.getBindAddress(), cubeConfig.getBindPort());
+        try {
+            serverSocketChannel = ServerSocketChannel.open();
+        } catch (IOException e) {
+            logger.error("init blocking engine exception", e);
+            throw new CubeInitException("init blocking engine exception", e);
+        }
+
+        try {
+            serverSocketChannel.bind(bindSocketAddress, cubeConfig.getBacklog());
+        } catch (IOException e) {
+            throw bindFailed(serverSocketChannel, e);
+        }
+
+        ioThreadFactory = VirtualThreads.factory("cube io thread ");
+    }
+
+    @Override
+    void startAccepting() {
+        acceptThread = new Thread(this::acceptLoop);
+        acceptThread.setName("blocking engine accept thread");
+        acceptThread.start();
+    }
+
+    @Override
+    void stopAccepting() {
+        try {
+            serverSocketChannel.close();
+        } catch (IOException e) {
+            logger.error("closing ServerSocketChannel IO exception", e);
+        }
+
+        if (acceptThread != null) {
+            try {
+                acceptThread.join();
+            } catch (InterruptedException e) {
+                logger.warn("interrupted while waiting accept thread");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    void stopIo() {
+        // the IO threads have left with their contexts
+        logger.debug("acceptCount={}", acceptCount);
+    }
+
+    @Override
+    void executeBlocking(final Runnable task) {
+        newIoThread(task).start();
+    }
+
+    Thread newIoThread(final Runnable task) {
+        return ioThreadFactory.newThread(task);
+    }
+
+    BlockingCubeContext newContext(final SocketChannel socketChannel, final BlockingCubeContext session) throws IOException {
+        socketChannel.configureBlocking(true);
+        configOptions(socketChannel);
+
+        final BlockingCubeContext cubeContext = new BlockingCubeContext(this, socketChannel, session);
+        register(cubeContext);
+        return cubeContext;
+    }
+
+    private void acceptLoop() {
+        logger.debug("start listening at address {}:{}", cubeConfig.getBindAddress().getHostAddress(), cubeConfig.getBindPort());
+
+        while (true) {
+            SocketChannel socketChannel;
+            try {
+                socketChannel = serverSocketChannel.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                logger.error("accept IO exception", e);
+                continue;
+            }
+            acceptCount++;
+
+            final BlockingCubeContext cubeContext;
+            try {
+                cubeContext = newContext(socketChannel, null);
+            } catch (IOException e) {
+                logger.warn("config SocketChannel exception, connection will be closed", e);
+                try {
+                    socketChannel.close();
+                } catch (IOException ioe) {
+                    logger.error("closing SocketChannel IO exception", ioe);
+                }
+                continue;
+            }
+            cubeContext.accepted(cubeConfig.getHandshakeTimeout());
+        }
+
+        logger.debug("stop listening");
+    }
+}
@@ -0,0 +1,134 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.cachepool.ByteBufferCachePool;
+import github.yukinomiu.directsocks.common.cube.cachepool.ByteBufferCachePools;
+import github.yukinomiu.directsocks.common.cube.cachepool.LeakDetectingByteBufferCachePool;
+import github.yukinomiu.directsocks.common.cube.exception.DokerInitException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+public final class BufferPools {
+    private final ByteBufferCachePool readPool;
+    private final ByteBufferCachePool writePool;
+    private final ByteBufferCachePool framePool;
+
+    // the read, write and frame pools of one cube, shared by all of its threads whatever the engine
+    BufferPools(final CubeConfig cubeConfig) throws DokerInitException {
+        checkConfig(cubeConfig);
+
+        final String poolType = cubeConfig.getBufferPoolType();
+        final long poolIdleTimeout = cubeConfig.getBufferPoolIdleTimeout();
+        final boolean poolAutoTune = cubeConfig.getBufferPoolAutoTune();
+        final int leakSampleInterval = cubeConfig.getBufferLeakSampleInterval();
+        if (cubeConfig.getReadBufferSize().equals(cubeConfig.getWriteBufferSize())
+                && cubeConfig.getDirectReadBuffer().equals(cubeConfig.getDirectWriteBuffer())) {
+            // one pool when the buffers match, a filled read buffer can then be queued for writing as it is
+            readPool = trackLeaks(ByteBufferCachePools.create(poolType, cubeConfig.getReadBufferSize(),
+                    cubeConfig.getReadPoolSize() + cubeConfig.getWritePoolSize(), cubeConfig.getDirectReadBuffer(),
+                    poolIdleTimeout, poolAutoTune), leakSampleInterval);
+            writePool = readPool;
+        } else {
+            readPool = trackLeaks(ByteBufferCachePools.create(poolType, cubeConfig.getReadBufferSize(), cubeConfig.getReadPoolSize(),
+                    cubeConfig.getDirectReadBuffer(), poolIdleTimeout, poolAutoTune), leakSampleInterval);
+            writePool = trackLeaks(ByteBufferCachePools.create(poolType, cubeConfig.getWriteBufferSize(), cubeConfig.getWritePoolSize(),
+                    cubeConfig.getDirectWriteBuffer(), poolIdleTimeout, poolAutoTune), leakSampleInterval);
+        }
+        framePool = trackLeaks(ByteBufferCachePools.create(poolType, cubeConfig.getFrameBufferSize(), cubeConfig.getFramePoolSize(),
+                cubeConfig.getDirectFrameBuffer(), poolIdleTimeout, poolAutoTune), leakSampleInterval);
+    }
+
+    private void checkConfig(final CubeConfig cubeConfig) throws DokerInitException {
+        if (cubeConfig == null) throw new DokerInitException("config can not be null");
+
+        if (cubeConfig.getReadBufferSize() == null) throw new DokerInitException("read buffer size can not be null");
+        if (cubeConfig.getReadBufferSize() < 1024 || cubeConfig.getReadBufferSize() > 65538)
+            throw new DokerInitException("read buffer size must in range 1024-65538");
+
+        if (cubeConfig.getReadPoolSize() == null) throw new DokerInitException("read pool size can not be null");
+        if (cubeConfig.getReadPoolSize() < 8) throw new DokerInitException("read pool size can not be less than 8");
+
+        if (cubeConfig.getWriteBufferSize() == null) throw new DokerInitException("write buffer size can not be null");
+        if (cubeConfig.getWriteBufferSize() < 1024 || cubeConfig.getWriteBufferSize() > 65538)
+            throw new DokerInitException("write buffer size must in range 1024-65538");
+
+        if (cubeConfig.getWritePoolSize() == null) throw new DokerInitException("write pool size can not be null");
+        if (cubeConfig.getWritePoolSize() < 8) throw new DokerInitException("write pool size can not be less than 8");
+
+        if (cubeConfig.getFrameBufferSize() == null) throw new DokerInitException("frame buffer size can not be null");
+        if (cubeConfig.getFrameBufferSize() < 1024 || cubeConfig.getFrameBufferSize() > 65538)
+            throw new DokerInitException("frame buffer size must in range 1024-65538");
+
+        if (cubeConfig.getFramePoolSize() == null) throw new DokerInitException("frame pool size can not be null");
+        if (cubeConfig.getFramePoolSize() < 8) throw new DokerInitException("frame pool size can not be less than 8");
+
+        if (cubeConfig.getDirectReadBuffer() == null) throw new DokerInitException("direct read buffer can not be null");
+        if (cubeConfig.getDirectWriteBuffer() == null) throw new DokerInitException("direct write buffer can not be null");
+        if (cubeConfig.getDirectFrameBuffer() == null) throw new DokerInitException("direct frame buffer can not be null");
+
+        String bufferPoolType = cubeConfig.getBufferPoolType();
+        if (bufferPoolType == null) throw new DokerInitException("buffer pool type can not be null");
+        if (!ByteBufferCachePools.isSupported(bufferPoolType))
+            throw new DokerInitException("buffer pool type not supported: " + bufferPoolType);
+
+        Integer bufferPoolIdleTimeout = cubeConfig.getBufferPoolIdleTimeout();
+        if (bufferPoolIdleTimeout == null) throw new DokerInitException("buffer pool idle timeout can not be null");
+        if (bufferPoolIdleTimeout < 0) throw new DokerInitException("buffer pool idle timeout can not be less than 0");
+
+        Boolean bufferPoolAutoTune = cubeConfig.getBufferPoolAutoTune();
+        if (bufferPoolAutoTune == null) throw new DokerInitException("buffer pool auto tune can not be null");
+        if (bufferPoolAutoTune && bufferPoolIdleTimeout == 0)
+            throw new DokerInitException("buffer pool auto tune needs an idle timeout");
+
+        Integer bufferLeakSampleInterval = cubeConfig.getBufferLeakSampleInterval();
+        if (bufferLeakSampleInterval == null) throw new DokerInitException("buffer leak sample interval can not be null");
+        if (bufferLeakSampleInterval < 0) throw new DokerInitException("buffer leak sample interval can not be less than 0");
+    }
+
+    private static ByteBufferCachePool trackLeaks(final ByteBufferCachePool pool, final int sampleInterval) throws DokerInitException {
+        return sampleInterval > 0 ? new LeakDetectingByteBufferCachePool(pool, sampleInterval) : pool;
+    }
+
+    public ByteBufferCachePool getReadPool() {
+        return readPool;
+    }
+
+    public ByteBufferCachePool getWritePool() {
+        return writePool;
+    }
+
+    public ByteBufferCachePool getFramePool() {
+        return framePool;
+    }
+
+    public void start() {
+        readPool.start();
+        if (writePool != readPool) writePool.start();
+        framePool.start();
+    }
+
+    // after every connection has given its buffers back
+    public void shutdown() {
+        readPool.shutdown();
+        if (writePool != readPool) writePool.shutdown();
+        framePool.shutdown();
+    }
+
+    public void trim() {
+        readPool.trim();
+        if (writePool != readPool) writePool.trim();
+        framePool.trim();
+    }
+
+    public List<ByteBufferCachePool> list() {
+        final List<ByteBufferCachePool> pools = new ArrayList<>();
+        pools.add(readPool);
+        if (writePool != readPool) pools.add(writePool);
+        pools.add(framePool);
+        return pools;
+    }
+}
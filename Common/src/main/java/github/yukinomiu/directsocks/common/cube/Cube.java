@@ -2,11 +2,17 @@ package github.yukinomiu.directsocks.common.cube;
 
 import github.yukinomiu.directsocks.common.cube.api.LifeCycle;
 import github.yukinomiu.directsocks.common.cube.api.NioHandle;
+import github.yukinomiu.directsocks.common.cube.api.Transport;
+import github.yukinomiu.directsocks.common.cube.api.TransportProvider;
+import github.yukinomiu.directsocks.common.cube.cachepool.ByteBufferCachePool;
 import github.yukinomiu.directsocks.common.cube.exception.CubeInitException;
 import github.yukinomiu.directsocks.common.cube.exception.CubeStateException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Yukinomiu
  * 2017/7/19
@@ -16,14 +22,16 @@ public final class Cube implements LifeCycle {
 
     private LifeCycle.State state;
 
-    private final Dispatcher dispatcher;
-    private final Docker docker;
+    private final CubeConfig cubeConfig;
+    private final Transport engine;
 
     public Cube(final CubeConfig cubeConfig, final NioHandle nioHandle) throws CubeInitException {
         state = LifeCycle.State.NEW;
+        checkConfig(cubeConfig);
 
-        docker = new Docker(cubeConfig, nioHandle);
-        dispatcher = new Dispatcher(cubeConfig, docker);
+        final BufferPools bufferPools = new BufferPools(cubeConfig);
+        engine = cubeConfig.getTransportProvider().newTransport(cubeConfig, nioHandle, bufferPools);
+        this.cubeConfig = cubeConfig;
     }
 
     @Override
@@ -31,22 +39,82 @@ public final class Cube implements LifeCycle {
         if (state != State.NEW) throw new CubeStateException();
         state = State.STARTING;
 
-        docker.start();
-        dispatcher.start();
+        engine.start();
 
         state = State.RUNNING;
         logger.debug("Cube started");
     }
 
+    // close every connection at once, draining is asked for with shutdown(long)
     @Override
     public synchronized void shutdown() {
+        shutdown(0);
+    }
+
+    // stop accepting, give established connections up to drainTimeoutMillis to finish, then close the rest
+    public synchronized int shutdown(final long drainTimeoutMillis) {
         if (state != State.RUNNING) throw new CubeStateException();
         state = State.STOPPING;
 
-        dispatcher.shutdown();
-        docker.shutdown();
+        final int remaining = engine.shutdown(drainTimeoutMillis);
 
         state = State.STOPPED;
-        logger.debug("Cube closed");
+        logger.debug("Cube closed, {} connections force closed", remaining);
+        return remaining;
+    }
+
+    private void checkConfig(final CubeConfig cubeConfig) throws CubeInitException {
+        if (cubeConfig == null) throw new CubeInitException("config can not be null");
+
+        TransportProvider transportProvider = cubeConfig.getTransportProvider();
+        if (transportProvider == null) throw new CubeInitException("transport provider can not be null");
+    }
+
+    // add a switcher at runtime, it takes new connections at once
+    public synchronized void addSwitcher() throws CubeInitException {
+        if (state != State.RUNNING) throw new CubeStateException();
+        if (!(engine instanceof SelectorEngine)) throw new CubeInitException("only the selector engine has switchers");
+
+        final Dispatcher dispatcher = ((SelectorEngine) engine).getDispatcher();
+        final Docker docker = ((SelectorEngine) engine).getDocker();
+        Switcher switcher = docker.newSwitcher();
+        try {
+            if (dispatcher.isSharded()) {
+                dispatcher.shard(switcher);
+            }
+        } catch (CubeInitException e) {
+            switcher.discard();
+            throw e;
+        }
+        docker.addSwitcher(switcher);
+    }
+
+    // retire a switcher at runtime, its connections stay on it until they are closed
+    public synchronized boolean retireSwitcher() {
+        if (state != State.RUNNING) throw new CubeStateException();
+        if (!(engine instanceof SelectorEngine)) return false;
+
+        return ((SelectorEngine) engine).getDocker().retireSwitcher();
+    }
+
+    // empty unless the engine is the selector one
+    public Switcher[] getSwitchers() {
+        if (!(engine instanceof SelectorEngine)) return new Switcher[0];
+
+        return ((SelectorEngine) engine).getDocker().getSwitchers().clone();
+    }
+
+    public List<Switcher> getRetiringSwitchers() {
+        if (!(engine instanceof SelectorEngine)) return Collections.emptyList();
+
+        return ((SelectorEngine) engine).getDocker().getRetiringSwitchers();
+    }
+
+    public int getConnectionCount() {
+        return engine.getConnectionCount();
+    }
+
+    public List<ByteBufferCachePool> getBufferPools() {
+        return engine.getBufferPools();
     }
 }
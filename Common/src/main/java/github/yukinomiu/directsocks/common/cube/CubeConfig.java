@@ -1,23 +1,41 @@
 package github.yukinomiu.directsocks.common.cube;
 
+import github.yukinomiu.directsocks.common.cube.api.PlacementPolicy;
+import github.yukinomiu.directsocks.common.cube.api.TransportProvider;
+import github.yukinomiu.directsocks.common.cube.dns.DnsCache;
+
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
 
 /**
  * Yukinomiu
  * 2017/7/19
  */
 public class CubeConfig {
+    // transport config, see Transports
+    private TransportProvider transportProvider;
+
     // dispatcher config
     private InetAddress bindAddress;
     private Integer bindPort;
     private Integer backlog;
+    private Boolean reusePort;
 
     // docker config
     private Integer workerCount;
+    private PlacementPolicy placementPolicy;
+    private Integer drainTimeout;
 
     // switcher config
     private Boolean tcpNoDelay;
     private Boolean tcpKeepAlive;
+    private Integer maxReadsPerEvent;
+    private Integer maxReadBytesPerEvent;
+    // array backed selected keys swapped into the JDK selector, falls back to its own set when not permitted
+    private Boolean optimizeSelectedKeys;
+    // writes armed during a loop turn go out before the next select instead of waiting for OP_WRITE
+    private Boolean eagerFlush;
 
     // buffer config
     private Integer readBufferSize;
@@ -26,6 +44,40 @@ public class CubeConfig {
     private Integer writePoolSize;
     private Integer frameBufferSize;
     private Integer framePoolSize;
+    private Boolean directReadBuffer;
+    private Boolean directWriteBuffer;
+    private Boolean directFrameBuffer;
+    private String bufferPoolType;
+    // milliseconds a pooled buffer may stay unused before it is freed, 0 keeps them
+    private Integer bufferPoolIdleTimeout;
+    private Boolean bufferPoolAutoTune;
+    // one in this many buffers taken is tracked for leaks, 0 disables
+    private Integer bufferLeakSampleInterval;
+
+    // write backpressure config
+    private Integer writeHighWatermark;
+    private Integer writeLowWatermark;
+
+    // timeout config, milliseconds, 0 disables
+    private Integer handshakeTimeout;
+    private Integer connectTimeout;
+    private Integer idleTimeout;
+    private Integer writeStallTimeout;
+    // an idle connection gives its empty buffers back to the pools
+    private Integer hibernateTimeout;
+
+    // dns config
+    private List<InetSocketAddress> dnsServers;
+    private Integer dnsTimeout;
+    private DnsCache dnsCache;
+
+    public TransportProvider getTransportProvider() {
+        return transportProvider;
+    }
+
+    public void setTransportProvider(TransportProvider transportProvider) {
+        this.transportProvider = transportProvider;
+    }
 
     public InetAddress getBindAddress() {
         return bindAddress;
@@ -51,6 +103,14 @@ public class CubeConfig {
         this.backlog = backlog;
     }
 
+    public Boolean getReusePort() {
+        return reusePort;
+    }
+
+    public void setReusePort(Boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
     public Integer getWorkerCount() {
         return workerCount;
     }
@@ -59,6 +119,22 @@ public class CubeConfig {
         this.workerCount = workerCount;
     }
 
+    public PlacementPolicy getPlacementPolicy() {
+        return placementPolicy;
+    }
+
+    public void setPlacementPolicy(PlacementPolicy placementPolicy) {
+        this.placementPolicy = placementPolicy;
+    }
+
+    public Integer getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    public void setDrainTimeout(Integer drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
+
     public Boolean getTcpNoDelay() {
         return tcpNoDelay;
     }
@@ -75,6 +151,38 @@ public class CubeConfig {
         this.tcpKeepAlive = tcpKeepAlive;
     }
 
+    public Integer getMaxReadsPerEvent() {
+        return maxReadsPerEvent;
+    }
+
+    public void setMaxReadsPerEvent(Integer maxReadsPerEvent) {
+        this.maxReadsPerEvent = maxReadsPerEvent;
+    }
+
+    public Integer getMaxReadBytesPerEvent() {
+        return maxReadBytesPerEvent;
+    }
+
+    public void setMaxReadBytesPerEvent(Integer maxReadBytesPerEvent) {
+        this.maxReadBytesPerEvent = maxReadBytesPerEvent;
+    }
+
+    public Boolean getOptimizeSelectedKeys() {
+        return optimizeSelectedKeys;
+    }
+
+    public void setOptimizeSelectedKeys(Boolean optimizeSelectedKeys) {
+        this.optimizeSelectedKeys = optimizeSelectedKeys;
+    }
+
+    public Boolean getEagerFlush() {
+        return eagerFlush;
+    }
+
+    public void setEagerFlush(Boolean eagerFlush) {
+        this.eagerFlush = eagerFlush;
+    }
+
     public Integer getReadBufferSize() {
         return readBufferSize;
     }
@@ -122,4 +230,140 @@ public class CubeConfig {
     public void setFramePoolSize(Integer framePoolSize) {
         this.framePoolSize = framePoolSize;
     }
+
+    public Boolean getDirectReadBuffer() {
+        return directReadBuffer;
+    }
+
+    public void setDirectReadBuffer(Boolean directReadBuffer) {
+        this.directReadBuffer = directReadBuffer;
+    }
+
+    public Boolean getDirectWriteBuffer() {
+        return directWriteBuffer;
+    }
+
+    public void setDirectWriteBuffer(Boolean directWriteBuffer) {
+        this.directWriteBuffer = directWriteBuffer;
+    }
+
+    public Boolean getDirectFrameBuffer() {
+        return directFrameBuffer;
+    }
+
+    public void setDirectFrameBuffer(Boolean directFrameBuffer) {
+        this.directFrameBuffer = directFrameBuffer;
+    }
+
+    public String getBufferPoolType() {
+        return bufferPoolType;
+    }
+
+    public void setBufferPoolType(String bufferPoolType) {
+        this.bufferPoolType = bufferPoolType;
+    }
+
+    public Integer getBufferPoolIdleTimeout() {
+        return bufferPoolIdleTimeout;
+    }
+
+    public void setBufferPoolIdleTimeout(Integer bufferPoolIdleTimeout) {
+        this.bufferPoolIdleTimeout = bufferPoolIdleTimeout;
+    }
+
+    public Boolean getBufferPoolAutoTune() {
+        return bufferPoolAutoTune;
+    }
+
+    public void setBufferPoolAutoTune(Boolean bufferPoolAutoTune) {
+        this.bufferPoolAutoTune = bufferPoolAutoTune;
+    }
+
+    public Integer getBufferLeakSampleInterval() {
+        return bufferLeakSampleInterval;
+    }
+
+    public void setBufferLeakSampleInterval(Integer bufferLeakSampleInterval) {
+        this.bufferLeakSampleInterval = bufferLeakSampleInterval;
+    }
+
+    public Integer getWriteHighWatermark() {
+        return writeHighWatermark;
+    }
+
+    public void setWriteHighWatermark(Integer writeHighWatermark) {
+        this.writeHighWatermark = writeHighWatermark;
+    }
+
+    public Integer getWriteLowWatermark() {
+        return writeLowWatermark;
+    }
+
+    public void setWriteLowWatermark(Integer writeLowWatermark) {
+        this.writeLowWatermark = writeLowWatermark;
+    }
+
+    public Integer getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    public void setHandshakeTimeout(Integer handshakeTimeout) {
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    public Integer getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(Integer connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public Integer getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(Integer idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public Integer getWriteStallTimeout() {
+        return writeStallTimeout;
+    }
+
+    public void setWriteStallTimeout(Integer writeStallTimeout) {
+        this.writeStallTimeout = writeStallTimeout;
+    }
+
+    public Integer getHibernateTimeout() {
+        return hibernateTimeout;
+    }
+
+    public void setHibernateTimeout(Integer hibernateTimeout) {
+        this.hibernateTimeout = hibernateTimeout;
+    }
+
+    public List<InetSocketAddress> getDnsServers() {
+        return dnsServers;
+    }
+
+    public void setDnsServers(List<InetSocketAddress> dnsServers) {
+        this.dnsServers = dnsServers;
+    }
+
+    public Integer getDnsTimeout() {
+        return dnsTimeout;
+    }
+
+    public void setDnsTimeout(Integer dnsTimeout) {
+        this.dnsTimeout = dnsTimeout;
+    }
+
+    public DnsCache getDnsCache() {
+        return dnsCache;
+    }
+
+    public void setDnsCache(DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
+    }
 }
@@ -1,35 +1,54 @@
 package github.yukinomiu.directsocks.common.cube;
 
+import github.yukinomiu.directsocks.common.cube.api.Cancellable;
 import github.yukinomiu.directsocks.common.cube.api.CloseableAttachment;
 import github.yukinomiu.directsocks.common.cube.cachepool.ByteBufferCachePool;
+import github.yukinomiu.directsocks.common.cube.dns.ResolveCallback;
 import github.yukinomiu.directsocks.common.cube.exception.CubeConnectionException;
 import github.yukinomiu.directsocks.common.cube.exception.CubeRuntimeException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.CancelledKeyException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Yukinomiu
  * 2017/7/20
  */
-public final class CubeContext {
+public abstract class CubeContext {
     private static final Logger logger = LoggerFactory.getLogger(CubeContext.class);
 
-    private final Switcher switcher;
-    private final SelectionKey selectionKey;
+    // handshake replies fit, a relay asks for a larger buffer by readyWrite(minRemaining)
+    private static final int INITIAL_WRITE_CAPACITY = 1024;
+
     private final ByteBufferCachePool readPool;
     private final ByteBufferCachePool writePool;
     private final ByteBufferCachePool framePool;
+    private final int writeHighWatermark;
+    private final int writeLowWatermark;
+    private final long idleTimeoutNanos;
+    private final long writeStallTimeoutNanos;
+    private final long hibernateTimeoutNanos;
 
+    // taken from the pools on first use, given back when the connection idles with nothing in them
     private ByteBuffer readBuffer;
     private ByteBuffer writeBuffer;
     private ByteBuffer frameBuffer;
+    private int writeCapacity = INITIAL_WRITE_CAPACITY;
+    private boolean hibernated;
+
+    // sealed write buffers (flipped) waiting to be written, oldest first
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    // also counts the buffers an engine has taken out of the queue and not finished writing
+    private int queuedBytes = 0;
+    private boolean writable = true;
+    private CubeContext relaySource;
 
     private boolean readFlag = false;
     private boolean writeFlag = false;
@@ -44,111 +63,385 @@ public final class CubeContext {
 
     private CloseableAttachment attachment;
 
-    CubeContext(final Switcher switcher,
-                final SelectionKey selectionKey,
-                final ByteBufferCachePool readPool,
-                final ByteBufferCachePool writePool,
-                final ByteBufferCachePool framePool) {
+    // timeouts on the engine's timer, the deadline is the handshake or the connect one
+    private final Runnable activityCheck = this::checkActivity;
+    private Cancellable deadlineTimeout;
+    private Cancellable activityTimeout;
+    private long activityCheckAt;
+    private long lastActivityAt;
+    private long lastWriteAt;
+
+    // a transport subclasses this for its connections and calls start once the context is fully constructed
+    protected CubeContext(final ByteBufferCachePool readPool,
+                          final ByteBufferCachePool writePool,
+                          final ByteBufferCachePool framePool,
+                          final int writeHighWatermark,
+                          final int writeLowWatermark,
+                          final int idleTimeout,
+                          final int writeStallTimeout,
+                          final int hibernateTimeout) {
 
-        this.switcher = switcher;
-        this.selectionKey = selectionKey;
         this.readPool = readPool;
         this.writePool = writePool;
         this.framePool = framePool;
+        this.writeHighWatermark = writeHighWatermark;
+        this.writeLowWatermark = writeLowWatermark;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        this.writeStallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeStallTimeout);
+        this.hibernateTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(hibernateTimeout);
+        // nothing to give back yet, the first buffer taken starts the hibernate clock
+        this.hibernated = hibernateTimeoutNanos > 0;
+    }
+
+    // transport hooks, only called by the thread currently owning the context
+
+    // null while unknown, e.g. not connected yet
+    protected abstract InetSocketAddress remoteSocketAddress();
+
+    protected abstract InetSocketAddress localSocketAddress();
+
+    protected abstract long now();
+
+    protected abstract Cancellable schedule(final Runnable task, final long delayMillis);
+
+    protected abstract void interestRead(final boolean interested);
+
+    protected abstract void interestWrite(final boolean interested);
 
-        readBuffer = readPool.get();
-        writeBuffer = writePool.get();
-        frameBuffer = framePool.get();
+    protected abstract void resolveHost(final String host, final ResolveCallback callback);
+
+    // release the channel and whatever the engine keeps for it, buffers are returned by close
+    protected abstract void closeChannel();
+
+    protected final void start() {
+        lastActivityAt = now();
+        lastWriteAt = lastActivityAt;
+        scheduleActivityCheck(Math.min(
+                idleTimeoutNanos > 0 ? idleTimeoutNanos : Long.MAX_VALUE,
+                writeStallTimeoutNanos > 0 ? writeStallTimeoutNanos : Long.MAX_VALUE));
     }
 
-    void finishRead() {
+    protected final void finishRead() {
         readFlag = false;
-        selectionKey.interestOps(selectionKey.interestOps() & (~SelectionKey.OP_READ));
+        interestRead(false);
     }
 
-    void finishWrite() {
+    protected final boolean isReadReady() {
+        return readFlag;
+    }
+
+    protected final boolean isWriteReady() {
+        return writeFlag;
+    }
+
+    protected final void finishWrite() {
         writeFlag = false;
-        selectionKey.interestOps(selectionKey.interestOps() & (~SelectionKey.OP_WRITE));
+        interestWrite(false);
     }
 
-    void finishConnect() {
-        selectionKey.interestOps(selectionKey.interestOps() & (~SelectionKey.OP_CONNECT));
+    // everything queued has been written, run what the handler asked for after the write
+    protected final void finishFlush() {
+        finishWrite();
+
+        if (afterWriteCallbackFlag) {
+            afterWriteCallback.doCallback(arg);
+            afterWriteCallbackFlag = false;
+        }
+
+        if (readAfterWriteFlag) {
+            readyRead();
+            readAfterWriteFlag = false;
+        }
+
+        if (closeAfterWriteFlag) {
+            close();
+            closeAfterWriteFlag = false;
+        }
     }
 
-    boolean isCloseAfterWrite() {
-        return closeAfterWriteFlag;
+    protected final void scheduleDeadline(final int delayMillis, final Runnable task) {
+        cancelDeadline();
+        if (delayMillis > 0) {
+            deadlineTimeout = schedule(task, delayMillis);
+        }
     }
 
-    void finishCloseAfterWrite() {
-        closeAfterWriteFlag = false;
+    protected final void cancelDeadline() {
+        if (deadlineTimeout != null) {
+            deadlineTimeout.cancel();
+            deadlineTimeout = null;
+        }
     }
 
-    boolean isReadAfterWrite() {
-        return readAfterWriteFlag;
+    protected final void markRead() {
+        lastActivityAt = now();
     }
 
-    void finishReadAfterWrite() {
-        readAfterWriteFlag = false;
+    protected final void markWritten() {
+        lastActivityAt = now();
+        lastWriteAt = lastActivityAt;
     }
 
-    boolean isAfterWriteCallback() {
-        return afterWriteCallbackFlag;
+    // the read buffer leaves the context while an engine reads into it outside the context's owner
+    protected final ByteBuffer takeReadBuffer() {
+        final ByteBuffer byteBuffer = getReadBuffer();
+        readBuffer = null;
+        return byteBuffer;
     }
 
-    void finishAfterWriteCallback() {
-        afterWriteCallbackFlag = false;
+    // false if the context has been closed meanwhile, the buffer is then returned to the pool
+    protected final boolean putReadBuffer(final ByteBuffer byteBuffer) {
+        if (closeFlag) {
+            readPool.returnBack(byteBuffer);
+            return false;
+        }
+
+        readBuffer = byteBuffer;
+        wake();
+        return true;
     }
 
-    void afterWriteCallback() {
-        afterWriteCallback.doCallback(arg);
+    // fill dst with the buffers to write, oldest first, returns the count
+    protected final int gatherWriteBuffers(final ByteBuffer[] dst) {
+        if (writeQueue.isEmpty()) {
+            if (writeBuffer == null || writeBuffer.position() == 0) {
+                return 0;
+            }
+
+            // nothing sealed, write the current buffer in place
+            writeBuffer.flip();
+            dst[0] = writeBuffer;
+            return 1;
+        }
+
+        sealWriteBuffer();
+        int count = 0;
+        for (ByteBuffer byteBuffer : writeQueue) {
+            if (count == dst.length) break;
+            dst[count++] = byteBuffer;
+        }
+        return count;
+    }
+
+    protected final void gatherWriteDone(final ByteBuffer[] gathered, final long written) {
+        if (gathered[0] == writeBuffer) {
+            if (writeBuffer.hasRemaining()) {
+                // partially written, keep the rest in the queue, the next write takes a fresh buffer
+                writeQueue.add(writeBuffer);
+                queuedBytes += writeBuffer.remaining();
+                writeBuffer = null;
+                updateWritable();
+            } else {
+                writePool.refresh(writeBuffer);
+            }
+            return;
+        }
+
+        queuedBytes -= written;
+        ByteBuffer head;
+        while ((head = writeQueue.peek()) != null && !head.hasRemaining()) {
+            writeQueue.poll();
+            writePool.returnBack(head);
+        }
+        updateWritable();
+    }
+
+    // take the buffers to write out of the queue, for engines writing outside the context's owner
+    protected final int takeWriteBuffers(final ByteBuffer[] dst) {
+        sealWriteBuffer();
+        int count = 0;
+        while (count < dst.length && !writeQueue.isEmpty()) {
+            dst[count++] = writeQueue.poll();
+        }
+        return count;
+    }
+
+    // the taken buffers go back to the pool whether written or not, the connection is closed after a failed write
+    protected final void takenWriteDone(final ByteBuffer[] taken, final int count, final long written) {
+        for (int i = 0; i < count; i++) {
+            writePool.returnBack(taken[i]);
+            taken[i] = null;
+        }
+        if (closeFlag) return;
+
+        queuedBytes -= written;
+        updateWritable();
+    }
+
+    protected final boolean hasPendingWrite() {
+        return queuedBytes > 0 || !writeQueue.isEmpty() || (writeBuffer != null && writeBuffer.position() > 0);
+    }
+
+    protected final void resumeRelaySource() {
+        if (relaySource == null || !writable) {
+            return;
+        }
+
+        final CubeContext source = relaySource;
+        relaySource = null;
+        if (!source.isClosed()) {
+            source.readyRead();
+        }
     }
 
     public void readyRead() {
-        if (readFlag) {
+        if (readFlag || closeFlag) {
             return;
         }
 
         readFlag = true;
-        selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
-        readPool.refresh(readBuffer);
+        interestRead(true);
+        if (readBuffer != null) {
+            readPool.refresh(readBuffer);
+        }
     }
 
     public ByteBuffer readyWrite() {
+        armWrite();
+        return getWriteBuffer();
+    }
+
+    // a buffer with at least minRemaining bytes of room, the filled part of the current one is queued first
+    public ByteBuffer readyWrite(final int minRemaining) {
+        armWrite();
+        if (writeBuffer != null) {
+            if (writeBuffer.remaining() >= minRemaining) {
+                return writeBuffer;
+            }
+
+            sealWriteBuffer();
+            if (writeBuffer != null) {
+                // empty but too small, pools with size classes have a larger one
+                writePool.returnBack(writeBuffer);
+                writeBuffer = null;
+            }
+        }
+
+        writeCapacity = Math.max(writeCapacity, minRemaining);
+        if (getWriteBuffer().remaining() < minRemaining) {
+            throw new CubeRuntimeException("write buffer size too small, required: " + minRemaining);
+        }
+        return writeBuffer;
+    }
+
+    private void armWrite() {
+        if (closeFlag) {
+            // what a cancelled selection key does, handlers take it as the connection being gone
+            throw new CancelledKeyException();
+        }
         if (writeFlag) {
-            return writeBuffer;
+            return;
         }
 
         writeFlag = true;
-        selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
-        writePool.refresh(writeBuffer);
-        return writeBuffer;
+        interestWrite(true);
+        if (writeBuffer != null) {
+            writePool.refresh(writeBuffer);
+        }
+        lastWriteAt = now(); // the write stall clock starts when there is something to write
     }
 
     public void cancelReadyWrite() {
+        if (hasPendingWrite()) {
+            return;
+        }
         finishWrite();
     }
 
-    public CubeContext readyConnect(final SocketAddress remoteAddress) throws CubeConnectionException {
-        if (remoteAddress == null) throw new NullPointerException("remote SocketAddress can not be null");
-        CubeContext newCubeContext;
-        try {
-            newCubeContext = switcher.registerNew();
-        } catch (IOException e) {
-            logger.error("register new SocketChannel exception", e);
-            throw new CubeConnectionException("register new SocketChannel exception: " + e.getMessage(), e);
+    // queue the data relayed from source, source pauses reading while this context is not writable
+    public void relayWrite(final CubeContext source) {
+        if (closeFlag) return;
+
+        sealWriteBuffer();
+        if (!writable) {
+            relaySource = source;
+        } else {
+            source.readyRead();
+        }
+    }
+
+    // queue the read buffer of source as it is and give source a fresh one, false if the pools differ and the data must be copied
+    public boolean relayReadBuffer(final CubeContext source) {
+        if (source.readPool != writePool) return false;
+        if (closeFlag) return true;
+
+        armWrite();
+        sealWriteBuffer();
+
+        // source takes a fresh buffer when it reads again
+        final ByteBuffer data = source.readBuffer;
+        source.readBuffer = null;
+        if (data.hasRemaining()) {
+            writeQueue.add(data);
+            queuedBytes += data.remaining();
+            updateWritable();
+        } else {
+            writePool.returnBack(data);
         }
 
-        SelectionKey newSelectionKey = newCubeContext.selectionKey;
-        newSelectionKey.interestOps(newSelectionKey.interestOps() | SelectionKey.OP_CONNECT);
-        SocketChannel newSocketChannel = (SocketChannel) newSelectionKey.channel();
-        try {
-            newSocketChannel.connect(remoteAddress);
-        } catch (IOException e) {
-            newCubeContext.close();
-            throw new CubeConnectionException("SocketChannel connection IO exception: " + e.getMessage(), e);
+        if (!writable) {
+            relaySource = source;
+        } else {
+            source.readyRead();
+        }
+        return true;
+    }
+
+    private void sealWriteBuffer() {
+        if (writeBuffer == null || writeBuffer.position() == 0) {
+            return;
         }
 
-        return newCubeContext;
+        writeBuffer.flip();
+        writeQueue.add(writeBuffer);
+        queuedBytes += writeBuffer.remaining();
+        writeCapacity = writeBuffer.capacity();
+        writeBuffer = null;
+        updateWritable();
+    }
+
+    private void updateWritable() {
+        // hysteresis, not writable above the high watermark until drained to the low one
+        if (writable) {
+            if (queuedBytes > writeHighWatermark) writable = false;
+        } else if (queuedBytes <= writeLowWatermark) {
+            writable = true;
+        }
+    }
+
+    public int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public boolean isWritable() {
+        return writable;
+    }
+
+    public abstract CubeContext readyConnect(final SocketAddress remoteAddress) throws CubeConnectionException;
+
+    // resolve without blocking the engine, callback runs like an IO event unless the context is closed meanwhile
+    public void resolve(final String host, final ResolveCallback callback) {
+        if (host == null) throw new NullPointerException("host can not be null");
+        if (callback == null) throw new NullPointerException("callback can not be null");
+
+        resolveHost(host, (addresses, dnsException) -> {
+            if (closeFlag) return;
+
+            try {
+                callback.doCallback(addresses, dnsException);
+            } catch (CancelledKeyException e) {
+                logger.debug("connection is closed while handle resolve result");
+                close();
+            } catch (Exception e) {
+                logger.error("handle resolve result exception, connection will be closed", e);
+                close();
+            }
+        });
+    }
+
+    // the protocol handshake is over, the handshake deadline no longer applies
+    public void finishHandshake() {
+        cancelDeadline();
     }
 
     public void closeAfterWrite() {
@@ -167,14 +460,26 @@ public final class CubeContext {
     }
 
     public ByteBuffer getReadBuffer() {
+        if (readBuffer == null) {
+            wake();
+            readBuffer = readPool.get();
+        }
         return readBuffer;
     }
 
     public ByteBuffer getWriteBuffer() {
+        if (writeBuffer == null) {
+            wake();
+            writeBuffer = writePool.get(writeCapacity);
+        }
         return writeBuffer;
     }
 
     public ByteBuffer getFrameBuffer() {
+        if (frameBuffer == null) {
+            wake();
+            frameBuffer = framePool.get();
+        }
         return frameBuffer;
     }
 
@@ -182,17 +487,14 @@ public final class CubeContext {
         if (closeFlag) return;
         closeFlag = true;
 
-        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-
-        selectionKey.cancel();
-        selectionKey.attach(null); // help GC
-
-        try {
-            socketChannel.close();
-        } catch (IOException e) {
-            logger.error("closing SocketChannel IO exception", e);
+        cancelDeadline();
+        if (activityTimeout != null) {
+            activityTimeout.cancel();
+            activityTimeout = null;
         }
 
+        closeChannel();
+
         if (readBuffer != null) {
             readPool.returnBack(readBuffer);
             readBuffer = null;
@@ -203,6 +505,13 @@ public final class CubeContext {
             writeBuffer = null;
         }
 
+        ByteBuffer queued;
+        while ((queued = writeQueue.poll()) != null) {
+            writePool.returnBack(queued);
+        }
+        queuedBytes = 0;
+        relaySource = null;
+
         if (frameBuffer != null) {
             framePool.returnBack(frameBuffer);
             frameBuffer = null;
@@ -217,28 +526,117 @@ public final class CubeContext {
         }
     }
 
+    private void checkActivity() {
+        activityTimeout = null;
+        if (closeFlag) return;
+
+        final long now = now();
+        long next = Long.MAX_VALUE;
+        if (!hibernated && hibernateTimeoutNanos > 0) {
+            final long idle = now - lastActivityAt;
+            if (idle < hibernateTimeoutNanos) {
+                next = hibernateTimeoutNanos - idle;
+            } else if (!hibernate()) {
+                // something is still in the buffers, look again a period later
+                next = hibernateTimeoutNanos;
+            }
+        }
+
+        if (idleTimeoutNanos > 0) {
+            final long idle = now - lastActivityAt;
+            if (idle >= idleTimeoutNanos) {
+                logger.debug("idle timeout, connection will be closed");
+                close();
+                return;
+            }
+            next = Math.min(next, idleTimeoutNanos - idle);
+        }
+
+        if (writeStallTimeoutNanos > 0) {
+            // the peer stopped taking data, the queued buffers would be held forever
+            final long stall = hasPendingWrite() ? now - lastWriteAt : 0;
+            if (stall >= writeStallTimeoutNanos) {
+                logger.debug("write stall timeout, connection will be closed");
+                close();
+                return;
+            }
+            next = Math.min(next, writeStallTimeoutNanos - stall);
+        }
+
+        scheduleActivityCheck(next);
+    }
+
+    // give the buffers back to the pools, false if one of them still holds data
+    private boolean hibernate() {
+        // an armed read buffer has been cleared, a partial frame or unsent data must stay
+        if ((readBuffer != null && !readFlag)
+                || (frameBuffer != null && frameBuffer.position() > 0)
+                || hasPendingWrite()) {
+            return false;
+        }
+
+        if (readBuffer != null) {
+            readPool.returnBack(readBuffer);
+            readBuffer = null;
+        }
+        if (writeBuffer != null) {
+            writePool.returnBack(writeBuffer);
+            writeBuffer = null;
+        }
+        if (frameBuffer != null) {
+            framePool.returnBack(frameBuffer);
+            frameBuffer = null;
+        }
+        hibernated = true;
+        return true;
+    }
+
+    // a buffer is taken again, the activity check must come back in time to give it back
+    private void wake() {
+        if (!hibernated || closeFlag) {
+            return;
+        }
+
+        hibernated = false;
+        if (activityTimeout != null) {
+            if (activityCheckAt - now() <= hibernateTimeoutNanos) {
+                return;
+            }
+            activityTimeout.cancel();
+        }
+        scheduleActivityCheck(hibernateTimeoutNanos);
+    }
+
+    private void scheduleActivityCheck(final long delayNanos) {
+        if (delayNanos == Long.MAX_VALUE) {
+            return;
+        }
+        activityCheckAt = now() + delayNanos;
+        activityTimeout = schedule(activityCheck, TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1);
+    }
+
     public boolean isClosed() {
         return closeFlag;
     }
 
     public InetAddress getRemoteAddress() {
-        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-        return socketChannel.socket().getInetAddress();
+        final InetSocketAddress address = remoteSocketAddress();
+        return address != null ? address.getAddress() : null;
     }
 
     public int getRemotePort() {
-        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-        return socketChannel.socket().getPort();
+        final InetSocketAddress address = remoteSocketAddress();
+        return address != null ? address.getPort() : 0;
     }
 
     public InetAddress getLocalAddress() {
-        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-        return socketChannel.socket().getLocalAddress();
+        final InetSocketAddress address = localSocketAddress();
+        return address != null ? address.getAddress() : null;
     }
 
     public int getLocalPort() {
-        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-        return socketChannel.socket().getLocalPort();
+        final InetSocketAddress address = localSocketAddress();
+        return address != null ? address.getPort() : 0;
     }
 
     public void attach(final CloseableAttachment attachment) {
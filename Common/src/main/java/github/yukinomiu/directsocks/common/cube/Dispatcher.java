@@ -10,7 +10,9 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.*;
 import java.nio.channels.*;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -27,6 +29,12 @@ public final class Dispatcher implements LifeCycle {
     private final ServerSocketChannel serverSocketChannel;
     private final ServerSocket serverSocket;
 
+    // one listener per switcher sharing the bind address, the kernel spreads connections among them
+    private final List<ServerSocketChannel> shardChannels = new ArrayList<>();
+    private final InetSocketAddress bindSocketAddress;
+    private final int backlog;
+    private final SocketOption<Boolean> reusePortOption;
+
     private Thread dispatchThread;
 
     Dispatcher(final CubeConfig cubeConfig, final Docker docker) throws CubeInitException {
@@ -35,6 +43,36 @@ public final class Dispatcher implements LifeCycle {
 
         this.docker = docker;
 
+        InetAddress bindAddress = cubeConfig.getBindAddress();
+        int bindPort = cubeConfig.getBindPort();
+        bindSocketAddress = new InetSocketAddress(bindAddress, bindPort);
+        backlog = cubeConfig.getBacklog();
+
+        SocketOption<Boolean> option = null;
+        if (cubeConfig.getReusePort()) {
+            option = reusePortOption();
+            if (option == null) {
+                logger.warn("SO_REUSEPORT not supported by this runtime, falling back to single dispatcher thread");
+            }
+        }
+        reusePortOption = option;
+
+        if (reusePortOption != null) {
+            dispatcherSelector = null;
+            serverSocketChannel = null;
+            serverSocket = null;
+
+            try {
+                for (Switcher switcher : docker.getSwitchers()) {
+                    shard(switcher);
+                }
+            } catch (CubeInitException e) {
+                closeShardChannels();
+                throw e;
+            }
+            return;
+        }
+
         try {
             // init selector
             dispatcherSelector = Selector.open();
@@ -48,13 +86,9 @@ public final class Dispatcher implements LifeCycle {
         }
 
         // bind server socket
-        InetAddress bindAddress = cubeConfig.getBindAddress();
-        int bindPort = cubeConfig.getBindPort();
-        int backlog = cubeConfig.getBacklog();
-
         serverSocket = serverSocketChannel.socket();
         try {
-            serverSocket.bind(new InetSocketAddress(bindAddress, bindPort), backlog);
+            serverSocket.bind(bindSocketAddress, backlog);
         } catch (BindException e) {
             logger.error("bind local address exception: {}, the port {} may already in use", e.getMessage(), bindPort);
             throw new CubeInitException("bind local address exception", e);
@@ -108,9 +142,35 @@ public final class Dispatcher implements LifeCycle {
 
         Integer backlog = cubeConfig.getBacklog();
         if (backlog == null) throw new DispatcherInitException("backlog can not be null");
+
+        Boolean reusePort = cubeConfig.getReusePort();
+        if (reusePort == null) throw new DispatcherInitException("reuse port can not be null");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        // StandardSocketOptions.SO_REUSEPORT exists since Java 9, and not every platform supports it
+        final SocketOption<Boolean> option;
+        try {
+            option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return null;
+        }
+
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(option) ? option : null;
+        } catch (IOException e) {
+            return null;
+        }
     }
 
     private void startDispatcher() {
+        if (isSharded()) {
+            // switchers accept by themselves
+            logger.debug("{} switchers listening with SO_REUSEPORT", shardChannels.size());
+            return;
+        }
+
         dispatchThread = new Thread(() -> {
             logger.debug("start listening at address {}:{}", serverSocket.getInetAddress().getHostAddress(), serverSocket.getLocalPort());
 
@@ -167,9 +227,22 @@ public final class Dispatcher implements LifeCycle {
     }
 
     private void shutdownDispatcher() {
+        if (isSharded()) {
+            closeShardChannels();
+            return;
+        }
+
         if (dispatchThread != null) {
             dispatchThread.interrupt();
             dispatcherSelector.wakeup();
+
+            // no connection may be handed to the switchers once this returns
+            try {
+                dispatchThread.join();
+            } catch (InterruptedException e) {
+                logger.warn("interrupted while waiting dispatcher thread");
+                Thread.currentThread().interrupt();
+            }
         }
 
         try {
@@ -185,6 +258,45 @@ public final class Dispatcher implements LifeCycle {
         }
     }
 
+    boolean isSharded() {
+        return reusePortOption != null;
+    }
+
+    // bind a listener of the switcher itself, must be called before the switcher starts
+    void shard(final Switcher switcher) throws CubeInitException {
+        final int bindPort = bindSocketAddress.getPort();
+        try {
+            ServerSocketChannel shardChannel = ServerSocketChannel.open();
+            synchronized (shardChannels) {
+                shardChannels.add(shardChannel);
+            }
+
+            shardChannel.configureBlocking(false);
+            shardChannel.setOption(reusePortOption, true);
+            shardChannel.bind(bindSocketAddress, backlog);
+            switcher.listen(shardChannel);
+        } catch (BindException e) {
+            logger.error("bind local address exception: {}, the port {} may already in use", e.getMessage(), bindPort);
+            throw new CubeInitException("bind local address exception", e);
+        } catch (IOException e) {
+            logger.error("bind IO exception", e);
+            throw new CubeInitException("bind IO exception", e);
+        }
+    }
+
+    private void closeShardChannels() {
+        synchronized (shardChannels) {
+            for (ServerSocketChannel shardChannel : shardChannels) {
+                try {
+                    shardChannel.close();
+                } catch (IOException e) {
+                    logger.error("closing ServerSocketChannel IO exception", e);
+                }
+            }
+            shardChannels.clear();
+        }
+    }
+
     private void accept(final SelectionKey selectionKey) {
         ServerSocketChannel serverSocketChannel = (ServerSocketChannel) selectionKey.channel();
         try {
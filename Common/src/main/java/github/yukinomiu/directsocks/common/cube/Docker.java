@@ -2,14 +2,19 @@ package github.yukinomiu.directsocks.common.cube;
 
 import github.yukinomiu.directsocks.common.cube.api.LifeCycle;
 import github.yukinomiu.directsocks.common.cube.api.NioHandle;
+import github.yukinomiu.directsocks.common.cube.api.PlacementPolicy;
 import github.yukinomiu.directsocks.common.cube.cachepool.ByteBufferCachePool;
-import github.yukinomiu.directsocks.common.cube.cachepool.SimpleByteBufferCachePool;
 import github.yukinomiu.directsocks.common.cube.exception.CubeStateException;
 import github.yukinomiu.directsocks.common.cube.exception.DokerInitException;
+import github.yukinomiu.directsocks.common.cube.exception.SwitcherInitException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Yukinomiu
@@ -20,28 +25,40 @@ public final class Docker implements LifeCycle {
 
     private LifeCycle.State state;
 
+    private final BufferPools bufferPools;
     private final ByteBufferCachePool readPool;
     private final ByteBufferCachePool writePool;
     private final ByteBufferCachePool framePool;
 
-    private final int workerCount;
-    private final Switcher[] switchers;
+    private final CubeConfig cubeConfig;
+    private final NioHandle nioHandle;
+    private final PlacementPolicy placementPolicy;
 
-    private int next = 0;
+    // copy on write, read by the accepting thread without locking
+    private volatile Switcher[] switchers;
+    private final List<Switcher> retiredSwitchers = new ArrayList<>();
+    // set once drain starts, the switchers are all retired from then on
+    private boolean draining;
 
-    Docker(final CubeConfig cubeConfig, final NioHandle nioHandle) throws DokerInitException {
+    Docker(final CubeConfig cubeConfig, final NioHandle nioHandle, final BufferPools bufferPools) throws DokerInitException {
         state = LifeCycle.State.NEW;
         checkConfig(cubeConfig);
 
-        readPool = new SimpleByteBufferCachePool(cubeConfig.getReadBufferSize(), cubeConfig.getReadPoolSize());
-        writePool = new SimpleByteBufferCachePool(cubeConfig.getWriteBufferSize(), cubeConfig.getWritePoolSize());
-        framePool = new SimpleByteBufferCachePool(cubeConfig.getFrameBufferSize(), cubeConfig.getFramePoolSize());
+        this.bufferPools = bufferPools;
+        readPool = bufferPools.getReadPool();
+        writePool = bufferPools.getWritePool();
+        framePool = bufferPools.getFramePool();
 
-        workerCount = cubeConfig.getWorkerCount();
-        switchers = new Switcher[workerCount];
+        this.cubeConfig = cubeConfig;
+        this.nioHandle = nioHandle;
+        placementPolicy = cubeConfig.getPlacementPolicy();
+
+        final int workerCount = cubeConfig.getWorkerCount();
+        final Switcher[] initSwitchers = new Switcher[workerCount];
         for (int i = 0; i < workerCount; i++) {
-            switchers[i] = new Switcher(cubeConfig, nioHandle, readPool, writePool, framePool);
+            initSwitchers[i] = new Switcher(cubeConfig, nioHandle, readPool, writePool, framePool);
         }
+        switchers = initSwitchers;
     }
 
     @Override
@@ -69,36 +86,20 @@ public final class Docker implements LifeCycle {
     private void checkConfig(final CubeConfig cubeConfig) throws DokerInitException {
         if (cubeConfig == null) throw new DokerInitException("config can not be null");
 
-        if (cubeConfig.getReadBufferSize() == null) throw new DokerInitException("read buffer size can not be null");
-        if (cubeConfig.getReadBufferSize() < 1024 || cubeConfig.getReadBufferSize() > 65538)
-            throw new DokerInitException("read buffer size must in range 1024-65538");
-
-        if (cubeConfig.getReadPoolSize() == null) throw new DokerInitException("read pool size can not be null");
-        if (cubeConfig.getReadPoolSize() < 8) throw new DokerInitException("read pool size can not be less than 8");
-
-        if (cubeConfig.getWriteBufferSize() == null) throw new DokerInitException("write buffer size can not be null");
-        if (cubeConfig.getWriteBufferSize() < 1024 || cubeConfig.getWriteBufferSize() > 65538)
-            throw new DokerInitException("write buffer size must in range 1024-65538");
-
-        if (cubeConfig.getWritePoolSize() == null) throw new DokerInitException("write pool size can not be null");
-        if (cubeConfig.getWritePoolSize() < 8) throw new DokerInitException("write pool size can not be less than 8");
-
-        if (cubeConfig.getFrameBufferSize() == null) throw new DokerInitException("frame buffer size can not be null");
-        if (cubeConfig.getFrameBufferSize() < 1024 || cubeConfig.getFrameBufferSize() > 65538)
-            throw new DokerInitException("frame buffer size must in range 1024-65538");
-
-        if (cubeConfig.getFramePoolSize() == null) throw new DokerInitException("frame pool size can not be null");
-        if (cubeConfig.getFramePoolSize() < 8) throw new DokerInitException("frame pool size can not be less than 8");
-
         Integer workerCount = cubeConfig.getWorkerCount();
         if (workerCount == null) throw new DokerInitException("worker count can not be null");
-        if (workerCount < 1 || workerCount > 16) throw new DokerInitException("worker count must in range 1-16");
+        if (workerCount < 1) throw new DokerInitException("worker count can not be less than 1");
+
+        PlacementPolicy placementPolicy = cubeConfig.getPlacementPolicy();
+        if (placementPolicy == null) throw new DokerInitException("placement policy can not be null");
+
+        Integer drainTimeout = cubeConfig.getDrainTimeout();
+        if (drainTimeout == null) throw new DokerInitException("drain timeout can not be null");
+        if (drainTimeout < 0) throw new DokerInitException("drain timeout can not be less than 0");
     }
 
     private void startDocker() {
-        readPool.start();
-        writePool.start();
-        framePool.start();
+        bufferPools.start();
 
         for (Switcher switcher : switchers) {
             switcher.start();
@@ -107,23 +108,123 @@ public final class Docker implements LifeCycle {
 
     private void shutdownDocker() {
         for (Switcher switcher : switchers) {
+            logger.debug("{}", switcher);
+            switcher.shutdown();
+        }
+
+        for (Switcher switcher : retiredSwitchers) {
             switcher.shutdown();
         }
+        retiredSwitchers.clear();
+
+        bufferPools.shutdown();
+    }
+
+    List<ByteBufferCachePool> getBufferPools() {
+        return bufferPools.list();
+    }
+
+    Switcher[] getSwitchers() {
+        return switchers;
+    }
+
+    Switcher newSwitcher() throws SwitcherInitException {
+        return new Switcher(cubeConfig, nioHandle, readPool, writePool, framePool);
+    }
+
+    synchronized void addSwitcher(final Switcher switcher) {
+        if (state != State.RUNNING || draining) throw new CubeStateException();
+
+        switcher.start();
+
+        final Switcher[] current = switchers;
+        final Switcher[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = switcher;
+        switchers = next;
+        logger.debug("Switcher added, worker count: {}", next.length);
+    }
+
+    // the last switcher takes no new connection and stops by itself after its connections are closed
+    synchronized boolean retireSwitcher() {
+        if (state != State.RUNNING || draining) throw new CubeStateException();
+
+        final Switcher[] current = switchers;
+        if (current.length <= 1) {
+            return false;
+        }
+
+        final Switcher switcher = current[current.length - 1];
+        switchers = Arrays.copyOf(current, current.length - 1);
+        switcher.retire();
+
+        // forget the ones which have already stopped
+        retiredSwitchers.removeIf(retired -> !retired.isAlive());
+        retiredSwitchers.add(switcher);
+        logger.debug("Switcher retiring, worker count: {}", current.length - 1);
+        return true;
+    }
+
+    // retire every switcher and wait for them to stop, returns the connections still open at the deadline
+    int drain(final long timeoutMillis) {
+        // the monitor is only held to retire and snapshot, the connection count stays readable while waiting
+        final List<Switcher> stopping;
+        synchronized (this) {
+            if (state != State.RUNNING || draining) throw new CubeStateException();
+            draining = true;
+
+            for (Switcher switcher : switchers) {
+                switcher.retire();
+            }
+            stopping = new ArrayList<>(Arrays.asList(switchers));
+            stopping.addAll(retiredSwitchers);
+        }
+        logger.info("draining {} connections, waiting up to {}ms", getConnectionCount(), timeoutMillis);
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            for (Switcher switcher : stopping) {
+                switcher.awaitStop(deadline);
+            }
+        } catch (InterruptedException e) {
+            logger.warn("interrupted while draining");
+            Thread.currentThread().interrupt();
+        }
+
+        final int remaining = getConnectionCount();
+        if (remaining > 0) {
+            logger.warn("drain timeout, {} connections remain and will be closed", remaining);
+        } else {
+            logger.info("all connections drained");
+        }
+        return remaining;
+    }
 
-        readPool.shutdown();
-        writePool.shutdown();
-        framePool.shutdown();
+    synchronized int getConnectionCount() {
+        int count = 0;
+        for (Switcher switcher : switchers) {
+            if (switcher.isAlive()) count += switcher.getConnectionCount();
+        }
+        for (Switcher switcher : retiredSwitchers) {
+            if (switcher.isAlive()) count += switcher.getConnectionCount();
+        }
+        return count;
     }
 
-    private Switcher selectSwitcher() {
-        if (next == workerCount) {
-            next = 0;
+    synchronized List<Switcher> getRetiringSwitchers() {
+        final List<Switcher> retiring = new ArrayList<>();
+        for (Switcher switcher : retiredSwitchers) {
+            if (switcher.isAlive()) retiring.add(switcher);
         }
-        return switchers[next++];
+        return retiring;
     }
 
     void accept(final SocketChannel socketChannel) {
-        Switcher targetSwitcher = selectSwitcher();
-        targetSwitcher.accept(socketChannel);
+        // a switcher may retire between selection and handoff, retry on the current switchers then
+        while (true) {
+            Switcher targetSwitcher = placementPolicy.select(switchers);
+            if (targetSwitcher.accept(socketChannel)) {
+                return;
+            }
+        }
     }
 }
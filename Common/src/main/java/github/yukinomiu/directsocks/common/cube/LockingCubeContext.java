@@ -0,0 +1,142 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.Cancellable;
+import github.yukinomiu.directsocks.common.cube.dns.ResolveCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+abstract class LockingCubeContext extends CubeContext {
+    private static final Logger logger = LoggerFactory.getLogger(LockingCubeContext.class);
+
+    private final LockingEngine engine;
+
+    // shared by the contexts of one relay, a handler touches both sides so they must not run at once
+    private final ReentrantLock lock;
+    // IO operations and threads not ended yet, the context is released when the last one ends after close
+    private int pendingIo;
+
+    // everything runs inside enter and exit: handlers, timeouts, resolve results and IO completions
+    LockingCubeContext(final LockingEngine engine, final LockingCubeContext session) {
+        super(engine.bufferPools.getReadPool(), engine.bufferPools.getWritePool(), engine.bufferPools.getFramePool(),
+                engine.cubeConfig.getWriteHighWatermark(), engine.cubeConfig.getWriteLowWatermark(),
+                engine.cubeConfig.getIdleTimeout(), engine.cubeConfig.getWriteStallTimeout(),
+                engine.cubeConfig.getHibernateTimeout());
+
+        this.engine = engine;
+        lock = session != null ? session.lock : new ReentrantLock();
+    }
+
+    final void enter() {
+        lock.lock();
+    }
+
+    void exit() {
+        lock.unlock();
+    }
+
+    // the outermost enter of the current thread, nested ones come from IO completing on the thread issuing it
+    final boolean isOutermost() {
+        return lock.getHoldCount() == 1;
+    }
+
+    final Condition newCondition() {
+        return lock.newCondition();
+    }
+
+    // close from a thread of neither side of the relay
+    final void closeAsync() {
+        enter();
+        try {
+            close();
+        } finally {
+            exit();
+        }
+    }
+
+    final void ioStarted() {
+        pendingIo++;
+    }
+
+    final void ioEnded() {
+        pendingIo--;
+        if (pendingIo == 0 && isClosed()) {
+            engine.released(this);
+        }
+    }
+
+    // IO in flight on the channel must fail and end soon after this
+    abstract void closeIo();
+
+    @Override
+    protected final long now() {
+        return System.nanoTime();
+    }
+
+    @Override
+    protected final Cancellable schedule(final Runnable task, final long delayMillis) {
+        final LockedTask lockedTask = new LockedTask(task);
+        lockedTask.future = engine.schedule(lockedTask, delayMillis);
+        return lockedTask;
+    }
+
+    @Override
+    protected final void resolveHost(final String host, final ResolveCallback callback) {
+        engine.resolve(host, (addresses, dnsException) -> {
+            enter();
+            try {
+                callback.doCallback(addresses, dnsException);
+            } finally {
+                exit();
+            }
+        });
+    }
+
+    @Override
+    protected final void closeChannel() {
+        engine.connectionClosed();
+        closeIo();
+        if (pendingIo == 0) {
+            engine.released(this);
+        }
+    }
+
+    // a timeout of this context, skipped if cancelled while it waited for the lock
+    private final class LockedTask implements Runnable, Cancellable {
+        private final Runnable task;
+        private ScheduledFuture<?> future;
+        private boolean cancelled;
+
+        private LockedTask(final Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            enter();
+            try {
+                if (!cancelled) {
+                    task.run();
+                }
+            } catch (Exception e) {
+                logger.error("timeout task exception, connection will be closed", e);
+                close();
+            } finally {
+                exit();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            future.cancel(false);
+        }
+    }
+}
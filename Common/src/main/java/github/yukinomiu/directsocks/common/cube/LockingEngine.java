@@ -0,0 +1,267 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.NioHandle;
+import github.yukinomiu.directsocks.common.cube.api.Transport;
+import github.yukinomiu.directsocks.common.cube.cachepool.ByteBufferCachePool;
+import github.yukinomiu.directsocks.common.cube.dns.ResolveCallback;
+import github.yukinomiu.directsocks.common.cube.exception.CubeInitException;
+import github.yukinomiu.directsocks.common.cube.exception.DnsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.Channel;
+import java.nio.channels.NetworkChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+// engines whose connections are driven by any thread holding the relay lock, timeouts run on a shared timer
+abstract class LockingEngine implements Transport {
+    private static final Logger logger = LoggerFactory.getLogger(LockingEngine.class);
+
+    private static final int POOL_TRIM_INTERVAL_MILLIS = 1000;
+    private static final long POLL_MILLIS = 50;
+    // IO in flight ends once its channel is closed, this only guards against a stuck handler
+    private static final long RELEASE_TIMEOUT_MILLIS = 5000;
+
+    private final String name;
+    final CubeConfig cubeConfig;
+    final NioHandle nioHandle;
+    final BufferPools bufferPools;
+
+    // timeouts of every connection, the tasks take the connection lock
+    private final ScheduledThreadPoolExecutor timer;
+
+    // contexts until their IO has ended, their buffers are back in the pools then
+    private final Set<LockingCubeContext> contexts = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    LockingEngine(final String name, final CubeConfig cubeConfig, final NioHandle nioHandle, final BufferPools bufferPools) throws CubeInitException {
+        checkConfig(cubeConfig);
+
+        this.name = name;
+        this.cubeConfig = cubeConfig;
+        this.nioHandle = nioHandle;
+        this.bufferPools = bufferPools;
+
+        timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "cube timer thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private void checkConfig(final CubeConfig cubeConfig) throws CubeInitException {
+        InetAddress bindAddress = cubeConfig.getBindAddress();
+        if (bindAddress == null) throw new CubeInitException("bind address can not be null");
+
+        Integer bindPort = cubeConfig.getBindPort();
+        if (bindPort == null) throw new CubeInitException("bind port can not be null");
+        if (bindPort < 1 || bindPort > 65535) throw new CubeInitException("bind port must in range 1-65535");
+
+        Integer backlog = cubeConfig.getBacklog();
+        if (backlog == null) throw new CubeInitException("backlog can not be null");
+
+        Boolean tcpNoDelay = cubeConfig.getTcpNoDelay();
+        if (tcpNoDelay == null) throw new CubeInitException("TcpNoDelay can not be null");
+
+        Boolean tcpKeepAlive = cubeConfig.getTcpKeepAlive();
+        if (tcpKeepAlive == null) throw new CubeInitException("TcpKeepAlive can not be null");
+
+        Integer writeHighWatermark = cubeConfig.getWriteHighWatermark();
+        if (writeHighWatermark == null) throw new CubeInitException("write high watermark can not be null");
+        if (writeHighWatermark < 0) throw new CubeInitException("write high watermark can not be less than 0");
+
+        Integer writeLowWatermark = cubeConfig.getWriteLowWatermark();
+        if (writeLowWatermark == null) throw new CubeInitException("write low watermark can not be null");
+        if (writeLowWatermark < 0 || writeLowWatermark > writeHighWatermark)
+            throw new CubeInitException("write low watermark must in range 0-" + writeHighWatermark);
+
+        Integer handshakeTimeout = cubeConfig.getHandshakeTimeout();
+        if (handshakeTimeout == null) throw new CubeInitException("handshake timeout can not be null");
+        if (handshakeTimeout < 0) throw new CubeInitException("handshake timeout can not be less than 0");
+
+        Integer connectTimeout = cubeConfig.getConnectTimeout();
+        if (connectTimeout == null) throw new CubeInitException("connect timeout can not be null");
+        if (connectTimeout < 0) throw new CubeInitException("connect timeout can not be less than 0");
+
+        Integer idleTimeout = cubeConfig.getIdleTimeout();
+        if (idleTimeout == null) throw new CubeInitException("idle timeout can not be null");
+        if (idleTimeout < 0) throw new CubeInitException("idle timeout can not be less than 0");
+
+        Integer writeStallTimeout = cubeConfig.getWriteStallTimeout();
+        if (writeStallTimeout == null) throw new CubeInitException("write stall timeout can not be null");
+        if (writeStallTimeout < 0) throw new CubeInitException("write stall timeout can not be less than 0");
+
+        Integer hibernateTimeout = cubeConfig.getHibernateTimeout();
+        if (hibernateTimeout == null) throw new CubeInitException("hibernate timeout can not be null");
+        if (hibernateTimeout < 0) throw new CubeInitException("hibernate timeout can not be less than 0");
+
+        Integer drainTimeout = cubeConfig.getDrainTimeout();
+        if (drainTimeout == null) throw new CubeInitException("drain timeout can not be null");
+        if (drainTimeout < 0) throw new CubeInitException("drain timeout can not be less than 0");
+    }
+
+    // accept until stopAccepting
+    abstract void startAccepting();
+
+    // no connection may be accepted once this returns
+    abstract void stopAccepting();
+
+    // every context has been released, stop what the engine runs IO on
+    abstract void stopIo();
+
+    // run a task which may block for long, off the threads doing IO
+    abstract void executeBlocking(final Runnable task);
+
+    @Override
+    public void start() {
+        bufferPools.start();
+        timer.scheduleWithFixedDelay(bufferPools::trim, POOL_TRIM_INTERVAL_MILLIS, POOL_TRIM_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        startAccepting();
+        logger.debug("{} started", name);
+    }
+
+    @Override
+    public int shutdown(final long drainTimeoutMillis) {
+        stopAccepting();
+
+        int remaining = connectionCount.get();
+        if (drainTimeoutMillis > 0 && remaining > 0) {
+            logger.info("draining {} connections, waiting up to {}ms", remaining, drainTimeoutMillis);
+            remaining = awaitConnections(drainTimeoutMillis);
+            if (remaining > 0) {
+                logger.warn("drain timeout, {} connections remain and will be closed", remaining);
+            } else {
+                logger.info("all connections drained");
+            }
+        }
+
+        for (LockingCubeContext cubeContext : contexts) {
+            cubeContext.closeAsync();
+        }
+        // buffers in flight are returned as the IO on them ends
+        final boolean released = awaitReleased(RELEASE_TIMEOUT_MILLIS);
+
+        stopIo();
+        timer.shutdownNow();
+        if (released) {
+            bufferPools.shutdown();
+        } else {
+            // IO may still touch its buffers, freeing direct memory under it is unsafe, the pools are left to GC
+            logger.warn("{} connections still have IO in flight, buffer pools are left to GC", contexts.size());
+        }
+        logger.debug("{} closed", name);
+        return remaining;
+    }
+
+    @Override
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    @Override
+    public List<ByteBufferCachePool> getBufferPools() {
+        return bufferPools.list();
+    }
+
+    ScheduledFuture<?> schedule(final Runnable task, final long delayMillis) {
+        return timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // system resolver, the DNS servers of the config only serve the selector engine
+    void resolve(final String host, final ResolveCallback callback) {
+        executeBlocking(() -> {
+            InetAddress[] addresses = null;
+            DnsException dnsException = null;
+            try {
+                addresses = InetAddress.getAllByName(host);
+            } catch (UnknownHostException e) {
+                dnsException = new DnsException("host not found: " + host, true);
+            } catch (Exception e) {
+                dnsException = new DnsException("resolving " + host + " fail: " + e.getMessage(), e);
+            }
+            callback.doCallback(addresses, dnsException);
+        });
+    }
+
+    void register(final LockingCubeContext cubeContext) {
+        contexts.add(cubeContext);
+        connectionCount.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        connectionCount.decrementAndGet();
+    }
+
+    void released(final LockingCubeContext cubeContext) {
+        contexts.remove(cubeContext);
+    }
+
+    void configOptions(final NetworkChannel channel) throws IOException {
+        if (cubeConfig.getTcpNoDelay()) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+
+        if (cubeConfig.getTcpKeepAlive()) {
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        }
+    }
+
+    // the listening channel failed to bind, closes it and gives the exception to throw
+    CubeInitException bindFailed(final Channel channel, final IOException e) {
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            logger.error("closing listening channel IO exception", ioe);
+        }
+
+        if (e instanceof BindException) {
+            logger.error("bind local address exception: {}, the port {} may already in use", e.getMessage(), cubeConfig.getBindPort());
+            return new CubeInitException("bind local address exception", e);
+        }
+        logger.error("bind IO exception", e);
+        return new CubeInitException("bind IO exception", e);
+    }
+
+    private int awaitConnections(final long timeoutMillis) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (connectionCount.get() > 0 && deadline - System.nanoTime() > 0) {
+                Thread.sleep(POLL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            logger.warn("interrupted while draining");
+            Thread.currentThread().interrupt();
+        }
+        return connectionCount.get();
+    }
+
+    private boolean awaitReleased(final long timeoutMillis) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (!contexts.isEmpty() && deadline - System.nanoTime() > 0) {
+                Thread.sleep(POLL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            logger.warn("interrupted while waiting connections to close");
+            Thread.currentThread().interrupt();
+        }
+        return contexts.isEmpty();
+    }
+}
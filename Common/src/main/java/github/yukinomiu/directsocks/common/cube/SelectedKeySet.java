@@ -0,0 +1,111 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+// the selected keys of a selector as a plain array, no hashing on select and no iterator per loop turn
+final class SelectedKeySet extends AbstractSet<SelectionKey> {
+    private static final Logger logger = LoggerFactory.getLogger(SelectedKeySet.class);
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private SelectionKey[] keys = new SelectionKey[INITIAL_CAPACITY];
+    private int size;
+
+    private SelectedKeySet() {
+    }
+
+    // swaps the key sets of a JDK selector for one of these, null if the runtime does not let us
+    // (Java 9+ needs --add-opens java.base/sun.nio.ch=ALL-UNNAMED)
+    static SelectedKeySet install(final Selector selector) {
+        try {
+            final Class<?> selectorImplClass = Class.forName("sun.nio.ch.SelectorImpl", false, ClassLoader.getSystemClassLoader());
+            if (!selectorImplClass.isInstance(selector)) {
+                logger.debug("selector {} is not a JDK one, selected keys left as they are", selector.getClass().getName());
+                return null;
+            }
+
+            final Field selectedKeysField = selectorImplClass.getDeclaredField("selectedKeys");
+            final Field publicSelectedKeysField = selectorImplClass.getDeclaredField("publicSelectedKeys");
+            selectedKeysField.setAccessible(true);
+            publicSelectedKeysField.setAccessible(true);
+
+            final SelectedKeySet selectedKeySet = new SelectedKeySet();
+            selectedKeysField.set(selector, selectedKeySet);
+            publicSelectedKeysField.set(selector, selectedKeySet);
+            return selectedKeySet;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("can not replace the selected keys of the selector: {}", e.toString());
+            return null;
+        }
+    }
+
+    // the selector only adds, keys are reset after every loop turn so it never finds one already in
+    @Override
+    public boolean add(final SelectionKey selectionKey) {
+        if (selectionKey == null) {
+            return false;
+        }
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+        }
+        keys[size++] = selectionKey;
+        return true;
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        return false;
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    SelectionKey get(final int index) {
+        return keys[index];
+    }
+
+    // a key not handled is selected again, the selector is level triggered
+    void reset() {
+        Arrays.fill(keys, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public Iterator<SelectionKey> iterator() {
+        return new Iterator<SelectionKey>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public SelectionKey next() {
+                if (index >= size) throw new NoSuchElementException();
+                return keys[index++];
+            }
+        };
+    }
+}
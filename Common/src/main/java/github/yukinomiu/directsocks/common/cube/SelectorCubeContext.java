@@ -0,0 +1,147 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.Cancellable;
+import github.yukinomiu.directsocks.common.cube.cachepool.ByteBufferCachePool;
+import github.yukinomiu.directsocks.common.cube.dns.ResolveCallback;
+import github.yukinomiu.directsocks.common.cube.exception.CubeConnectionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+final class SelectorCubeContext extends CubeContext {
+    private static final Logger logger = LoggerFactory.getLogger(SelectorCubeContext.class);
+
+    private final Switcher switcher;
+    private final SelectionKey selectionKey;
+    // in the switcher's flush queue
+    private boolean flushQueued;
+
+    SelectorCubeContext(final Switcher switcher,
+                        final SelectionKey selectionKey,
+                        final ByteBufferCachePool readPool,
+                        final ByteBufferCachePool writePool,
+                        final ByteBufferCachePool framePool,
+                        final int writeHighWatermark,
+                        final int writeLowWatermark,
+                        final int idleTimeout,
+                        final int writeStallTimeout,
+                        final int hibernateTimeout) {
+
+        super(readPool, writePool, framePool, writeHighWatermark, writeLowWatermark,
+                idleTimeout, writeStallTimeout, hibernateTimeout);
+        this.switcher = switcher;
+        this.selectionKey = selectionKey;
+    }
+
+    SelectionKey selectionKey() {
+        return selectionKey;
+    }
+
+    // false if already queued
+    boolean queueFlush() {
+        if (flushQueued) return false;
+        flushQueued = true;
+        return true;
+    }
+
+    void flushDequeued() {
+        flushQueued = false;
+    }
+
+    void finishConnect() {
+        selectionKey.interestOps(selectionKey.interestOps() & (~SelectionKey.OP_CONNECT));
+    }
+
+    @Override
+    protected InetSocketAddress remoteSocketAddress() {
+        return (InetSocketAddress) ((SocketChannel) selectionKey.channel()).socket().getRemoteSocketAddress();
+    }
+
+    @Override
+    protected InetSocketAddress localSocketAddress() {
+        return (InetSocketAddress) ((SocketChannel) selectionKey.channel()).socket().getLocalSocketAddress();
+    }
+
+    @Override
+    protected long now() {
+        return switcher.now();
+    }
+
+    @Override
+    protected Cancellable schedule(final Runnable task, final long delayMillis) {
+        return switcher.schedule(task, delayMillis);
+    }
+
+    @Override
+    protected void interestRead(final boolean interested) {
+        if (interested) {
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+        } else {
+            selectionKey.interestOps(selectionKey.interestOps() & (~SelectionKey.OP_READ));
+        }
+    }
+
+    @Override
+    protected void interestWrite(final boolean interested) {
+        if (interested) {
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+            switcher.flushLater(this);
+        } else {
+            selectionKey.interestOps(selectionKey.interestOps() & (~SelectionKey.OP_WRITE));
+        }
+    }
+
+    @Override
+    protected void resolveHost(final String host, final ResolveCallback callback) {
+        switcher.resolve(host, callback);
+    }
+
+    @Override
+    protected void closeChannel() {
+        switcher.connectionClosed();
+
+        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
+
+        selectionKey.cancel();
+        selectionKey.attach(null); // help GC
+
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            logger.error("closing SocketChannel IO exception", e);
+        }
+    }
+
+    @Override
+    public CubeContext readyConnect(final SocketAddress remoteAddress) throws CubeConnectionException {
+        if (remoteAddress == null) throw new NullPointerException("remote SocketAddress can not be null");
+        SelectorCubeContext newCubeContext;
+        try {
+            newCubeContext = switcher.registerNew();
+        } catch (IOException e) {
+            logger.error("register new SocketChannel exception", e);
+            throw new CubeConnectionException("register new SocketChannel exception: " + e.getMessage(), e);
+        }
+
+        SelectionKey newSelectionKey = newCubeContext.selectionKey;
+        newSelectionKey.interestOps(newSelectionKey.interestOps() | SelectionKey.OP_CONNECT);
+        SocketChannel newSocketChannel = (SocketChannel) newSelectionKey.channel();
+        try {
+            newSocketChannel.connect(remoteAddress);
+        } catch (IOException e) {
+            newCubeContext.close();
+            throw new CubeConnectionException("SocketChannel connection IO exception: " + e.getMessage(), e);
+        }
+
+        return newCubeContext;
+    }
+}
@@ -0,0 +1,55 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.NioHandle;
+import github.yukinomiu.directsocks.common.cube.api.Transport;
+import github.yukinomiu.directsocks.common.cube.cachepool.ByteBufferCachePool;
+import github.yukinomiu.directsocks.common.cube.exception.CubeInitException;
+
+import java.util.List;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+final class SelectorEngine implements Transport {
+    private final Dispatcher dispatcher;
+    private final Docker docker;
+
+    // non-blocking channels multiplexed by the switchers, one selector thread each
+    SelectorEngine(final CubeConfig cubeConfig, final NioHandle nioHandle, final BufferPools bufferPools) throws CubeInitException {
+        docker = new Docker(cubeConfig, nioHandle, bufferPools);
+        dispatcher = new Dispatcher(cubeConfig, docker);
+    }
+
+    @Override
+    public void start() {
+        docker.start();
+        dispatcher.start();
+    }
+
+    @Override
+    public int shutdown(final long drainTimeoutMillis) {
+        dispatcher.shutdown();
+        final int remaining = drainTimeoutMillis > 0 ? docker.drain(drainTimeoutMillis) : docker.getConnectionCount();
+        docker.shutdown();
+        return remaining;
+    }
+
+    @Override
+    public int getConnectionCount() {
+        return docker.getConnectionCount();
+    }
+
+    @Override
+    public List<ByteBufferCachePool> getBufferPools() {
+        return docker.getBufferPools();
+    }
+
+    Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    Docker getDocker() {
+        return docker;
+    }
+}
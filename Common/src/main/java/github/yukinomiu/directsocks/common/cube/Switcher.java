@@ -3,6 +3,8 @@ package github.yukinomiu.directsocks.common.cube;
 import github.yukinomiu.directsocks.common.cube.api.LifeCycle;
 import github.yukinomiu.directsocks.common.cube.api.NioHandle;
 import github.yukinomiu.directsocks.common.cube.cachepool.ByteBufferCachePool;
+import github.yukinomiu.directsocks.common.cube.dns.DnsResolver;
+import github.yukinomiu.directsocks.common.cube.dns.ResolveCallback;
 import github.yukinomiu.directsocks.common.cube.exception.CubeConnectionException;
 import github.yukinomiu.directsocks.common.cube.exception.CubeStateException;
 import github.yukinomiu.directsocks.common.cube.exception.SwitcherInitException;
@@ -10,13 +12,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Yukinomiu
@@ -25,6 +34,15 @@ import java.util.concurrent.locks.ReentrantLock;
 public final class Switcher implements LifeCycle {
     private static Logger logger = LoggerFactory.getLogger(Switcher.class);
 
+    private static final int MAX_ACCEPT_PER_EVENT = 64;
+    private static final int MAX_GATHER = 64;
+    private static final long LOAD_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    // 100ms * 512 slots, longer timeouts take extra rounds
+    private static final int TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
+    // the pools free idle buffers on their own schedule, this only gives them the chance
+    private static final int POOL_TRIM_INTERVAL_MILLIS = 1000;
+
     private LifeCycle.State state;
 
     private final CubeConfig cubeConfig;
@@ -33,12 +51,44 @@ public final class Switcher implements LifeCycle {
     private final ByteBufferCachePool writePool;
     private final ByteBufferCachePool framePool;
     private final Selector switcherSelector;
-    private final Lock lock = new ReentrantLock();
+    // null when the selector keeps its own key set
+    private final SelectedKeySet selectedKeySet;
+    private final DnsResolver dnsResolver;
+    private final TimingWheel timingWheel;
+    // accepted channels handed over by the dispatcher, registered by the switcher thread itself
+    private final Queue<SocketChannel> acceptQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    // reused by gathering writes, only touched by the switch thread
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+    // contexts armed for writing during this loop turn, written before the next select when eager flush is on
+    private final ArrayDeque<SelectorCubeContext> flushQueue = new ArrayDeque<>();
 
     private Thread switchThread;
+    private ServerSocketChannel listenChannel;
+
+    // time of the current loop round, timeouts are measured against it
+    private long loopTime;
+
+    // retiring: no new connections are placed here, the switcher stops once its connections are gone
+    private volatile boolean retiring;
+    private volatile boolean retired;
 
     private long acceptCount;
 
+    // connections placed here, counted when the dispatcher hands them over so the placement policy sees a burst
+    // still waiting in acceptQueue, and uncounted when they close
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    // load, written by the switch thread only and read by the placement policy
+    private volatile double busyRatio;
+    private volatile long bytesPerSecond;
+    private volatile long loadSampleAt;
+
+    private long busyNanos;
+    private long transferBytes;
+    private long windowStart;
+
     Switcher(final CubeConfig cubeConfig,
              final NioHandle nioHandle,
              final ByteBufferCachePool readPool,
@@ -61,6 +111,13 @@ public final class Switcher implements LifeCycle {
             logger.error("init Switcher IO exception", e);
             throw new SwitcherInitException("init Switcher IO exception", e);
         }
+        selectedKeySet = cubeConfig.getOptimizeSelectedKeys() ? SelectedKeySet.install(switcherSelector) : null;
+
+        // init resolver, driven by this switcher, the cache (optional) is shared by all switchers
+        dnsResolver = new DnsResolver(switcherSelector, cubeConfig.getDnsServers(), cubeConfig.getDnsTimeout(), cubeConfig.getDnsCache());
+
+        loopTime = System.nanoTime();
+        timingWheel = new TimingWheel(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE, loopTime);
     }
 
     @Override
@@ -86,7 +143,11 @@ public final class Switcher implements LifeCycle {
         logger.debug("Switcher closed");
     }
 
-    void accept(final SocketChannel socketChannel) {
+    // false if this switcher has retired, the caller should pick another one
+    boolean accept(final SocketChannel socketChannel) {
+        if (retired) {
+            return false;
+        }
         acceptCount++;
 
         // init new socket channel
@@ -100,22 +161,69 @@ public final class Switcher implements LifeCycle {
                 logger.error("closing SocketChannel IO exception", ioe);
             }
 
-            return;
+            return true;
+        }
+
+        connectionCount.incrementAndGet();
+        acceptQueue.offer(socketChannel);
+
+        // only the first producer since the last drain wakes the selector up
+        if (wakeupPending.compareAndSet(false, true)) {
+            switcherSelector.wakeup();
         }
 
-        lock.lock();
+        // retired meanwhile, take the channel back unless the switcher already registered it
+        if (retired && acceptQueue.remove(socketChannel)) {
+            acceptCount--;
+            connectionCount.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    void retire() {
+        retiring = true;
         switcherSelector.wakeup();
+    }
+
+    boolean isAlive() {
+        return switchThread != null && switchThread.isAlive();
+    }
+
+    // false when the selected keys are walked as the selector's own HashSet
+    boolean isSelectedKeySetInstalled() {
+        return selectedKeySet != null;
+    }
+
+    // wait for a retiring switcher to stop by itself, deadline is a System.nanoTime value
+    void awaitStop(final long deadline) throws InterruptedException {
+        if (switchThread == null) {
+            return;
+        }
+
+        final long remaining = deadline - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.timedJoin(switchThread, remaining);
+        }
+    }
+
+    // release resources of a switcher which is never started
+    void discard() {
+        dnsResolver.close();
         try {
-            CubeContext cubeContext = register(socketChannel);
-            if (cubeContext != null) {
-                cubeContext.readyRead(); // default ready read
-            }
-        } finally {
-            lock.unlock();
+            switcherSelector.close();
+        } catch (IOException e) {
+            logger.error("closing switcher selector IO exception", e);
         }
     }
 
-    CubeContext registerNew() throws IOException {
+    // accept on this switcher's own listener, must be called before start
+    void listen(final ServerSocketChannel serverSocketChannel) throws IOException {
+        serverSocketChannel.register(switcherSelector, SelectionKey.OP_ACCEPT, serverSocketChannel);
+        listenChannel = serverSocketChannel;
+    }
+
+    SelectorCubeContext registerNew() throws IOException {
         SocketChannel socketChannel = SocketChannel.open();
 
         try {
@@ -135,12 +243,57 @@ public final class Switcher implements LifeCycle {
             throw e;
         }
 
-        CubeContext cubeContext = new CubeContext(this, selectionKey, readPool, writePool, framePool);
-        selectionKey.attach(cubeContext);
+        connectionCount.incrementAndGet();
+        SelectorCubeContext cubeContext = newCubeContext(selectionKey);
+        cubeContext.scheduleDeadline(cubeConfig.getConnectTimeout(), () -> handleConnectTimeout(cubeContext));
 
         return cubeContext;
     }
 
+    void resolve(final String host, final ResolveCallback callback) {
+        dnsResolver.resolve(host, callback);
+    }
+
+    void flushLater(final SelectorCubeContext cubeContext) {
+        if (cubeConfig.getEagerFlush() && cubeContext.queueFlush()) {
+            flushQueue.add(cubeContext);
+        }
+    }
+
+    long now() {
+        return loopTime;
+    }
+
+    TimingWheel.Timeout schedule(final Runnable task, final long delayMillis) {
+        return timingWheel.schedule(task, delayMillis, loopTime);
+    }
+
+    void connectionClosed() {
+        connectionCount.decrementAndGet();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    // share of the last load window spent outside select, 0 to 1
+    public double getBusyRatio() {
+        return isLoadSampleStale() ? 0 : busyRatio;
+    }
+
+    public long getBytesPerSecond() {
+        return isLoadSampleStale() ? 0 : bytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "Switcher{retiring=" + retiring
+                + ", connections=" + getConnectionCount()
+                + ", busyRatio=" + String.format("%.2f", getBusyRatio())
+                + ", bytesPerSecond=" + getBytesPerSecond()
+                + "}";
+    }
+
     private void checkConfig(final CubeConfig cubeConfig) throws SwitcherInitException {
         if (cubeConfig == null) throw new SwitcherInitException("config can not be null");
 
@@ -149,54 +302,129 @@ public final class Switcher implements LifeCycle {
 
         Boolean tcpKeepAlive = cubeConfig.getTcpKeepAlive();
         if (tcpKeepAlive == null) throw new SwitcherInitException("TcpKeepAlive can not be null");
+
+        Boolean optimizeSelectedKeys = cubeConfig.getOptimizeSelectedKeys();
+        if (optimizeSelectedKeys == null) throw new SwitcherInitException("optimize selected keys can not be null");
+
+        Boolean eagerFlush = cubeConfig.getEagerFlush();
+        if (eagerFlush == null) throw new SwitcherInitException("eager flush can not be null");
+
+        Integer maxReadsPerEvent = cubeConfig.getMaxReadsPerEvent();
+        if (maxReadsPerEvent == null) throw new SwitcherInitException("max reads per event can not be null");
+        if (maxReadsPerEvent < 1) throw new SwitcherInitException("max reads per event can not be less than 1");
+
+        Integer maxReadBytesPerEvent = cubeConfig.getMaxReadBytesPerEvent();
+        if (maxReadBytesPerEvent == null) throw new SwitcherInitException("max read bytes per event can not be null");
+        if (maxReadBytesPerEvent < 1) throw new SwitcherInitException("max read bytes per event can not be less than 1");
+
+        Integer writeHighWatermark = cubeConfig.getWriteHighWatermark();
+        if (writeHighWatermark == null) throw new SwitcherInitException("write high watermark can not be null");
+        if (writeHighWatermark < 0) throw new SwitcherInitException("write high watermark can not be less than 0");
+
+        Integer writeLowWatermark = cubeConfig.getWriteLowWatermark();
+        if (writeLowWatermark == null) throw new SwitcherInitException("write low watermark can not be null");
+        if (writeLowWatermark < 0 || writeLowWatermark > writeHighWatermark)
+            throw new SwitcherInitException("write low watermark must in range 0-" + writeHighWatermark);
+
+        Integer handshakeTimeout = cubeConfig.getHandshakeTimeout();
+        if (handshakeTimeout == null) throw new SwitcherInitException("handshake timeout can not be null");
+        if (handshakeTimeout < 0) throw new SwitcherInitException("handshake timeout can not be less than 0");
+
+        Integer connectTimeout = cubeConfig.getConnectTimeout();
+        if (connectTimeout == null) throw new SwitcherInitException("connect timeout can not be null");
+        if (connectTimeout < 0) throw new SwitcherInitException("connect timeout can not be less than 0");
+
+        Integer idleTimeout = cubeConfig.getIdleTimeout();
+        if (idleTimeout == null) throw new SwitcherInitException("idle timeout can not be null");
+        if (idleTimeout < 0) throw new SwitcherInitException("idle timeout can not be less than 0");
+
+        Integer writeStallTimeout = cubeConfig.getWriteStallTimeout();
+        if (writeStallTimeout == null) throw new SwitcherInitException("write stall timeout can not be null");
+        if (writeStallTimeout < 0) throw new SwitcherInitException("write stall timeout can not be less than 0");
+
+        Integer hibernateTimeout = cubeConfig.getHibernateTimeout();
+        if (hibernateTimeout == null) throw new SwitcherInitException("hibernate timeout can not be null");
+        if (hibernateTimeout < 0) throw new SwitcherInitException("hibernate timeout can not be less than 0");
+
+        List<InetSocketAddress> dnsServers = cubeConfig.getDnsServers();
+        // empty falls back to the system resolver
+        if (dnsServers == null) throw new SwitcherInitException("DNS servers can not be null");
+
+        Integer dnsTimeout = cubeConfig.getDnsTimeout();
+        if (dnsTimeout == null) throw new SwitcherInitException("DNS timeout can not be null");
+        if (dnsTimeout < 1) throw new SwitcherInitException("DNS timeout can not be less than 1");
     }
 
     private void startSwitcher() {
         switchThread = new Thread(() -> {
             logger.debug("start waiting switcher IO events");
 
-            CubeContext cubeContext = null;
+            long busyStart = System.nanoTime();
+            windowStart = busyStart;
+            loopTime = busyStart;
+            schedule(this::trimPools, POOL_TRIM_INTERVAL_MILLIS);
             while (true) {
                 try {
-                    int selectCount = switcherSelector.select();
+                    if (retiring && tryRetire()) {
+                        dnsResolver.close();
+                        switcherSelector.close();
+                        logger.debug("Switcher retired, acceptCount={}", acceptCount);
+                        break;
+                    }
+
+                    // expire after the IO events of the last round had their chance to refresh the timeouts
+                    loopTime = System.nanoTime();
+                    timingWheel.advance(loopTime);
+                    flushQueued();
+
+                    final long selectStart = System.nanoTime();
+                    busyNanos += selectStart - busyStart;
+                    sampleLoad(selectStart);
+
+                    int selectCount = switcherSelector.select(selectTimeout());
+                    busyStart = System.nanoTime();
+                    loopTime = busyStart;
 
                     if (Thread.currentThread().isInterrupted()) {
                         // close this switcher
                         Set<SelectionKey> selectionKeys = switcherSelector.keys();
                         for (SelectionKey selectionKey : selectionKeys) {
-                            cubeContext = (CubeContext) selectionKey.attachment();
-                            cubeContext.close();
+                            Object attachment = selectionKey.attachment();
+                            if (attachment instanceof CubeContext) {
+                                ((CubeContext) attachment).close();
+                            } else if (attachment instanceof ServerSocketChannel) {
+                                ((ServerSocketChannel) attachment).close();
+                            }
                         }
 
+                        closeAcceptQueue();
+                        dnsResolver.close();
                         switcherSelector.close();
                         break;
                     }
 
-                    lock.lock();
-                    lock.unlock();
+                    drainAcceptQueue();
+                    dnsResolver.checkTimeout();
 
                     if (selectCount == 0) {
                         continue;
                     }
 
-                    Set<SelectionKey> sets = switcherSelector.selectedKeys();
-                    Iterator<SelectionKey> iterator = sets.iterator();
-                    while (iterator.hasNext()) {
-                        SelectionKey selectionKey = iterator.next();
-                        iterator.remove();
-
-                        cubeContext = (CubeContext) selectionKey.attachment();
-
-                        if (selectionKey.isValid() && selectionKey.isWritable()) {
-                            handleWrite(selectionKey, cubeContext);
-                        }
-
-                        if (selectionKey.isValid() && selectionKey.isReadable()) {
-                            handleRead(selectionKey, cubeContext);
+                    if (selectedKeySet != null) {
+                        try {
+                            for (int i = 0; i < selectedKeySet.size(); i++) {
+                                handleSelected(selectedKeySet.get(i));
+                            }
+                        } finally {
+                            selectedKeySet.reset();
                         }
-
-                        if (selectionKey.isValid() && selectionKey.isConnectable()) {
-                            handleConnect(selectionKey, cubeContext);
+                    } else {
+                        Set<SelectionKey> sets = switcherSelector.selectedKeys();
+                        Iterator<SelectionKey> iterator = sets.iterator();
+                        while (iterator.hasNext()) {
+                            SelectionKey selectionKey = iterator.next();
+                            iterator.remove();
+                            handleSelected(selectionKey);
                         }
                     }
 
@@ -207,10 +435,6 @@ public final class Switcher implements LifeCycle {
                     logger.error("SwitcherSelector is closed");
                     break;
 
-                } catch (CancelledKeyException e) {
-                    logger.debug("connection is closed");
-                    cubeContext.close();
-
                 } catch (Exception e) {
                     logger.error("unknown switcher exception", e);
                     try {
@@ -229,10 +453,134 @@ public final class Switcher implements LifeCycle {
         switchThread.start();
     }
 
+    // OP_WRITE set and cleared within the turn never reaches the kernel, only a partial write leaves it to select
+    private void flushQueued() {
+        SelectorCubeContext cubeContext;
+        while ((cubeContext = flushQueue.poll()) != null) {
+            cubeContext.flushDequeued();
+
+            final SelectionKey selectionKey = cubeContext.selectionKey();
+            if (cubeContext.isClosed() || !cubeContext.isWriteReady()
+                    || !((SocketChannel) selectionKey.channel()).isConnected()) {
+                continue;
+            }
+
+            try {
+                handleWrite(selectionKey, cubeContext);
+            } catch (CancelledKeyException e) {
+                logger.debug("connection is closed");
+                cubeContext.close();
+            }
+        }
+    }
+
+    private void handleSelected(final SelectionKey selectionKey) throws IOException {
+        Object attachment = selectionKey.attachment();
+        if (attachment instanceof DnsResolver.Query) {
+            dnsResolver.handleSelected(selectionKey);
+            return;
+        }
+
+        if (attachment instanceof ServerSocketChannel) {
+            if (selectionKey.isValid() && selectionKey.isAcceptable()) {
+                handleAccept((ServerSocketChannel) attachment);
+            }
+            return;
+        }
+
+        final SelectorCubeContext cubeContext = (SelectorCubeContext) attachment;
+        try {
+            if (selectionKey.isValid() && selectionKey.isWritable()) {
+                handleWrite(selectionKey, cubeContext);
+            }
+
+            if (selectionKey.isValid() && selectionKey.isReadable()) {
+                handleRead(selectionKey, cubeContext);
+            }
+
+            if (selectionKey.isValid() && selectionKey.isConnectable()) {
+                handleConnect(selectionKey, cubeContext);
+            }
+        } catch (CancelledKeyException e) {
+            logger.debug("connection is closed");
+            cubeContext.close();
+        }
+    }
+
+    private boolean tryRetire() {
+        if (listenChannel != null) {
+            // take what the kernel already queued on our listener, then stop it from routing more here
+            handleAccept(listenChannel);
+            try {
+                listenChannel.close();
+            } catch (IOException e) {
+                logger.error("closing ServerSocketChannel IO exception", e);
+            }
+            listenChannel = null;
+        }
+
+        if (connectionCount.get() > 0) {
+            return false;
+        }
+
+        // pairs with accept: either we see the queued channel, or the dispatcher sees retired and takes it back
+        retired = true;
+        if (!acceptQueue.isEmpty()) {
+            retired = false;
+            return false;
+        }
+        return true;
+    }
+
+    private long selectTimeout() {
+        // 0 blocks until woken up
+        final long dnsTimeout = dnsResolver.nextTimeout();
+        final long timerTimeout = timingWheel.nextTimeout(System.nanoTime());
+        if (dnsTimeout == 0) return timerTimeout;
+        if (timerTimeout == 0) return dnsTimeout;
+        return Math.min(dnsTimeout, timerTimeout);
+    }
+
+    private void sampleLoad(final long now) {
+        final long elapsed = now - windowStart;
+        if (elapsed < LOAD_WINDOW_NANOS) {
+            return;
+        }
+
+        busyRatio = Math.min(1.0, (double) busyNanos / elapsed);
+        bytesPerSecond = transferBytes * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        loadSampleAt = now;
+
+        busyNanos = 0;
+        transferBytes = 0;
+        windowStart = now;
+    }
+
+    private boolean isLoadSampleStale() {
+        // the switch thread samples on every loop, no sample for a while means it is blocked in select, i.e. idle
+        return System.nanoTime() - loadSampleAt > 2 * LOAD_WINDOW_NANOS;
+    }
+
+    private void trimPools() {
+        readPool.trim();
+        if (writePool != readPool) writePool.trim();
+        framePool.trim();
+
+        schedule(this::trimPools, POOL_TRIM_INTERVAL_MILLIS);
+    }
+
     private void shutdownSwitcher() {
-        if (switchThread != null) {
+        if (switchThread != null && switchThread.isAlive()) {
             switchThread.interrupt();
             switcherSelector.wakeup();
+
+            // connections return their buffers on the way out, the pools must outlive this thread
+            try {
+                switchThread.join();
+            } catch (InterruptedException e) {
+                logger.warn("interrupted while waiting switcher thread");
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
@@ -248,6 +596,33 @@ public final class Switcher implements LifeCycle {
         }
     }
 
+    private void drainAcceptQueue() {
+        // reset before draining, a channel offered after the reset wakes the next select up
+        wakeupPending.set(false);
+
+        SocketChannel socketChannel;
+        while ((socketChannel = acceptQueue.poll()) != null) {
+            CubeContext cubeContext = register(socketChannel);
+            if (cubeContext != null) {
+                cubeContext.readyRead(); // default ready read
+            } else {
+                connectionCount.decrementAndGet();
+            }
+        }
+    }
+
+    private void closeAcceptQueue() {
+        SocketChannel socketChannel;
+        while ((socketChannel = acceptQueue.poll()) != null) {
+            connectionCount.decrementAndGet();
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+                logger.error("closing SocketChannel IO exception", e);
+            }
+        }
+    }
+
     private CubeContext register(final SocketChannel socketChannel) {
         SelectionKey selectionKey;
         try {
@@ -263,82 +638,160 @@ public final class Switcher implements LifeCycle {
             return null;
         }
 
-        CubeContext cubeContext = new CubeContext(this, selectionKey, readPool, writePool, framePool);
+        CubeContext cubeContext = newCubeContext(selectionKey);
+        cubeContext.scheduleDeadline(cubeConfig.getHandshakeTimeout(), () -> {
+            logger.debug("handshake timeout, connection will be closed");
+            cubeContext.close();
+        });
+
+        return cubeContext;
+    }
+
+    private SelectorCubeContext newCubeContext(final SelectionKey selectionKey) {
+        SelectorCubeContext cubeContext = new SelectorCubeContext(this, selectionKey, readPool, writePool, framePool,
+                cubeConfig.getWriteHighWatermark(), cubeConfig.getWriteLowWatermark(),
+                cubeConfig.getIdleTimeout(), cubeConfig.getWriteStallTimeout(), cubeConfig.getHibernateTimeout());
         selectionKey.attach(cubeContext);
+        cubeContext.start();
 
         return cubeContext;
     }
 
+    private void handleAccept(final ServerSocketChannel serverSocketChannel) {
+        // bounded so a connection storm does not starve established connections
+        for (int i = 0; i < MAX_ACCEPT_PER_EVENT; i++) {
+            SocketChannel socketChannel;
+            try {
+                socketChannel = serverSocketChannel.accept();
+            } catch (IOException e) {
+                logger.error("accept IO exception", e);
+                return;
+            }
+
+            if (socketChannel == null) {
+                return;
+            }
+            acceptCount++;
+
+            try {
+                configSocketChannel(socketChannel);
+            } catch (IOException e) {
+                logger.warn("config SocketChannel exception, connection will be closed", e);
+                try {
+                    socketChannel.close();
+                } catch (IOException ioe) {
+                    logger.error("closing SocketChannel IO exception", ioe);
+                }
+                continue;
+            }
+
+            connectionCount.incrementAndGet();
+            CubeContext cubeContext = register(socketChannel);
+            if (cubeContext != null) {
+                cubeContext.readyRead(); // default ready read
+            } else {
+                connectionCount.decrementAndGet();
+            }
+        }
+    }
+
     private void handleWrite(final SelectionKey selectionKey, final CubeContext cubeContext) {
-        cubeContext.finishWrite();
         final SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
 
-        final ByteBuffer writeBuffer = cubeContext.getWriteBuffer();
-        writeBuffer.flip();
-        if (writeBuffer.hasRemaining()) {
+        // everything queued leaves in one gathering write, more rounds only if the queue is longer than the array
+        int count;
+        while ((count = cubeContext.gatherWriteBuffers(gatherBuffers)) > 0) {
+            long n;
             try {
-                socketChannel.write(writeBuffer);
+                n = count == 1 ? socketChannel.write(gatherBuffers[0]) : socketChannel.write(gatherBuffers, 0, count);
             } catch (IOException e) {
                 logger.warn("write exception: {}, connection will be closed", e.getMessage());
+                Arrays.fill(gatherBuffers, 0, count, null);
                 cubeContext.close();
                 return;
             }
-        }
 
-        if (cubeContext.isAfterWriteCallback()) {
-            cubeContext.afterWriteCallback();
-            cubeContext.finishAfterWriteCallback();
-        }
-
-        if (cubeContext.isReadAfterWrite()) {
-            cubeContext.readyRead();
-            cubeContext.finishReadAfterWrite();
+            transferBytes += n;
+            if (n > 0) cubeContext.markWritten();
+            final boolean flushed = !gatherBuffers[count - 1].hasRemaining();
+            cubeContext.gatherWriteDone(gatherBuffers, n);
+            Arrays.fill(gatherBuffers, 0, count, null);
+            if (!flushed) {
+                // socket send buffer is full, wait for next write event
+                break;
+            }
         }
 
-        if (cubeContext.isCloseAfterWrite()) {
-            cubeContext.close();
-            cubeContext.finishCloseAfterWrite();
+        cubeContext.resumeRelaySource();
+        if (cubeContext.hasPendingWrite()) {
+            // keep OP_WRITE armed, after write actions wait for the full flush
+            return;
         }
+        cubeContext.finishFlush();
     }
 
     private void handleRead(final SelectionKey selectionKey, final CubeContext cubeContext) {
-        cubeContext.finishRead();
         final SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
+        final int maxReads = cubeConfig.getMaxReadsPerEvent();
+        final int maxReadBytes = cubeConfig.getMaxReadBytesPerEvent();
 
-        final ByteBuffer readBuffer = cubeContext.getReadBuffer();
-        int n;
-        try {
-            n = socketChannel.read(readBuffer);
-        } catch (IOException e) {
-            logger.warn("read exception: {}, connection will be closed", e.getMessage());
-            cubeContext.close();
-            return;
-        }
+        // keep reading while the socket fills the buffer and the handler asks for more, within the budget
+        int reads = 0;
+        int readBytes = 0;
+        while (true) {
+            cubeContext.finishRead();
 
-        if (n == -1) {
-            logger.debug("end of stream, connection will be closed");
-            cubeContext.close();
-            return;
-        }
+            final ByteBuffer readBuffer = cubeContext.getReadBuffer();
+            int n;
+            try {
+                n = socketChannel.read(readBuffer);
+            } catch (IOException e) {
+                logger.warn("read exception: {}, connection will be closed", e.getMessage());
+                cubeContext.close();
+                return;
+            }
 
-        if (n == 0) {
-            logger.warn("can not read any data from read IO event");
-            return;
-        }
+            if (n == -1) {
+                logger.debug("end of stream, connection will be closed");
+                cubeContext.close();
+                return;
+            }
 
-        readBuffer.flip();
-        try {
-            nioHandle.handleRead(cubeContext);
-        } catch (CancelledKeyException e) {
-            logger.debug("connection is closed while handle read");
-            cubeContext.close();
-        } catch (Exception e) {
-            logger.error("NioHandle handle read exception, connection will be closed", e);
-            cubeContext.close();
+            if (n == 0) {
+                if (reads == 0) {
+                    logger.warn("can not read any data from read IO event");
+                }
+                cubeContext.readyRead();
+                return;
+            }
+            transferBytes += n;
+            cubeContext.markRead();
+
+            final boolean drained = readBuffer.hasRemaining();
+            readBuffer.flip();
+            try {
+                nioHandle.handleRead(cubeContext);
+            } catch (CancelledKeyException e) {
+                logger.debug("connection is closed while handle read");
+                cubeContext.close();
+                return;
+            } catch (Exception e) {
+                logger.error("NioHandle handle read exception, connection will be closed", e);
+                cubeContext.close();
+                return;
+            }
+
+            reads++;
+            readBytes += n;
+            if (drained || cubeContext.isClosed() || !cubeContext.isReadReady()
+                    || reads >= maxReads || readBytes >= maxReadBytes) {
+                return;
+            }
         }
     }
 
-    private void handleConnect(final SelectionKey selectionKey, final CubeContext cubeContext) {
+    private void handleConnect(final SelectionKey selectionKey, final SelectorCubeContext cubeContext) {
+        cubeContext.cancelDeadline();
         cubeContext.finishConnect();
         final SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
 
@@ -362,16 +815,29 @@ public final class Switcher implements LifeCycle {
                 logger.warn("connect remote host {}:{} IO exception: {}", remoteAddressString, remoteIPString, ioe.getMessage());
             }
 
-            try {
-                CubeConnectionException cubeConnectionException = new CubeConnectionException("connection IO exception: " + ioe.getMessage(), ioe);
-                nioHandle.handleConnectFail(cubeContext, cubeConnectionException);
-            } catch (CancelledKeyException e) {
-                logger.debug("connection is closed while handle connection fail");
-                cubeContext.close();
-            } catch (Exception e) {
-                logger.error("NioHandle handle connection fail exception, connection will be closed", e);
-                cubeContext.close();
-            }
+            handleConnectFail(cubeContext, new CubeConnectionException("connection IO exception: " + ioe.getMessage(), ioe));
+        }
+    }
+
+    private void handleConnectTimeout(final SelectorCubeContext cubeContext) {
+        if (cubeContext.isClosed()) {
+            return;
+        }
+
+        cubeContext.finishConnect();
+        logger.debug("connect remote host timeout");
+        handleConnectFail(cubeContext, new CubeConnectionException("connection timeout"));
+    }
+
+    private void handleConnectFail(final CubeContext cubeContext, final CubeConnectionException cubeConnectionException) {
+        try {
+            nioHandle.handleConnectFail(cubeContext, cubeConnectionException);
+        } catch (CancelledKeyException e) {
+            logger.debug("connection is closed while handle connection fail");
+            cubeContext.close();
+        } catch (Exception e) {
+            logger.error("NioHandle handle connection fail exception, connection will be closed", e);
+            cubeContext.close();
         }
     }
 }
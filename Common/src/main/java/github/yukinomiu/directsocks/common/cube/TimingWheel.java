@@ -0,0 +1,146 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.Cancellable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Yukinomiu
+ * 2017/8/6
+ */
+final class TimingWheel {
+    private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+    private final long tickNanos;
+    private final int mask;
+    private final Timeout[] slots;
+    private final long startTime;
+    // expired timeouts are collected first, a task may cancel or schedule others of the same slot
+    private final List<Timeout> expired = new ArrayList<>();
+
+    // index of the next tick to expire
+    private long tick;
+    private int size;
+
+    // not thread safe, owned by one switch thread, wheelSize must be a power of 2
+    TimingWheel(final long tickMillis, final int wheelSize, final long now) {
+        if (tickMillis < 1) throw new IllegalArgumentException("tick can not be less than 1");
+        if (wheelSize < 1 || (wheelSize & (wheelSize - 1)) != 0)
+            throw new IllegalArgumentException("wheel size must be a power of 2");
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.mask = wheelSize - 1;
+        this.slots = new Timeout[wheelSize];
+        this.startTime = now;
+    }
+
+    Timeout schedule(final Runnable task, final long delayMillis, final long now) {
+        // the tick the deadline falls into, a deadline already passed expires with the next tick
+        final long deadline = now - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        final long deadlineTick = Math.max(tick, deadline / tickNanos);
+
+        final Timeout timeout = new Timeout(this, task);
+        timeout.rounds = (deadlineTick - tick) / slots.length;
+        link(timeout, (int) (deadlineTick & mask));
+        return timeout;
+    }
+
+    // milliseconds the selector may block before the next tick, 0 if nothing is scheduled
+    long nextTimeout(final long now) {
+        if (size == 0) {
+            return 0;
+        }
+
+        final long remaining = startTime + (tick + 1) * tickNanos - now;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+    }
+
+    void advance(final long now) {
+        final long elapsedTicks = (now - startTime) / tickNanos;
+        while (tick < elapsedTicks) {
+            if (size == 0) {
+                // nothing to expire, skip the idle ticks at once
+                tick = elapsedTicks;
+                return;
+            }
+
+            final int slot = (int) (tick & mask);
+            tick++;
+
+            Timeout timeout = slots[slot];
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else {
+                    unlink(timeout);
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+
+            for (int i = 0; i < expired.size(); i++) {
+                try {
+                    expired.get(i).task.run();
+                } catch (Exception e) {
+                    logger.error("timeout task exception", e);
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void link(final Timeout timeout, final int slot) {
+        final Timeout head = slots[slot];
+        timeout.slot = slot;
+        timeout.next = head;
+        if (head != null) head.prev = timeout;
+        slots[slot] = timeout;
+        size++;
+    }
+
+    private void unlink(final Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        size--;
+    }
+
+    static final class Timeout implements Cancellable {
+        private final TimingWheel timingWheel;
+        private final Runnable task;
+
+        private long rounds;
+        private int slot = -1;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(final TimingWheel timingWheel, final Runnable task) {
+            this.timingWheel = timingWheel;
+            this.task = task;
+        }
+
+        // O(1), no effect once expired or cancelled
+        @Override
+        public void cancel() {
+            if (slot != -1) {
+                timingWheel.unlink(this);
+            }
+        }
+    }
+}
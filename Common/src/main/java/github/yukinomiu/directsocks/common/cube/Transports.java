@@ -0,0 +1,78 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.NioHandle;
+import github.yukinomiu.directsocks.common.cube.api.Transport;
+import github.yukinomiu.directsocks.common.cube.api.TransportProvider;
+import github.yukinomiu.directsocks.common.cube.exception.CubeInitException;
+import github.yukinomiu.directsocks.common.exception.DirectSocksConfigException;
+
+import java.util.ServiceLoader;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+public final class Transports {
+    // non-blocking channels multiplexed by the switchers, the default
+    public static final TransportProvider SELECTOR = new TransportProvider() {
+        @Override
+        public String getName() {
+            return "selector";
+        }
+
+        @Override
+        public Transport newTransport(final CubeConfig cubeConfig, final NioHandle nioHandle, final BufferPools bufferPools) throws CubeInitException {
+            return new SelectorEngine(cubeConfig, nioHandle, bufferPools);
+        }
+    };
+
+    // a reader and a writer thread per connection
+    public static final TransportProvider BLOCKING = new TransportProvider() {
+        @Override
+        public String getName() {
+            return "blocking";
+        }
+
+        @Override
+        public Transport newTransport(final CubeConfig cubeConfig, final NioHandle nioHandle, final BufferPools bufferPools) throws CubeInitException {
+            return new BlockingEngine(cubeConfig, nioHandle, bufferPools);
+        }
+    };
+
+    // NIO.2 completion handlers on a bounded channel group
+    public static final TransportProvider ASYNC = new TransportProvider() {
+        @Override
+        public String getName() {
+            return "async";
+        }
+
+        @Override
+        public Transport newTransport(final CubeConfig cubeConfig, final NioHandle nioHandle, final BufferPools bufferPools) throws CubeInitException {
+            return new AsyncEngine(cubeConfig, nioHandle, bufferPools);
+        }
+    };
+
+    private Transports() {
+    }
+
+    public static TransportProvider byName(final String name) {
+        switch (name) {
+            case "selector":
+                return SELECTOR;
+
+            case "blocking":
+                return BLOCKING;
+
+            case "async":
+                return ASYNC;
+
+            default:
+                for (TransportProvider provider : ServiceLoader.load(TransportProvider.class)) {
+                    if (name.equals(provider.getName())) {
+                        return provider;
+                    }
+                }
+                throw new DirectSocksConfigException("transport not supported: " + name);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+final class VirtualThreads {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+    // platform threads only park in blocking IO, a small stack lets thousands of them fit
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    private VirtualThreads() {
+    }
+
+    // virtual threads where the runtime has them (Java 21+), daemon platform threads otherwise
+    static ThreadFactory factory(final String prefix) {
+        final ThreadFactory virtual = virtualFactory(prefix);
+        if (virtual != null) {
+            return virtual;
+        }
+
+        logger.warn("virtual threads not supported by this runtime, falling back to platform threads");
+        final AtomicLong counter = new AtomicLong();
+        return runnable -> {
+            final Thread thread = new Thread(null, runnable, prefix + counter.getAndIncrement(), PLATFORM_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static ThreadFactory virtualFactory(final String prefix) {
+        // Thread.ofVirtual().name(prefix, 0).factory(), by reflection as the source level predates it
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            final Method name = builderClass.getMethod("name", String.class, long.class);
+            final Method factory = builderClass.getMethod("factory");
+
+            Object builder = ofVirtual.invoke(null);
+            builder = name.invoke(builder, prefix, 0L);
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package github.yukinomiu.directsocks.common.cube.api;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+public interface Cancellable {
+    // no effect once run or cancelled
+    void cancel();
+}
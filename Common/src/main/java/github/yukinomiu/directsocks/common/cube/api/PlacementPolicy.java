@@ -0,0 +1,12 @@
+package github.yukinomiu.directsocks.common.cube.api;
+
+import github.yukinomiu.directsocks.common.cube.Switcher;
+
+/**
+ * Yukinomiu
+ * 2017/8/5
+ */
+public interface PlacementPolicy {
+    // called by the accepting thread only, switchers is never empty
+    Switcher select(final Switcher[] switchers);
+}
@@ -0,0 +1,22 @@
+package github.yukinomiu.directsocks.common.cube.api;
+
+import github.yukinomiu.directsocks.common.cube.cachepool.ByteBufferCachePool;
+
+import java.util.List;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+// the IO engine of a cube: listens, runs every connection as a CubeContext subclass and connects through CubeContext.readyConnect
+public interface Transport {
+    // accept connections and drive the NioHandle until shutdown
+    void start();
+
+    // stop accepting, give established connections up to drainTimeoutMillis to finish, close the rest and release the pools
+    int shutdown(final long drainTimeoutMillis);
+
+    int getConnectionCount();
+
+    List<ByteBufferCachePool> getBufferPools();
+}
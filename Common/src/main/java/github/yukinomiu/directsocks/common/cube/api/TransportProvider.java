@@ -0,0 +1,17 @@
+package github.yukinomiu.directsocks.common.cube.api;
+
+import github.yukinomiu.directsocks.common.cube.BufferPools;
+import github.yukinomiu.directsocks.common.cube.CubeConfig;
+import github.yukinomiu.directsocks.common.cube.exception.CubeInitException;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+// found by name through Transports, providers outside this jar register with java.util.ServiceLoader
+public interface TransportProvider {
+    String getName();
+
+    // the transport owns the pools from then on, it starts, trims and shuts them down
+    Transport newTransport(final CubeConfig cubeConfig, final NioHandle nioHandle, final BufferPools bufferPools) throws CubeInitException;
+}
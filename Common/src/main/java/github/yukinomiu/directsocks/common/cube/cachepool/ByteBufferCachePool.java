@@ -7,4 +7,18 @@ import java.nio.ByteBuffer;
  * 2017/7/16
  */
 public interface ByteBufferCachePool extends CachePool<ByteBuffer> {
+    // a buffer of at least minCapacity where the pool has size classes, pools of one size ignore it
+    ByteBuffer get(final int minCapacity);
+
+    // frees the buffers left idle for a whole idle period, called periodically by every switcher
+    void trim();
+
+    // statistics, approximate while the pool is in use
+    long hitCount();
+
+    long missCount();
+
+    long overflowCount();
+
+    int highWater();
 }
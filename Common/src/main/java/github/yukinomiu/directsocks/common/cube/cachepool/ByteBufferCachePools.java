@@ -0,0 +1,45 @@
+package github.yukinomiu.directsocks.common.cube.cachepool;
+
+/**
+ * Yukinomiu
+ * 2017/8/6
+ */
+public final class ByteBufferCachePools {
+    // one locked stack shared by all switchers
+    public static final String SIMPLE = "simple";
+    // a cache per switcher thread in front of a lock free shared store
+    public static final String THREAD_LOCAL = "threadLocal";
+    // power of 2 size classes carved out of large slabs, a connection takes only the size it needs
+    public static final String SLAB = "slab";
+
+    private ByteBufferCachePools() {
+    }
+
+    public static boolean isSupported(final String type) {
+        return SIMPLE.equals(type) || THREAD_LOCAL.equals(type) || SLAB.equals(type);
+    }
+
+    public static ByteBufferCachePool create(final String type,
+                                             final int bufferSize,
+                                             final int poolSize,
+                                             final boolean direct,
+                                             final long idleMillis,
+                                             final boolean autoTune) throws ByteBufferCachePoolInitException {
+        if (type == null) throw new ByteBufferCachePoolInitException("pool type can not be null");
+
+        switch (type) {
+            case SIMPLE:
+                return new SimpleByteBufferCachePool(bufferSize, poolSize, direct, idleMillis, autoTune);
+
+            case THREAD_LOCAL:
+                return new ThreadLocalByteBufferCachePool(bufferSize, poolSize, direct, idleMillis, autoTune);
+
+            case SLAB:
+                // grows on demand but keeps its slabs, no idle shrinking
+                return new SlabByteBufferCachePool(bufferSize, poolSize, direct);
+
+            default:
+                throw new ByteBufferCachePoolInitException("pool type not supported: " + type);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package github.yukinomiu.directsocks.common.cube.cachepool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Yukinomiu
+ * 2017/8/6
+ */
+final class DirectBufferCleaner {
+    private static final Logger logger = LoggerFactory.getLogger(DirectBufferCleaner.class);
+
+    // Java 9+: Unsafe.invokeCleaner(ByteBuffer)
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    // Java 8: ((DirectBuffer) buffer).cleaner().clean()
+    private static final Method CLEANER;
+    private static final Method CLEAN;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+            unsafe = null;
+        }
+
+        if (invokeCleaner == null) {
+            try {
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (Exception e) {
+                cleaner = null;
+                clean = null;
+            }
+        }
+
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+
+        if (!isSupported()) {
+            logger.warn("freeing direct buffers explicitly not supported by this runtime, left to GC");
+        }
+    }
+
+    private DirectBufferCleaner() {
+    }
+
+    static boolean isSupported() {
+        return INVOKE_CLEANER != null || CLEAN != null;
+    }
+
+    // frees the native memory at once, the buffer must not be touched afterwards
+    static void clean(final ByteBuffer byteBuffer) {
+        if (!byteBuffer.isDirect()) return;
+
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, byteBuffer);
+            } else if (CLEAN != null) {
+                Object cleaner = CLEANER.invoke(byteBuffer);
+                if (cleaner != null) CLEAN.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            logger.debug("freeing direct buffer exception: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package github.yukinomiu.directsocks.common.cube.cachepool;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+final class ElasticSizing {
+    // auto tuned pools never keep less than this
+    private static final int MIN_LIMIT = 8;
+
+    private final int maxSize;
+    private final long idleNanos;
+    private final boolean autoTune;
+
+    // idle buffers kept at most, maxSize unless auto tuned, read without the pool lock
+    private volatile int limit;
+    private int highWater;
+
+    // the current idle period
+    private long windowStart;
+    // fewest idle buffers seen in the period, that many were not needed at all
+    private int idleLowWater;
+    private int inUsePeak;
+
+    // not thread safe except limit(), guarded by the pool, idleMillis 0 disables shrinking and auto tuning
+    ElasticSizing(final int maxSize, final long idleMillis, final boolean autoTune) {
+        this.maxSize = maxSize;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.autoTune = autoTune && idleMillis > 0;
+        this.limit = maxSize;
+        this.windowStart = System.nanoTime();
+    }
+
+    // counts after a get
+    void onGet(final int idle, final int inUse) {
+        if (idle < idleLowWater) idleLowWater = idle;
+        if (inUse > inUsePeak) {
+            inUsePeak = inUse;
+            if (inUse > highWater) highWater = inUse;
+        }
+    }
+
+    // number of idle buffers to free, 0 until a whole idle period has passed
+    int trim(final long now, final int idle, final int inUse) {
+        if (idleNanos == 0 || now - windowStart < idleNanos) {
+            return 0;
+        }
+
+        int excess = Math.min(idleLowWater, idle);
+        if (autoTune) {
+            // enough for the peak concurrency of the last period and a quarter more
+            limit = Math.max(MIN_LIMIT, (int) Math.min(maxSize, inUsePeak + inUsePeak / 4L));
+            excess = Math.max(excess, idle - limit);
+        }
+
+        windowStart = now;
+        idleLowWater = idle - excess;
+        inUsePeak = inUse;
+        return excess;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    int highWater() {
+        return highWater;
+    }
+}
@@ -0,0 +1,183 @@
+package github.yukinomiu.directsocks.common.cube.cachepool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Yukinomiu
+ * 2017/8/7
+ */
+public final class LeakDetectingByteBufferCachePool implements ByteBufferCachePool {
+    private static final Logger logger = LoggerFactory.getLogger(LeakDetectingByteBufferCachePool.class);
+
+    private final ByteBufferCachePool pool;
+    private final int sampleInterval;
+
+    // sampled buffers not returned yet by identity hash, a collision just skips the sample
+    private final ConcurrentHashMap<Integer, LeakTracker> trackers = new ConcurrentHashMap<>();
+    // trackers of sampled buffers collected by GC while still out of the pool
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+    private final LongAdder sampleCount = new LongAdder();
+    private final LongAdder leakCount = new LongAdder();
+
+    // one get in sampleInterval records its call site, 1 tracks every buffer
+    public LeakDetectingByteBufferCachePool(final ByteBufferCachePool pool, final int sampleInterval) throws ByteBufferCachePoolInitException {
+        if (pool == null) throw new ByteBufferCachePoolInitException("pool can not be null");
+        if (sampleInterval < 1) throw new ByteBufferCachePoolInitException("sample interval can not be less than 1");
+
+        this.pool = pool;
+        this.sampleInterval = sampleInterval;
+    }
+
+    @Override
+    public ByteBuffer get() {
+        return track(pool.get());
+    }
+
+    @Override
+    public ByteBuffer get(final int minCapacity) {
+        return track(pool.get(minCapacity));
+    }
+
+    @Override
+    public void returnBack(final ByteBuffer byteBuffer) {
+        if (byteBuffer == null) return;
+
+        if (!trackers.isEmpty()) {
+            final Integer key = System.identityHashCode(byteBuffer);
+            final LeakTracker tracker = trackers.get(key);
+            if (tracker != null && tracker.get() == byteBuffer) {
+                // returned in time, a cleared reference is never enqueued
+                trackers.remove(key, tracker);
+                tracker.clear();
+            }
+        }
+        pool.returnBack(byteBuffer);
+    }
+
+    @Override
+    public void refresh(final ByteBuffer byteBuffer) {
+        pool.refresh(byteBuffer);
+    }
+
+    @Override
+    public int capacity() {
+        return pool.capacity();
+    }
+
+    @Override
+    public int left() {
+        return pool.left();
+    }
+
+    @Override
+    public void trim() {
+        reportLeaks();
+        pool.trim();
+    }
+
+    @Override
+    public long hitCount() {
+        return pool.hitCount();
+    }
+
+    @Override
+    public long missCount() {
+        return pool.missCount();
+    }
+
+    @Override
+    public long overflowCount() {
+        return pool.overflowCount();
+    }
+
+    @Override
+    public int highWater() {
+        return pool.highWater();
+    }
+
+    public long leakCount() {
+        return leakCount.sum();
+    }
+
+    // sampled buffers taken and not returned yet, 0 once every connection has given its buffers back
+    public int trackedCount() {
+        return trackers.size();
+    }
+
+    @Override
+    public void start() {
+        pool.start();
+    }
+
+    @Override
+    public void shutdown() {
+        pool.shutdown();
+
+        reportLeaks();
+        // connections have been closed by now, anything still out was never given back
+        if (!trackers.isEmpty()) {
+            logger.warn("{} sampled buffers not returned at shutdown", trackers.size());
+            for (LeakTracker tracker : trackers.values()) {
+                logger.debug("buffer not returned, taken at:", tracker.site);
+            }
+        }
+        trackers.clear();
+        logger.debug("{}", this);
+    }
+
+    @Override
+    public String toString() {
+        return "LeakDetectingByteBufferCachePool{pool=" + pool
+                + ", sampleInterval=" + sampleInterval
+                + ", sampled=" + sampleCount.sum()
+                + ", tracked=" + trackers.size()
+                + ", leaks=" + leakCount()
+                + "}";
+    }
+
+    private ByteBuffer track(final ByteBuffer byteBuffer) {
+        if (sampleInterval > 1 && ThreadLocalRandom.current().nextInt(sampleInterval) != 0) {
+            return byteBuffer;
+        }
+
+        reportLeaks();
+        final LeakTracker tracker = new LeakTracker(byteBuffer, collected);
+        if (trackers.putIfAbsent(tracker.key, tracker) == null) {
+            sampleCount.increment();
+        } else {
+            tracker.clear();
+        }
+        return byteBuffer;
+    }
+
+    private void reportLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) collected.poll()) != null) {
+            // a failed remove means the key has moved on to another buffer
+            if (trackers.remove(tracker.key, tracker)) {
+                leakCount.increment();
+                logger.error("LEAK: a pooled ByteBuffer was garbage collected without returnBack, taken at:", tracker.site);
+            }
+        }
+    }
+
+    private static final class LeakTracker extends WeakReference<ByteBuffer> {
+        private final Integer key;
+        private final Throwable site;
+
+        private LeakTracker(final ByteBuffer byteBuffer, final ReferenceQueue<ByteBuffer> queue) {
+            super(byteBuffer, queue);
+            this.key = System.identityHashCode(byteBuffer);
+            this.site = new Throwable("buffer taken from the pool");
+        }
+    }
+}
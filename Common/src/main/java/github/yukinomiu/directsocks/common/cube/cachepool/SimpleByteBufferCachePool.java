@@ -4,6 +4,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -13,48 +14,78 @@ import java.util.concurrent.locks.ReentrantLock;
 public final class SimpleByteBufferCachePool implements ByteBufferCachePool {
     private static final Logger logger = LoggerFactory.getLogger(SimpleByteBufferCachePool.class);
 
+    private static final int INITIAL_STACK_LENGTH = 16;
+
     private final ReentrantLock lock = new ReentrantLock();
 
     private final ByteBufferCachePoolFactory factory;
-    private final ByteBuffer[] stack;
-    private final int maxIndex;
+    private final int poolSize;
+    private final ElasticSizing sizing;
 
+    // grows with the idle buffers, never beyond poolSize
+    private ByteBuffer[] stack;
     private int top;
+    private int inUse;
+    private boolean closed;
 
     private long getCount;
     private long returnCount;
+    private long missCount;
+    private long overflowCount;
+    private long trimCount;
 
     public SimpleByteBufferCachePool(final int bufferSize, final int poolSize) throws ByteBufferCachePoolInitException {
-        factory = new SimpleByteBufferCachePoolFactory(bufferSize);
+        this(bufferSize, poolSize, false);
+    }
+
+    public SimpleByteBufferCachePool(final int bufferSize, final int poolSize, final boolean direct) throws ByteBufferCachePoolInitException {
+        this(bufferSize, poolSize, direct, 0, false);
+    }
+
+    // buffers are created on demand, idleMillis > 0 frees the ones left unused that long
+    public SimpleByteBufferCachePool(final int bufferSize,
+                                     final int poolSize,
+                                     final boolean direct,
+                                     final long idleMillis,
+                                     final boolean autoTune) throws ByteBufferCachePoolInitException {
+        factory = new SimpleByteBufferCachePoolFactory(bufferSize, direct);
 
         if (poolSize < 1) throw new ByteBufferCachePoolInitException("pool size can not be less than 1");
+        if (idleMillis < 0) throw new ByteBufferCachePoolInitException("idle time can not be less than 0");
 
-        stack = new ByteBuffer[poolSize];
-        for (int i = 0; i < stack.length; i++) {
-            stack[i] = factory.create();
-        }
-        maxIndex = stack.length - 1;
-        top = maxIndex;
+        this.poolSize = poolSize;
+        sizing = new ElasticSizing(poolSize, idleMillis, autoTune);
+        stack = new ByteBuffer[Math.min(poolSize, INITIAL_STACK_LENGTH)];
+        top = -1;
     }
 
     @Override
     public ByteBuffer get() {
+        ByteBuffer byteBuffer = null;
+
         lock.lock();
         getCount++;
         try {
             // pop
             if (top >= 0) {
-                ByteBuffer byteBuffer = stack[top];
+                byteBuffer = stack[top];
                 stack[top] = null;
                 top--;
-                return byteBuffer;
             } else {
-                logger.info("cache pool out of stock");
-                return factory.create();
+                missCount++;
             }
+            inUse++;
+            sizing.onGet(top + 1, inUse);
         } finally {
             lock.unlock();
         }
+
+        return byteBuffer != null ? byteBuffer : factory.create();
+    }
+
+    @Override
+    public ByteBuffer get(final int minCapacity) {
+        return get();
     }
 
     @Override
@@ -64,15 +95,24 @@ public final class SimpleByteBufferCachePool implements ByteBufferCachePool {
         lock.lock();
         returnCount++;
         try {
+            inUse--;
             int next = top + 1;
-            if (next <= maxIndex) {
+            if (next < sizing.limit() && !closed) {
+                if (next == stack.length) {
+                    stack = Arrays.copyOf(stack, Math.min(poolSize, stack.length * 2));
+                }
                 factory.refresh(byteBuffer);
                 stack[next] = byteBuffer;
                 top = next;
+                return;
             }
+            overflowCount++;
         } finally {
             lock.unlock();
         }
+
+        // the caller gave up its reference, nobody else can touch it
+        factory.destroy(byteBuffer);
     }
 
     @Override
@@ -83,7 +123,7 @@ public final class SimpleByteBufferCachePool implements ByteBufferCachePool {
 
     @Override
     public int capacity() {
-        return stack.length;
+        return poolSize;
     }
 
     @Override
@@ -96,6 +136,58 @@ public final class SimpleByteBufferCachePool implements ByteBufferCachePool {
         }
     }
 
+    @Override
+    public void trim() {
+        lock.lock();
+        try {
+            if (closed) return;
+
+            final int excess = sizing.trim(System.nanoTime(), top + 1, inUse);
+            if (excess == 0) return;
+
+            // the bottom of the stack is the coldest
+            for (int i = 0; i < excess; i++) {
+                factory.destroy(stack[i]);
+            }
+            final int idle = top + 1 - excess;
+            System.arraycopy(stack, excess, stack, 0, idle);
+            Arrays.fill(stack, idle, top + 1, null);
+            top = idle - 1;
+            trimCount += excess;
+
+            if (stack.length > INITIAL_STACK_LENGTH && idle < stack.length / 4) {
+                stack = Arrays.copyOf(stack, Math.max(INITIAL_STACK_LENGTH, stack.length / 2));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long hitCount() {
+        return getCount - missCount;
+    }
+
+    @Override
+    public long missCount() {
+        return missCount;
+    }
+
+    @Override
+    public long overflowCount() {
+        return overflowCount;
+    }
+
+    @Override
+    public int highWater() {
+        lock.lock();
+        try {
+            return sizing.highWater();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void start() {
         factory.start();
@@ -103,7 +195,33 @@ public final class SimpleByteBufferCachePool implements ByteBufferCachePool {
 
     @Override
     public void shutdown() {
+        lock.lock();
+        try {
+            // buffers still held by connections are destroyed when they come back
+            closed = true;
+            for (int i = 0; i <= top; i++) {
+                factory.destroy(stack[i]);
+                stack[i] = null;
+            }
+            top = -1;
+        } finally {
+            lock.unlock();
+        }
+
         factory.shutdown();
         logger.debug("{}: getCount={}, returnCount={}", this, getCount, returnCount);
     }
+
+    @Override
+    public String toString() {
+        return "SimpleByteBufferCachePool{idle=" + left()
+                + ", limit=" + sizing.limit()
+                + ", maxSize=" + poolSize
+                + ", hit=" + hitCount()
+                + ", miss=" + missCount()
+                + ", overflow=" + overflowCount()
+                + ", highWater=" + highWater()
+                + ", trimmed=" + trimCount
+                + "}";
+    }
 }
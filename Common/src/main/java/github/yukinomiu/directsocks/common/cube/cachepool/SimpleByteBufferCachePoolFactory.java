@@ -9,15 +9,23 @@ import java.nio.ByteOrder;
  */
 public final class SimpleByteBufferCachePoolFactory implements ByteBufferCachePoolFactory {
     private final int BUFFER_SIZE;
+    private final boolean DIRECT;
 
     SimpleByteBufferCachePoolFactory(final int bufferSize) throws ByteBufferCachePoolFactoryInitException {
+        this(bufferSize, false);
+    }
+
+    // direct buffers let channel IO use native memory without the JDK's temporary direct buffer copy
+    SimpleByteBufferCachePoolFactory(final int bufferSize, final boolean direct) throws ByteBufferCachePoolFactoryInitException {
         if (bufferSize < 1) throw new ByteBufferCachePoolFactoryInitException("buffer size can not be less than 1");
         BUFFER_SIZE = bufferSize;
+        DIRECT = direct;
     }
 
     @Override
     public ByteBuffer create() {
-        return ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        final ByteBuffer byteBuffer = DIRECT ? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+        return byteBuffer.order(ByteOrder.BIG_ENDIAN);
     }
 
     @Override
@@ -35,6 +43,10 @@ public final class SimpleByteBufferCachePoolFactory implements ByteBufferCachePo
 
     @Override
     public void destroy(final ByteBuffer byteBuffer) {
+        if (DIRECT && byteBuffer != null) {
+            // do not wait for GC to notice the small heap object holding a lot of native memory
+            DirectBufferCleaner.clean(byteBuffer);
+        }
     }
 
     @Override
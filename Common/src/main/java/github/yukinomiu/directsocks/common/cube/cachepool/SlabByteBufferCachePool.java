@@ -0,0 +1,259 @@
+package github.yukinomiu.directsocks.common.cube.cachepool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Yukinomiu
+ * 2017/8/6
+ */
+public final class SlabByteBufferCachePool implements ByteBufferCachePool {
+    private static final Logger logger = LoggerFactory.getLogger(SlabByteBufferCachePool.class);
+
+    private static final int MIN_CLASS_SIZE = 512;
+    private static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    private static final int SLABS_PER_ARENA = 16;
+
+    private final ByteBufferCachePoolFactory factory;
+    private final boolean direct;
+    private final int slabSize;
+    private final int poolSize;
+    // the arena never holds more than poolSize buffers of the largest class
+    private final long maxArenaBytes;
+
+    // power of 2 classes from MIN_CLASS_SIZE, the last one is exactly bufferSize
+    private final SizeClass[] sizeClasses;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+
+    private long arenaBytes;
+    private long getCount;
+    private long returnCount;
+    private long createCount;
+    private long overflowCount;
+    private int inUse;
+    private int highWater;
+    private boolean closed;
+
+    public SlabByteBufferCachePool(final int bufferSize, final int poolSize, final boolean direct) throws ByteBufferCachePoolInitException {
+        this(bufferSize, poolSize, direct, DEFAULT_SLAB_SIZE);
+    }
+
+    public SlabByteBufferCachePool(final int bufferSize, final int poolSize, final boolean direct, final int slabSize) throws ByteBufferCachePoolInitException {
+        // oversized requests and arena overflow fall back to plain buffers
+        factory = new SimpleByteBufferCachePoolFactory(bufferSize, direct);
+
+        if (poolSize < 1) throw new ByteBufferCachePoolInitException("pool size can not be less than 1");
+        if (slabSize < bufferSize) throw new ByteBufferCachePoolInitException("slab size can not be less than buffer size");
+
+        this.direct = direct;
+        this.slabSize = slabSize;
+        this.poolSize = poolSize;
+        this.maxArenaBytes = (long) bufferSize * poolSize;
+
+        final List<SizeClass> classes = new ArrayList<>();
+        for (int size = MIN_CLASS_SIZE; size < bufferSize; size <<= 1) {
+            classes.add(new SizeClass(size));
+        }
+        classes.add(new SizeClass(bufferSize));
+        sizeClasses = classes.toArray(new SizeClass[classes.size()]);
+    }
+
+    @Override
+    public ByteBuffer get() {
+        return get(sizeClasses[sizeClasses.length - 1], 0);
+    }
+
+    @Override
+    public ByteBuffer get(final int minCapacity) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (sizeClass.size >= minCapacity) {
+                return get(sizeClass, minCapacity);
+            }
+        }
+
+        // larger than any class, never pooled
+        synchronized (this) {
+            getCount++;
+            createCount++;
+            countGet();
+        }
+        return allocate(minCapacity);
+    }
+
+    @Override
+    public void returnBack(final ByteBuffer byteBuffer) {
+        if (byteBuffer == null) return;
+
+        final SizeClass sizeClass = classOf(byteBuffer.capacity());
+        synchronized (this) {
+            returnCount++;
+            inUse--;
+            // carved buffers always fit back, anything else is a fallback buffer
+            if (!closed && sizeClass != null && sizeClass.free.size() < sizeClass.carved) {
+                factory.refresh(byteBuffer);
+                sizeClass.free.push(byteBuffer);
+                return;
+            }
+            overflowCount++;
+        }
+
+        // a slice of a slab is never destroyed on its own, the slab goes with the pool
+        if (sizeClass == null || sizeClass.carved == 0) {
+            factory.destroy(byteBuffer);
+        }
+    }
+
+    @Override
+    public void refresh(final ByteBuffer byteBuffer) {
+        if (byteBuffer == null) return;
+        factory.refresh(byteBuffer);
+    }
+
+    @Override
+    public int capacity() {
+        return poolSize;
+    }
+
+    @Override
+    public synchronized int left() {
+        // in buffers of the largest class
+        long bytes = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            bytes += (long) sizeClass.free.size() * sizeClass.size;
+        }
+        bytes += maxArenaBytes - arenaBytes;
+        return (int) (bytes / sizeClasses[sizeClasses.length - 1].size);
+    }
+
+    @Override
+    public void trim() {
+        // a slice can not be freed on its own, the arena is already filled on demand only
+    }
+
+    @Override
+    public synchronized long hitCount() {
+        return getCount - createCount;
+    }
+
+    @Override
+    public synchronized long missCount() {
+        return createCount;
+    }
+
+    @Override
+    public synchronized long overflowCount() {
+        return overflowCount;
+    }
+
+    @Override
+    public synchronized int highWater() {
+        return highWater;
+    }
+
+    @Override
+    public void start() {
+        factory.start();
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        closed = true;
+        for (SizeClass sizeClass : sizeClasses) {
+            sizeClass.free.clear();
+        }
+
+        // every connection has returned its buffers, nothing refers to the slabs anymore
+        for (ByteBuffer slab : slabs) {
+            factory.destroy(slab);
+        }
+        slabs.clear();
+
+        factory.shutdown();
+        logger.debug("{}: getCount={}, returnCount={}", this, getCount, returnCount);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SlabByteBufferCachePool{idle=" + left()
+                + ", arenaBytes=" + arenaBytes
+                + ", maxArenaBytes=" + maxArenaBytes
+                + ", hit=" + hitCount()
+                + ", miss=" + missCount()
+                + ", overflow=" + overflowCount()
+                + ", highWater=" + highWater()
+                + "}";
+    }
+
+    private ByteBuffer get(final SizeClass sizeClass, final int minCapacity) {
+        synchronized (this) {
+            getCount++;
+            countGet();
+            if (sizeClass.free.isEmpty() && !closed) {
+                carve(sizeClass);
+            }
+
+            final ByteBuffer byteBuffer = sizeClass.free.poll();
+            if (byteBuffer != null) {
+                return byteBuffer;
+            }
+            createCount++;
+        }
+
+        return allocate(Math.max(minCapacity, sizeClass.size));
+    }
+
+    // cut a new slab into buffers of the class, one slab serves one class so fragmentation stays within a slab
+    private void carve(final SizeClass sizeClass) {
+        // a small arena is cut into smaller slabs so one class can not take all of it
+        final long slabBytes = Math.min(slabSize, Math.max(sizeClass.size, maxArenaBytes / SLABS_PER_ARENA));
+        final int count = (int) (Math.min(slabBytes, maxArenaBytes - arenaBytes) / sizeClass.size);
+        if (count < 1) {
+            return;
+        }
+        final int bytes = count * sizeClass.size;
+
+        final ByteBuffer slab = allocate(bytes);
+        slabs.add(slab);
+        arenaBytes += bytes;
+
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * sizeClass.size);
+            slab.position(i * sizeClass.size);
+            sizeClass.free.push(slab.slice().order(ByteOrder.BIG_ENDIAN));
+        }
+        sizeClass.carved += count;
+    }
+
+    private void countGet() {
+        inUse++;
+        if (inUse > highWater) highWater = inUse;
+    }
+
+    private ByteBuffer allocate(final int capacity) {
+        final ByteBuffer byteBuffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        return byteBuffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private SizeClass classOf(final int capacity) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (sizeClass.size == capacity) return sizeClass;
+        }
+        return null;
+    }
+
+    private static final class SizeClass {
+        private final int size;
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private int carved;
+
+        private SizeClass(final int size) {
+            this.size = size;
+        }
+    }
+}
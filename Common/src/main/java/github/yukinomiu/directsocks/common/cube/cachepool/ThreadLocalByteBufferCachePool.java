@@ -0,0 +1,336 @@
+package github.yukinomiu.directsocks.common.cube.cachepool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Yukinomiu
+ * 2017/8/6
+ */
+public final class ThreadLocalByteBufferCachePool implements ByteBufferCachePool {
+    private static final Logger logger = LoggerFactory.getLogger(ThreadLocalByteBufferCachePool.class);
+
+    private static final int DEFAULT_LOCAL_SIZE = 64;
+
+    private final ByteBufferCachePoolFactory factory;
+    private final int poolSize;
+    private final long idleNanos;
+    private final ElasticSizing sizing;
+    private final int localSize;
+    // buffers move between a thread and the shared store in batches of half a local cache
+    private final int batchSize;
+
+    // lock free shared store, bounded by the sizing limit
+    private final Queue<ByteBuffer> shared = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger sharedCount = new AtomicInteger();
+
+    // every thread touching the pool, i.e. every switcher, owns one cache, no locking on get and return
+    private final ThreadLocal<LocalCache> localCache = ThreadLocal.withInitial(this::newLocalCache);
+    private final Queue<LocalCache> localCaches = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder getCount = new LongAdder();
+    private final LongAdder returnCount = new LongAdder();
+    private final LongAdder createCount = new LongAdder();
+    private final LongAdder overflowCount = new LongAdder();
+    private final LongAdder trimCount = new LongAdder();
+
+    private volatile boolean closed;
+
+    public ThreadLocalByteBufferCachePool(final int bufferSize, final int poolSize, final boolean direct) throws ByteBufferCachePoolInitException {
+        this(bufferSize, poolSize, direct, 0, false);
+    }
+
+    public ThreadLocalByteBufferCachePool(final int bufferSize,
+                                          final int poolSize,
+                                          final boolean direct,
+                                          final long idleMillis,
+                                          final boolean autoTune) throws ByteBufferCachePoolInitException {
+        this(bufferSize, poolSize, direct, idleMillis, autoTune, DEFAULT_LOCAL_SIZE);
+    }
+
+    // buffers are created on demand, idleMillis > 0 frees the ones left unused that long in the shared store
+    public ThreadLocalByteBufferCachePool(final int bufferSize,
+                                          final int poolSize,
+                                          final boolean direct,
+                                          final long idleMillis,
+                                          final boolean autoTune,
+                                          final int localSize) throws ByteBufferCachePoolInitException {
+        factory = new SimpleByteBufferCachePoolFactory(bufferSize, direct);
+
+        if (poolSize < 1) throw new ByteBufferCachePoolInitException("pool size can not be less than 1");
+        if (idleMillis < 0) throw new ByteBufferCachePoolInitException("idle time can not be less than 0");
+        if (localSize < 2) throw new ByteBufferCachePoolInitException("local size can not be less than 2");
+
+        this.poolSize = poolSize;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.sizing = new ElasticSizing(poolSize, idleMillis, autoTune);
+        this.localSize = localSize;
+        this.batchSize = localSize / 2;
+    }
+
+    @Override
+    public ByteBuffer get() {
+        getCount.increment();
+
+        final LocalCache cache = localCache.get();
+        if (cache.size == 0) {
+            refill(cache);
+        }
+
+        if (cache.size > 0) {
+            final ByteBuffer byteBuffer = cache.stack[--cache.size];
+            cache.stack[cache.size] = null;
+            if (cache.size < cache.lowWater) cache.lowWater = cache.size;
+            return byteBuffer;
+        }
+
+        createCount.increment();
+        return factory.create();
+    }
+
+    @Override
+    public ByteBuffer get(final int minCapacity) {
+        return get();
+    }
+
+    @Override
+    public void returnBack(final ByteBuffer byteBuffer) {
+        if (byteBuffer == null) return;
+        returnCount.increment();
+
+        if (closed) {
+            factory.destroy(byteBuffer);
+            return;
+        }
+
+        final LocalCache cache = localCache.get();
+        if (cache.size == localSize) {
+            spill(cache);
+        }
+
+        factory.refresh(byteBuffer);
+        cache.stack[cache.size++] = byteBuffer;
+    }
+
+    @Override
+    public void refresh(final ByteBuffer byteBuffer) {
+        if (byteBuffer == null) return;
+        factory.refresh(byteBuffer);
+    }
+
+    @Override
+    public int capacity() {
+        return poolSize;
+    }
+
+    @Override
+    public int left() {
+        // approximate, local caches are read without synchronization
+        int left = sharedCount.get();
+        for (LocalCache cache : localCaches) {
+            left += cache.size;
+        }
+        return left;
+    }
+
+    @Override
+    public void trim() {
+        if (closed) return;
+
+        // engines with a thread per connection leave a cache behind each connection, they must not pile up
+        reclaimDeadCaches();
+        if (idleNanos == 0) return;
+
+        // the calling switcher's own cache, the bottom of its stack is the coldest
+        final LocalCache cache = localCache.get();
+        final long now = System.nanoTime();
+        if (now - cache.trimAt >= idleNanos) {
+            final int excess = cache.lowWater;
+            for (int i = 0; i < excess; i++) {
+                factory.destroy(cache.stack[i]);
+            }
+            System.arraycopy(cache.stack, excess, cache.stack, 0, cache.size - excess);
+            for (int i = cache.size - excess; i < cache.size; i++) {
+                cache.stack[i] = null;
+            }
+            cache.size -= excess;
+            cache.lowWater = cache.size;
+            cache.trimAt = now;
+            trimCount.add(excess);
+        }
+
+        synchronized (sizing) {
+            final int excess = sizing.trim(now, sharedCount.get(), inUse());
+
+            // other threads may take from the store meanwhile, then less is freed
+            for (int i = 0; i < excess; i++) {
+                final ByteBuffer byteBuffer = shared.poll();
+                if (byteBuffer == null) break;
+                sharedCount.decrementAndGet();
+                factory.destroy(byteBuffer);
+                trimCount.increment();
+            }
+        }
+    }
+
+    @Override
+    public long hitCount() {
+        return getCount.sum() - createCount.sum();
+    }
+
+    @Override
+    public long missCount() {
+        return createCount.sum();
+    }
+
+    @Override
+    public long overflowCount() {
+        return overflowCount.sum();
+    }
+
+    @Override
+    public int highWater() {
+        synchronized (sizing) {
+            return sizing.highWater();
+        }
+    }
+
+    @Override
+    public void start() {
+        factory.start();
+    }
+
+    @Override
+    public void shutdown() {
+        closed = true;
+
+        ByteBuffer byteBuffer;
+        while ((byteBuffer = shared.poll()) != null) {
+            factory.destroy(byteBuffer);
+        }
+        sharedCount.set(0);
+
+        // switch threads have stopped by now, a cache of a live thread is left to GC
+        final Thread current = Thread.currentThread();
+        for (LocalCache cache : localCaches) {
+            if (cache.owner == current || !cache.owner.isAlive()) {
+                drainTo(cache, null);
+            }
+        }
+        localCaches.clear();
+
+        factory.shutdown();
+        logger.debug("{}: getCount={}, returnCount={}", this, getCount.sum(), returnCount.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "ThreadLocalByteBufferCachePool{idle=" + left()
+                + ", limit=" + sizing.limit()
+                + ", maxSize=" + poolSize
+                + ", hit=" + hitCount()
+                + ", miss=" + missCount()
+                + ", overflow=" + overflowCount()
+                + ", highWater=" + highWater()
+                + ", trimmed=" + trimCount.sum()
+                + "}";
+    }
+
+    private int inUse() {
+        return (int) (getCount.sum() - returnCount.sum());
+    }
+
+    private LocalCache newLocalCache() {
+        final LocalCache cache = new LocalCache(Thread.currentThread(), localSize);
+        localCaches.offer(cache);
+        return cache;
+    }
+
+    private void refill(final LocalCache cache) {
+        if (sharedCount.get() == 0) {
+            reclaimDeadCaches();
+        }
+
+        ByteBuffer byteBuffer;
+        while (cache.size < batchSize && (byteBuffer = shared.poll()) != null) {
+            sharedCount.decrementAndGet();
+            cache.stack[cache.size++] = byteBuffer;
+        }
+
+        // sampled once per batch, not on every get
+        synchronized (sizing) {
+            sizing.onGet(sharedCount.get(), inUse());
+        }
+    }
+
+    private void spill(final LocalCache cache) {
+        // the older half goes to the shared store, whatever does not fit there is freed
+        final int keep = cache.size - batchSize;
+        for (int i = 0; i < batchSize; i++) {
+            final ByteBuffer byteBuffer = cache.stack[i];
+            if (sharedCount.incrementAndGet() <= sizing.limit()) {
+                shared.offer(byteBuffer);
+            } else {
+                sharedCount.decrementAndGet();
+                overflowCount.increment();
+                factory.destroy(byteBuffer);
+            }
+        }
+
+        System.arraycopy(cache.stack, batchSize, cache.stack, 0, keep);
+        for (int i = keep; i < cache.size; i++) {
+            cache.stack[i] = null;
+        }
+        cache.size = keep;
+        if (keep < cache.lowWater) cache.lowWater = keep;
+    }
+
+    private void reclaimDeadCaches() {
+        // a retired switcher leaves its cache behind, its thread has terminated so the cache is safe to take
+        for (LocalCache cache : localCaches) {
+            // remove succeeds for one thread only
+            if (!cache.owner.isAlive() && localCaches.remove(cache)) {
+                drainTo(cache, shared);
+            }
+        }
+    }
+
+    private void drainTo(final LocalCache cache, final Queue<ByteBuffer> target) {
+        for (int i = 0; i < cache.size; i++) {
+            final ByteBuffer byteBuffer = cache.stack[i];
+            cache.stack[i] = null;
+            if (target != null && sharedCount.incrementAndGet() <= sizing.limit()) {
+                target.offer(byteBuffer);
+            } else {
+                if (target != null) {
+                    sharedCount.decrementAndGet();
+                    overflowCount.increment();
+                }
+                factory.destroy(byteBuffer);
+            }
+        }
+        cache.size = 0;
+        cache.lowWater = 0;
+    }
+
+    private static final class LocalCache {
+        private final Thread owner;
+        private final ByteBuffer[] stack;
+        private int size;
+        // fewest buffers held since the last trim, touched by the owner only
+        private int lowWater;
+        private long trimAt = System.nanoTime();
+
+        private LocalCache(final Thread owner, final int localSize) {
+            this.owner = owner;
+            this.stack = new ByteBuffer[localSize];
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package github.yukinomiu.directsocks.common.cube.dns;
+
+import github.yukinomiu.directsocks.common.cube.exception.DnsException;
+import github.yukinomiu.directsocks.common.exception.DirectSocksConfigException;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Yukinomiu
+ * 2017/8/4
+ */
+public final class DnsCache {
+    // refresh a popular entry once less than 1/REFRESH_AHEAD_DIVISOR of its TTL is left
+    private static final int REFRESH_AHEAD_DIVISOR = 5;
+    private static final int REFRESH_AHEAD_HITS = 2;
+    // evict down to 90% of the capacity at once so eviction runs once per many inserts
+    private static final int EVICT_TARGET_PERCENT = 90;
+
+    private final int maxSize;
+    private final long maxTtlNanos;
+    private final long negativeTtlNanos;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock evictLock = new ReentrantLock();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder negativeHitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder refreshCount = new LongAdder();
+
+    public DnsCache(final int maxSize, final int maxTtlSeconds, final int negativeTtlSeconds) {
+        if (maxSize < 1) throw new DirectSocksConfigException("DNS cache size can not be less than 1");
+        if (maxTtlSeconds < 1) throw new DirectSocksConfigException("DNS cache max TTL can not be less than 1");
+        if (negativeTtlSeconds < 0) throw new DirectSocksConfigException("DNS cache negative TTL can not be less than 0");
+
+        this.maxSize = maxSize;
+        this.maxTtlNanos = TimeUnit.SECONDS.toNanos(maxTtlSeconds);
+        this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+    }
+
+    // null if absent or expired, a negative entry has null addresses and the cached exception
+    Entry get(final String name) {
+        final Entry entry = entries.get(name);
+        final long now = System.nanoTime();
+        if (entry == null || now - entry.expireAt >= 0) {
+            if (entry != null) entries.remove(name, entry);
+            missCount.increment();
+            return null;
+        }
+
+        entry.lastAccess = now;
+        entry.hits++;
+        if (entry.addresses == null) {
+            negativeHitCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        return entry;
+    }
+
+    // whether the caller should refresh this entry ahead of expiry, true for exactly one caller
+    boolean tryRefresh(final Entry entry) {
+        if (entry.addresses == null || entry.hits < REFRESH_AHEAD_HITS) return false;
+
+        final long remaining = entry.expireAt - System.nanoTime();
+        if (remaining > entry.ttlNanos / REFRESH_AHEAD_DIVISOR) return false;
+
+        if (!entry.refreshing.compareAndSet(false, true)) return false;
+        refreshCount.increment();
+        return true;
+    }
+
+    void refreshFail(final Entry entry) {
+        entry.refreshing.set(false);
+    }
+
+    void put(final String name, final InetAddress[] addresses, final long ttlSeconds) {
+        final long ttlNanos = Math.min(TimeUnit.SECONDS.toNanos(ttlSeconds), maxTtlNanos);
+        if (ttlNanos <= 0) {
+            entries.remove(name);
+            return;
+        }
+
+        entries.put(name, new Entry(addresses, null, ttlNanos));
+        evictIfNecessary();
+    }
+
+    void putNegative(final String name, final DnsException dnsException) {
+        if (negativeTtlNanos <= 0) return;
+
+        entries.put(name, new Entry(null, dnsException, negativeTtlNanos));
+        evictIfNecessary();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    public long hitCount() {
+        return hitCount.sum();
+    }
+
+    public long negativeHitCount() {
+        return negativeHitCount.sum();
+    }
+
+    public long missCount() {
+        return missCount.sum();
+    }
+
+    public long evictionCount() {
+        return evictionCount.sum();
+    }
+
+    public long refreshCount() {
+        return refreshCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "DnsCache{size=" + size()
+                + ", maxSize=" + maxSize
+                + ", hit=" + hitCount()
+                + ", negativeHit=" + negativeHitCount()
+                + ", miss=" + missCount()
+                + ", eviction=" + evictionCount()
+                + ", refresh=" + refreshCount()
+                + "}";
+    }
+
+    private void evictIfNecessary() {
+        if (entries.size() <= maxSize || !evictLock.tryLock()) return;
+
+        try {
+            final long now = System.nanoTime();
+            final int target = (int) ((long) maxSize * EVICT_TARGET_PERCENT / 100);
+
+            // expired entries first, then the least recently used ones
+            final List<Map.Entry<String, Entry>> alive = new ArrayList<>(entries.size());
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                if (now - mapEntry.getValue().expireAt >= 0) {
+                    if (entries.remove(mapEntry.getKey(), mapEntry.getValue())) evictionCount.increment();
+                } else {
+                    alive.add(mapEntry);
+                }
+            }
+
+            final int excess = entries.size() - target;
+            if (excess <= 0) return;
+
+            alive.sort(Comparator.comparingLong(mapEntry -> mapEntry.getValue().lastAccess - now));
+            for (int i = 0; i < excess && i < alive.size(); i++) {
+                Map.Entry<String, Entry> mapEntry = alive.get(i);
+                if (entries.remove(mapEntry.getKey(), mapEntry.getValue())) evictionCount.increment();
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    static final class Entry {
+        private final InetAddress[] addresses;
+        private final DnsException dnsException;
+        private final long ttlNanos;
+        private final long expireAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        // racy on purpose, only used as eviction and refresh hints
+        private volatile long lastAccess;
+        private volatile int hits;
+
+        private Entry(final InetAddress[] addresses, final DnsException dnsException, final long ttlNanos) {
+            this.addresses = addresses;
+            this.dnsException = dnsException;
+            this.ttlNanos = ttlNanos;
+            this.lastAccess = System.nanoTime();
+            this.expireAt = lastAccess + ttlNanos;
+        }
+
+        InetAddress[] getAddresses() {
+            return addresses;
+        }
+
+        DnsException getDnsException() {
+            return dnsException;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package github.yukinomiu.directsocks.common.cube.dns;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Yukinomiu
+ * 2017/8/3
+ */
+final class DnsCodec {
+    static final int TYPE_A = 1;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_AAAA = 28;
+
+    static final int RCODE_NO_ERROR = 0;
+    static final int RCODE_NAME_ERROR = 3;
+
+    private static final int CLASS_IN = 1;
+    private static final int FLAG_RD = 0x0100;
+    private static final int FLAG_TC = 0x0200;
+    private static final int FLAG_QR = 0x8000;
+
+    private static final int MAX_NAME_LENGTH = 255;
+    // bound the work a crafted message can cause
+    private static final int MAX_POINTERS = 32;
+    private static final int MAX_CNAME_CHAIN = 8;
+
+    private DnsCodec() {
+    }
+
+    static boolean validName(final String host) {
+        if (host.isEmpty() || host.length() > 253) return false;
+
+        for (String label : splitName(host)) {
+            if (label.isEmpty() || label.length() > 63) return false;
+        }
+        return true;
+    }
+
+    static void encodeQuery(final ByteBuffer dst, final int id, final String host, final int type) {
+        // header
+        dst.putShort((short) id);
+        dst.putShort((short) FLAG_RD);
+        dst.putShort((short) 1);
+        dst.putShort((short) 0);
+        dst.putShort((short) 0);
+        dst.putShort((short) 0);
+
+        // question
+        for (String label : splitName(host)) {
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            dst.put((byte) bytes.length);
+            dst.put(bytes);
+        }
+        dst.put((byte) 0);
+        dst.putShort((short) type);
+        dst.putShort((short) CLASS_IN);
+    }
+
+    // null if malformed or not the answer to the query sent, the question must come back as it was asked
+    static Response decodeResponse(final ByteBuffer src, final int expectedId, final String expectedHost, final int expectedType) {
+        try {
+            final int id = src.getShort() & 0xffff;
+            final int flags = src.getShort() & 0xffff;
+            if (id != expectedId || (flags & FLAG_QR) == 0) return null;
+
+            final int questionCount = src.getShort() & 0xffff;
+            final int answerCount = src.getShort() & 0xffff;
+            src.getShort(); // authority
+            src.getShort(); // additional
+
+            final String expectedName = normalizeName(expectedHost);
+            if (questionCount != 1 || !expectedName.equals(readName(src))) return null;
+            final int questionType = src.getShort() & 0xffff;
+            final int questionClass = src.getShort() & 0xffff;
+            if (questionType != expectedType || questionClass != CLASS_IN) return null;
+
+            final Response response = new Response(id, flags & 0x000f, (flags & FLAG_TC) != 0);
+            if (response.isTruncated()) {
+                // the answers may be cut anywhere, the query has to be asked again over TCP
+                return response;
+            }
+
+            final List<Record> records = new ArrayList<>(answerCount);
+            for (int i = 0; i < answerCount; i++) {
+                final String owner = readName(src);
+                final int type = src.getShort() & 0xffff;
+                final int clazz = src.getShort() & 0xffff;
+                final long ttl = src.getInt() & 0xffffffffL;
+                final int length = src.getShort() & 0xffff;
+                final int next = src.position() + length;
+                if (next > src.limit()) return null;
+
+                if (clazz == CLASS_IN) {
+                    if (type == TYPE_CNAME) {
+                        records.add(new Record(owner, ttl, null, readName(src)));
+                    } else if (type == expectedType && length == (type == TYPE_A ? 4 : 16)) {
+                        byte[] address = new byte[length];
+                        src.get(address);
+                        records.add(new Record(owner, ttl, address, null));
+                    }
+                }
+                src.position(next);
+            }
+
+            // only addresses owned by the name asked, or by the end of a CNAME chain starting from it, are taken
+            String name = expectedName;
+            long chainTtl = Long.MAX_VALUE;
+            for (int step = 0; step <= MAX_CNAME_CHAIN; step++) {
+                Record alias = null;
+                for (Record record : records) {
+                    if (!name.equals(record.owner)) continue;
+
+                    if (record.address != null) {
+                        response.addAddress(record.address, Math.min(chainTtl, record.ttl));
+                    } else if (alias == null) {
+                        alias = record;
+                    }
+                }
+
+                if (!response.getAddresses().isEmpty() || alias == null) break;
+                name = alias.target;
+                chainTtl = Math.min(chainTtl, alias.ttl);
+            }
+            return response;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            // truncated or malformed message
+            return null;
+        }
+    }
+
+    // lower case, no trailing dot, compression pointers followed
+    private static String readName(final ByteBuffer src) {
+        final StringBuilder name = new StringBuilder();
+        int position = src.position();
+        int resumeAt = -1;
+        int pointers = 0;
+        while (true) {
+            final int length = src.get(position) & 0xff;
+            if (length == 0) {
+                position++;
+                break;
+            }
+
+            if ((length & 0xc0) == 0xc0) {
+                if (++pointers > MAX_POINTERS) throw new IllegalArgumentException("compression loop");
+                if (resumeAt == -1) resumeAt = position + 2;
+                position = ((length & 0x3f) << 8) | (src.get(position + 1) & 0xff);
+                continue;
+            }
+            if ((length & 0xc0) != 0) throw new IllegalArgumentException("unknown label type");
+
+            if (name.length() > 0) name.append('.');
+            for (int i = 1; i <= length; i++) {
+                char c = (char) (src.get(position + i) & 0xff);
+                if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+                name.append(c);
+            }
+            if (name.length() > MAX_NAME_LENGTH) throw new IllegalArgumentException("name too long");
+            position += length + 1;
+        }
+
+        src.position(resumeAt == -1 ? position : resumeAt);
+        return name.toString();
+    }
+
+    private static String normalizeName(final String host) {
+        final String name = host.endsWith(".") ? host.substring(0, host.length() - 1) : host;
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static List<String> splitName(final String host) {
+        final String name = host.endsWith(".") ? host.substring(0, host.length() - 1) : host;
+        final List<String> labels = new ArrayList<>();
+        int start = 0;
+        int dot;
+        while ((dot = name.indexOf('.', start)) != -1) {
+            labels.add(name.substring(start, dot));
+            start = dot + 1;
+        }
+        labels.add(name.substring(start));
+        return labels;
+    }
+
+    private static final class Record {
+        private final String owner;
+        private final long ttl;
+        // an address of the type asked, or the target of a CNAME
+        private final byte[] address;
+        private final String target;
+
+        private Record(final String owner, final long ttl, final byte[] address, final String target) {
+            this.owner = owner;
+            this.ttl = ttl;
+            this.address = address;
+            this.target = target;
+        }
+    }
+
+    static final class Response {
+        private final int id;
+        private final int rcode;
+        private final boolean truncated;
+        private final List<byte[]> addresses = new ArrayList<>();
+        private long minTtl = Long.MAX_VALUE;
+
+        private Response(final int id, final int rcode, final boolean truncated) {
+            this.id = id;
+            this.rcode = rcode;
+            this.truncated = truncated;
+        }
+
+        private void addAddress(final byte[] address, final long ttl) {
+            addresses.add(address);
+            minTtl = Math.min(minTtl, ttl);
+        }
+
+        int getId() {
+            return id;
+        }
+
+        int getRcode() {
+            return rcode;
+        }
+
+        boolean isTruncated() {
+            return truncated;
+        }
+
+        // addresses of the type asked, no answers are decoded from a truncated response
+        List<byte[]> getAddresses() {
+            return addresses;
+        }
+
+        long getMinTtl() {
+            return minTtl == Long.MAX_VALUE ? 0 : minTtl;
+        }
+    }
+}
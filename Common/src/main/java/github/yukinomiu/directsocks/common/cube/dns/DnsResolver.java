@@ -0,0 +1,574 @@
+package github.yukinomiu.directsocks.common.cube.dns;
+
+import github.yukinomiu.directsocks.common.cube.exception.DnsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Yukinomiu
+ * 2017/8/3
+ */
+public final class DnsResolver {
+    private static final Logger logger = LoggerFactory.getLogger(DnsResolver.class);
+
+    private static final int MAX_MESSAGE_SIZE = 4096;
+    private static final int MIN_ATTEMPTS = 2;
+
+    private final Selector selector;
+    private final InetSocketAddress[] nameservers;
+    private final Map<String, InetAddress[]> hosts;
+    private final DnsCache dnsCache;
+    private final long timeoutNanos;
+    private final int maxAttempts;
+
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+
+    private final Set<Query> queries = new HashSet<>();
+    private final Map<String, Lookup> lookups = new HashMap<>();
+
+    // no nameserver known, e.g. no resolv.conf: lookups go to the system resolver on these threads,
+    // their results are handed back to the thread driving the selector
+    private final ExecutorService systemResolver;
+    private final Queue<Runnable> systemResults = new ConcurrentLinkedQueue<>();
+
+    private long nextDeadline = Long.MAX_VALUE;
+    private int nextNameserver = 0;
+
+    public DnsResolver(final Selector selector,
+                       final List<InetSocketAddress> nameservers,
+                       final int timeoutMillis,
+                       final DnsCache dnsCache) {
+
+        this.selector = selector;
+        this.nameservers = nameservers.toArray(new InetSocketAddress[nameservers.size()]);
+        this.hosts = SystemDnsConfig.hosts();
+        this.dnsCache = dnsCache;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.maxAttempts = Math.max(MIN_ATTEMPTS, this.nameservers.length);
+
+        if (this.nameservers.length == 0) {
+            systemResolver = Executors.newCachedThreadPool(runnable -> {
+                final Thread thread = new Thread(runnable, "dns system resolve thread");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            systemResolver = null;
+        }
+    }
+
+    // must be called from the thread driving the selector, callback runs on that thread as well
+    public void resolve(final String host, final ResolveCallback callback) {
+        final String name = host.toLowerCase(Locale.ROOT);
+
+        // IP literal and hosts file never hit the network
+        final InetAddress literal = SystemDnsConfig.literalAddress(name);
+        if (literal != null) {
+            callback.doCallback(new InetAddress[]{literal}, null);
+            return;
+        }
+
+        final InetAddress[] hostsAddresses = hosts.get(name);
+        if (hostsAddresses != null) {
+            callback.doCallback(hostsAddresses, null);
+            return;
+        }
+
+        if (!DnsCodec.validName(name)) {
+            callback.doCallback(null, new DnsException("illegal host name: " + host, true));
+            return;
+        }
+
+        // shared cache, popular entries are refreshed in the background before they expire
+        if (dnsCache != null) {
+            final DnsCache.Entry entry = dnsCache.get(name);
+            if (entry != null) {
+                if (dnsCache.tryRefresh(entry)) {
+                    lookup(name, (addresses, dnsException) -> {
+                        if (dnsException != null) dnsCache.refreshFail(entry);
+                    });
+                }
+
+                callback.doCallback(entry.getAddresses(), entry.getDnsException());
+                return;
+            }
+        }
+
+        lookup(name, callback);
+    }
+
+    // the key of a query socket was selected, it may belong to an attempt replaced earlier in the same round
+    public void handleSelected(final SelectionKey selectionKey) {
+        final Query query = (Query) selectionKey.attachment();
+        if (query.selectionKey != selectionKey || !selectionKey.isValid()) {
+            return;
+        }
+
+        if (selectionKey.channel() instanceof DatagramChannel) {
+            receive(query);
+        } else {
+            exchangeTcp(query);
+        }
+    }
+
+    // milliseconds the selector may block before the next query times out, 0 if no query is outstanding
+    public long nextTimeout() {
+        if (queries.isEmpty()) {
+            return 0;
+        }
+
+        final long remaining = nextDeadline - System.nanoTime();
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+    }
+
+    public void checkTimeout() {
+        Runnable systemResult;
+        while ((systemResult = systemResults.poll()) != null) {
+            systemResult.run();
+        }
+
+        if (queries.isEmpty()) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        if (now - nextDeadline < 0) {
+            return;
+        }
+
+        final List<Query> expired = new ArrayList<>();
+        long deadline = Long.MAX_VALUE;
+        for (Query query : queries) {
+            if (now - query.deadline >= 0) {
+                expired.add(query);
+            } else if (deadline == Long.MAX_VALUE || query.deadline - deadline < 0) {
+                deadline = query.deadline;
+            }
+        }
+        nextDeadline = deadline;
+
+        for (Query query : expired) {
+            // finished meanwhile with the other query of its lookup
+            if (!queries.contains(query)) continue;
+
+            if (query.attempt < maxAttempts) {
+                logger.debug("DNS query of {} to {} timeout, retry", query.lookup.name, query.nameserver);
+                send(query, now);
+            } else {
+                finish(query);
+                queryDone(query, null, new DnsException("resolving " + query.lookup.name + " timeout"));
+            }
+        }
+    }
+
+    public void close() {
+        for (Query query : queries) {
+            closeChannel(query);
+        }
+
+        queries.clear();
+        lookups.clear();
+
+        if (systemResolver != null) {
+            systemResolver.shutdownNow();
+            systemResults.clear();
+        }
+    }
+
+    public int pendingCount() {
+        return lookups.size();
+    }
+
+    private void lookup(final String name, final ResolveCallback callback) {
+        // join an outstanding lookup of the same name
+        Lookup lookup = lookups.get(name);
+        if (lookup != null) {
+            lookup.callbacks.add(callback);
+            return;
+        }
+
+        lookup = new Lookup(name);
+        lookup.callbacks.add(callback);
+        lookups.put(name, lookup);
+
+        if (systemResolver != null) {
+            lookupSystem(lookup);
+            return;
+        }
+
+        // A and AAAA in parallel
+        final long now = System.nanoTime();
+        lookup.queryA = new Query(lookup, DnsCodec.TYPE_A);
+        lookup.queryAAAA = new Query(lookup, DnsCodec.TYPE_AAAA);
+        queries.add(lookup.queryA);
+        queries.add(lookup.queryAAAA);
+        send(lookup.queryA, now);
+        send(lookup.queryAAAA, now);
+    }
+
+    // blocks a resolver thread, the result completes the lookup in checkTimeout, after the select it wakes up
+    private void lookupSystem(final Lookup lookup) {
+        final String name = lookup.name;
+        systemResolver.execute(() -> {
+            InetAddress[] addresses = null;
+            DnsException dnsException = null;
+            try {
+                addresses = InetAddress.getAllByName(name);
+            } catch (UnknownHostException e) {
+                dnsException = new DnsException("host not found: " + name, true);
+            } catch (Exception e) {
+                dnsException = new DnsException("resolving " + name + " fail: " + e.getMessage(), e);
+            }
+
+            final InetAddress[] result = addresses;
+            final DnsException exception = dnsException;
+            systemResults.offer(() -> {
+                if (!lookup.done) complete(lookup, result, exception);
+            });
+            selector.wakeup();
+        });
+    }
+
+    // every attempt asks from a new socket: a fresh ID and a fresh ephemeral port, which the kernel picks at random,
+    // and the socket is connected so datagrams from anyone but the nameserver asked are dropped
+    private void send(final Query query, final long now) {
+        closeChannel(query);
+        query.attempt++;
+        query.id = ThreadLocalRandom.current().nextInt(0x10000);
+        query.nameserver = nameservers[nextNameserver];
+        nextNameserver = (nextNameserver + 1) % nameservers.length;
+        setDeadline(query, now);
+
+        sendBuffer.clear();
+        DnsCodec.encodeQuery(sendBuffer, query.id, query.lookup.name, query.type);
+        sendBuffer.flip();
+
+        DatagramChannel datagramChannel = null;
+        try {
+            datagramChannel = DatagramChannel.open();
+            datagramChannel.configureBlocking(false);
+            datagramChannel.connect(query.nameserver);
+            query.selectionKey = datagramChannel.register(selector, SelectionKey.OP_READ, query);
+            datagramChannel.write(sendBuffer);
+        } catch (IOException e) {
+            // treat as lost, the timeout will retry with the next nameserver
+            logger.warn("send DNS query to {} IO exception: {}", query.nameserver, e.getMessage());
+            if (query.selectionKey == null && datagramChannel != null) {
+                closeQuietly(datagramChannel);
+            }
+        }
+    }
+
+    private void receive(final Query query) {
+        final DatagramChannel datagramChannel = (DatagramChannel) query.selectionKey.channel();
+        while (true) {
+            receiveBuffer.clear();
+            final int n;
+            try {
+                n = datagramChannel.read(receiveBuffer);
+            } catch (IOException e) {
+                // ICMP unreachable and the like, no answer is coming from this nameserver
+                attemptFail(query, e);
+                return;
+            }
+
+            if (n <= 0) {
+                return;
+            }
+
+            receiveBuffer.flip();
+            final DnsCodec.Response response = DnsCodec.decodeResponse(receiveBuffer, query.id, query.lookup.name, query.type);
+            if (response == null) {
+                logger.debug("malformed or unmatched DNS response from {}", query.nameserver);
+                continue;
+            }
+
+            if (response.isTruncated()) {
+                logger.debug("DNS response of {} from {} truncated, retry over TCP", query.lookup.name, query.nameserver);
+                sendTcp(query);
+                return;
+            }
+
+            handleResponse(query, response);
+            return;
+        }
+    }
+
+    // same ID and nameserver, the answer is length prefixed and read whole
+    private void sendTcp(final Query query) {
+        closeChannel(query);
+        setDeadline(query, System.nanoTime());
+
+        sendBuffer.clear();
+        sendBuffer.position(2);
+        DnsCodec.encodeQuery(sendBuffer, query.id, query.lookup.name, query.type);
+        sendBuffer.putShort(0, (short) (sendBuffer.position() - 2));
+        sendBuffer.flip();
+        query.tcpBuffer = ByteBuffer.allocate(sendBuffer.remaining());
+        query.tcpBuffer.put(sendBuffer).flip();
+        query.tcpLength = -1;
+
+        SocketChannel socketChannel = null;
+        try {
+            socketChannel = SocketChannel.open();
+            socketChannel.configureBlocking(false);
+            final boolean connected = socketChannel.connect(query.nameserver);
+            query.selectionKey = socketChannel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, query);
+        } catch (IOException e) {
+            if (query.selectionKey == null && socketChannel != null) {
+                closeQuietly(socketChannel);
+            }
+            attemptFail(query, e);
+        }
+    }
+
+    private void exchangeTcp(final Query query) {
+        final SelectionKey selectionKey = query.selectionKey;
+        final SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
+        try {
+            if (selectionKey.isConnectable()) {
+                if (!socketChannel.finishConnect()) return;
+                selectionKey.interestOps(SelectionKey.OP_WRITE);
+            }
+
+            if ((selectionKey.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                socketChannel.write(query.tcpBuffer);
+                if (query.tcpBuffer.hasRemaining()) return;
+
+                // the length prefix first
+                query.tcpBuffer = ByteBuffer.allocate(2);
+                selectionKey.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+
+            while (true) {
+                if (socketChannel.read(query.tcpBuffer) == -1) {
+                    attemptFail(query, new IOException("connection closed by nameserver"));
+                    return;
+                }
+                if (query.tcpBuffer.hasRemaining()) return;
+
+                if (query.tcpLength == -1) {
+                    query.tcpLength = query.tcpBuffer.getShort(0) & 0xffff;
+                    query.tcpBuffer = ByteBuffer.allocate(query.tcpLength);
+                    continue;
+                }
+
+                query.tcpBuffer.flip();
+                final DnsCodec.Response response = DnsCodec.decodeResponse(query.tcpBuffer, query.id, query.lookup.name, query.type);
+                if (response == null) {
+                    attemptFail(query, new IOException("malformed or unmatched response"));
+                    return;
+                }
+
+                // a truncated answer over TCP is the most there is, its answers are not decoded
+                handleResponse(query, response);
+                return;
+            }
+        } catch (IOException e) {
+            attemptFail(query, e);
+        }
+    }
+
+    private void attemptFail(final Query query, final IOException e) {
+        logger.debug("DNS query of {} to {} fail: {}", query.lookup.name, query.nameserver, e.getMessage());
+        if (query.attempt < maxAttempts) {
+            send(query, System.nanoTime());
+            return;
+        }
+
+        finish(query);
+        queryDone(query, null, new DnsException("resolving " + query.lookup.name + " fail: " + e.getMessage(), e));
+    }
+
+    private void handleResponse(final Query query, final DnsCodec.Response response) {
+        final int rcode = response.getRcode();
+        if (rcode != DnsCodec.RCODE_NO_ERROR && rcode != DnsCodec.RCODE_NAME_ERROR && query.attempt < maxAttempts) {
+            // server failure or refused, ask another nameserver
+            send(query, System.nanoTime());
+            return;
+        }
+
+        finish(query);
+        if (rcode == DnsCodec.RCODE_NO_ERROR) {
+            queryDone(query, response, null);
+        } else if (rcode == DnsCodec.RCODE_NAME_ERROR) {
+            queryDone(query, null, new DnsException("host not found: " + query.lookup.name, true));
+        } else {
+            queryDone(query, null, new DnsException("resolving " + query.lookup.name + " fail, rcode: " + rcode));
+        }
+    }
+
+    private void queryDone(final Query query, final DnsCodec.Response response, final DnsException dnsException) {
+        final Lookup lookup = query.lookup;
+        if (lookup.done) {
+            return;
+        }
+
+        if (response != null) {
+            final List<InetAddress> addresses = new ArrayList<>();
+            for (byte[] address : response.getAddresses()) {
+                try {
+                    addresses.add(InetAddress.getByAddress(lookup.name, address));
+                } catch (UnknownHostException e) {
+                    // never happens for 4 or 16 byte addresses
+                }
+            }
+
+            if (!addresses.isEmpty()) {
+                lookup.ttl = Math.min(lookup.ttl, response.getMinTtl());
+            }
+
+            if (query.type == DnsCodec.TYPE_A) {
+                lookup.addressesA = addresses;
+            } else {
+                lookup.addressesAAAA = addresses;
+            }
+        } else if (lookup.dnsException == null || dnsException.isNameError()) {
+            lookup.dnsException = dnsException;
+        }
+
+        if (query.type == DnsCodec.TYPE_A) {
+            lookup.doneA = true;
+        } else {
+            lookup.doneAAAA = true;
+        }
+
+        // IPv4 is preferred and completes the lookup at once, IPv6 only once A is settled
+        final boolean hasA = lookup.addressesA != null && !lookup.addressesA.isEmpty();
+        final boolean hasAAAA = lookup.addressesAAAA != null && !lookup.addressesAAAA.isEmpty();
+        if (hasA || (lookup.doneA && lookup.doneAAAA)) {
+            final List<InetAddress> result = new ArrayList<>();
+            if (hasA) result.addAll(lookup.addressesA);
+            if (hasAAAA) result.addAll(lookup.addressesAAAA);
+
+            if (result.isEmpty()) {
+                // the name exists without addresses, or it may get them: not a name error, not cached
+                complete(lookup, null, lookup.dnsException != null
+                        ? lookup.dnsException
+                        : new DnsException("no address of host: " + lookup.name));
+            } else {
+                complete(lookup, result.toArray(new InetAddress[result.size()]), null);
+            }
+        }
+    }
+
+    private void complete(final Lookup lookup, final InetAddress[] addresses, final DnsException dnsException) {
+        lookup.done = true;
+        lookups.remove(lookup.name);
+        if (lookup.queryA != null) {
+            finish(lookup.queryA);
+            finish(lookup.queryAAAA);
+        }
+
+        // only NXDOMAIN is cached as negative, a failure or an empty answer may not hold for the next try
+        if (dnsCache != null) {
+            if (addresses != null) {
+                dnsCache.put(lookup.name, addresses, lookup.ttl);
+            } else if (dnsException.isNameError()) {
+                dnsCache.putNegative(lookup.name, dnsException);
+            }
+        }
+
+        for (ResolveCallback callback : lookup.callbacks) {
+            try {
+                callback.doCallback(addresses, dnsException);
+            } catch (Exception e) {
+                logger.error("resolve callback exception", e);
+            }
+        }
+    }
+
+    private void setDeadline(final Query query, final long now) {
+        query.deadline = now + timeoutNanos;
+        if (nextDeadline == Long.MAX_VALUE || query.deadline - nextDeadline < 0) {
+            nextDeadline = query.deadline;
+        }
+    }
+
+    private void finish(final Query query) {
+        queries.remove(query);
+        closeChannel(query);
+    }
+
+    private void closeChannel(final Query query) {
+        if (query.selectionKey == null) return;
+
+        closeQuietly(query.selectionKey.channel());
+        query.selectionKey = null;
+        query.tcpBuffer = null;
+    }
+
+    private static void closeQuietly(final SelectableChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("closing DNS query channel IO exception", e);
+        }
+    }
+
+    private static final class Lookup {
+        private final String name;
+        private final List<ResolveCallback> callbacks = new ArrayList<>(1);
+
+        private Query queryA;
+        private Query queryAAAA;
+        private List<InetAddress> addressesA;
+        private List<InetAddress> addressesAAAA;
+        private boolean doneA;
+        private boolean doneAAAA;
+        private DnsException dnsException;
+        private long ttl = Long.MAX_VALUE;
+        private boolean done;
+
+        private Lookup(final String name) {
+            this.name = name;
+        }
+    }
+
+    // attachment of the query sockets, the switcher hands it back through handleSelected
+    public static final class Query {
+        private final Lookup lookup;
+        private final int type;
+
+        private int id;
+        private int attempt;
+        private long deadline;
+        private InetSocketAddress nameserver;
+        private SelectionKey selectionKey;
+
+        // TCP fallback, the query while writing, then the length prefix and the response while reading
+        private ByteBuffer tcpBuffer;
+        private int tcpLength;
+
+        private Query(final Lookup lookup, final int type) {
+            this.lookup = lookup;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package github.yukinomiu.directsocks.common.cube.dns;
+
+import github.yukinomiu.directsocks.common.cube.exception.DnsException;
+
+import java.net.InetAddress;
+
+/**
+ * Yukinomiu
+ * 2017/8/3
+ */
+@FunctionalInterface
+public interface ResolveCallback {
+    void doCallback(InetAddress[] addresses, DnsException dnsException);
+}
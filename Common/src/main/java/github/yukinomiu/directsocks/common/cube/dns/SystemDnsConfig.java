@@ -0,0 +1,244 @@
+package github.yukinomiu.directsocks.common.cube.dns;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Yukinomiu
+ * 2017/8/3
+ */
+public final class SystemDnsConfig {
+    private static final Logger logger = LoggerFactory.getLogger(SystemDnsConfig.class);
+
+    private static final String RESOLV_CONF = "/etc/resolv.conf";
+    private static final String HOSTS = "/etc/hosts";
+    private static final int DNS_PORT = 53;
+
+    private SystemDnsConfig() {
+    }
+
+    public static List<InetSocketAddress> nameservers() {
+        final List<InetSocketAddress> nameservers = new ArrayList<>();
+        for (String[] fields : readLines(RESOLV_CONF)) {
+            if (fields.length < 2 || !"nameserver".equals(fields[0])) continue;
+
+            InetAddress address = literalAddress(fields[1]);
+            if (address != null) {
+                nameservers.add(new InetSocketAddress(address, DNS_PORT));
+            }
+        }
+        return nameservers;
+    }
+
+    public static List<InetSocketAddress> parseNameservers(final String value) throws UnknownHostException {
+        final List<InetSocketAddress> nameservers = new ArrayList<>();
+        for (String item : value.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) continue;
+
+            String host = item;
+            int port = DNS_PORT;
+            if (item.startsWith("[")) {
+                // [ipv6]:port
+                int end = item.indexOf(']');
+                if (end == -1) throw new UnknownHostException("illegal nameserver: " + item);
+                host = item.substring(1, end);
+                if (item.length() > end + 2 && item.charAt(end + 1) == ':') {
+                    port = Integer.parseInt(item.substring(end + 2));
+                }
+            } else if (item.indexOf(':') == item.lastIndexOf(':') && item.indexOf(':') != -1) {
+                // ipv4:port
+                host = item.substring(0, item.indexOf(':'));
+                port = Integer.parseInt(item.substring(item.indexOf(':') + 1));
+            }
+
+            InetAddress address = literalAddress(host);
+            if (address == null) throw new UnknownHostException("nameserver must be an IP address: " + item);
+            nameservers.add(new InetSocketAddress(address, port));
+        }
+        return nameservers;
+    }
+
+    public static Map<String, InetAddress[]> hosts() {
+        final Map<String, List<InetAddress>> hosts = new HashMap<>();
+        for (String[] fields : readLines(HOSTS)) {
+            if (fields.length < 2) continue;
+
+            InetAddress address = literalAddress(fields[0]);
+            if (address == null) continue;
+
+            for (int i = 1; i < fields.length; i++) {
+                String name = fields[i].toLowerCase(Locale.ROOT);
+                hosts.computeIfAbsent(name, k -> new ArrayList<>()).add(address);
+            }
+        }
+
+        final Map<String, InetAddress[]> result = new HashMap<>(hosts.size() * 2);
+        for (Map.Entry<String, List<InetAddress>> entry : hosts.entrySet()) {
+            List<InetAddress> addresses = entry.getValue();
+            result.put(entry.getKey(), addresses.toArray(new InetAddress[addresses.size()]));
+        }
+        return result;
+    }
+
+    // parse an IP literal without ever touching the system resolver, null if the host is not a well formed one
+    public static InetAddress literalAddress(final String host) {
+        if (host == null || host.isEmpty()) return null;
+
+        final byte[] address = host.indexOf(':') == -1 ? parseIPv4(host) : parseIPv6(host);
+        if (address == null) return null;
+
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            // never happens for 4 or 16 byte addresses
+            return null;
+        }
+    }
+
+    // 4 decimal parts of 1-3 digits, each 0-255
+    private static byte[] parseIPv4(final String host) {
+        final byte[] address = new byte[4];
+        if (!parseIPv4(host, 0, host.length(), address, 0)) return null;
+        return address;
+    }
+
+    private static boolean parseIPv4(final String host, final int from, final int to, final byte[] dst, final int offset) {
+        int part = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = from; i < to; i++) {
+            final char c = host.charAt(i);
+            if (c == '.') {
+                if (digits == 0 || part == 3) return false;
+                dst[offset + part++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9') {
+                if (++digits > 3) return false;
+                value = value * 10 + (c - '0');
+                if (value > 255) return false;
+            } else {
+                return false;
+            }
+        }
+
+        if (digits == 0 || part != 3) return false;
+        dst[offset + part] = (byte) value;
+        return true;
+    }
+
+    // 8 groups of 1-4 hex digits, one :: for a run of zero groups, optionally an IPv4 literal as the last 32 bits
+    private static byte[] parseIPv6(final String host) {
+        // scoped addresses are not accepted, they are meaningless as a relay target
+        if (host.indexOf('%') != -1) return null;
+
+        final byte[] address = new byte[16];
+        final int length = host.length();
+        int groups = 0;
+        int compressAt = -1;
+        int i = 0;
+        if (host.startsWith("::")) {
+            compressAt = 0;
+            i = 2;
+            if (i == length) return address;
+        } else if (host.charAt(0) == ':') {
+            return null;
+        }
+
+        while (i < length) {
+            if (groups == 8) return null;
+
+            int end = i;
+            int value = 0;
+            while (end < length && end - i < 5) {
+                final int digit = hexDigit(host.charAt(end));
+                if (digit == -1) break;
+                value = (value << 4) | digit;
+                end++;
+            }
+
+            if (end < length && host.charAt(end) == '.') {
+                // trailing IPv4 part
+                if (groups > 6 || !parseIPv4(host, i, length, address, groups * 2)) return null;
+                groups += 2;
+                i = length;
+                break;
+            }
+
+            if (end == i || end - i > 4) return null;
+            address[groups * 2] = (byte) (value >>> 8);
+            address[groups * 2 + 1] = (byte) value;
+            groups++;
+            i = end;
+
+            if (i == length) break;
+            if (host.charAt(i) != ':') return null;
+            i++;
+            if (i < length && host.charAt(i) == ':') {
+                if (compressAt != -1) return null;
+                compressAt = groups;
+                i++;
+            } else if (i == length) {
+                // trailing single colon
+                return null;
+            }
+        }
+
+        if (compressAt == -1) {
+            return groups == 8 ? address : null;
+        }
+        if (groups == 8) return null;
+
+        // move the groups after :: to the end, zeros in between
+        final int tail = (groups - compressAt) * 2;
+        System.arraycopy(address, compressAt * 2, address, 16 - tail, tail);
+        Arrays.fill(address, compressAt * 2, 16 - tail, (byte) 0);
+        return address;
+    }
+
+    private static int hexDigit(final char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    private static List<String[]> readLines(final String path) {
+        final File file = new File(path);
+        if (!file.isFile()) return Collections.emptyList();
+
+        final List<String[]> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment != -1) line = line.substring(0, comment);
+                line = line.trim();
+                if (line.isEmpty()) continue;
+
+                lines.add(line.split("\\s+"));
+            }
+        } catch (IOException e) {
+            logger.warn("reading {} IO exception: {}", path, e.getMessage());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,34 @@
+package github.yukinomiu.directsocks.common.cube.exception;
+
+/**
+ * Yukinomiu
+ * 2017/8/3
+ */
+public class DnsException extends CubeException {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean nameError;
+
+    public DnsException() {
+        nameError = false;
+    }
+
+    public DnsException(String message) {
+        super(message);
+        nameError = false;
+    }
+
+    public DnsException(String message, boolean nameError) {
+        super(message);
+        this.nameError = nameError;
+    }
+
+    public DnsException(String message, Throwable cause) {
+        super(message, cause);
+        nameError = false;
+    }
+
+    public boolean isNameError() {
+        return nameError;
+    }
+}
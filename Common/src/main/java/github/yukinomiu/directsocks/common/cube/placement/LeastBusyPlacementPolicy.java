@@ -0,0 +1,29 @@
+package github.yukinomiu.directsocks.common.cube.placement;
+
+import github.yukinomiu.directsocks.common.cube.Switcher;
+import github.yukinomiu.directsocks.common.cube.api.PlacementPolicy;
+
+/**
+ * Yukinomiu
+ * 2017/8/5
+ */
+public final class LeastBusyPlacementPolicy implements PlacementPolicy {
+    private int start = 0;
+
+    @Override
+    public Switcher select(final Switcher[] switchers) {
+        final int length = switchers.length;
+        if (++start >= length) {
+            start = 0;
+        }
+
+        Switcher target = switchers[start];
+        for (int i = 1; i < length; i++) {
+            Switcher switcher = switchers[(start + i) % length];
+            if (Placements.compareBusy(switcher, target) < 0) {
+                target = switcher;
+            }
+        }
+        return target;
+    }
+}
@@ -0,0 +1,30 @@
+package github.yukinomiu.directsocks.common.cube.placement;
+
+import github.yukinomiu.directsocks.common.cube.Switcher;
+import github.yukinomiu.directsocks.common.cube.api.PlacementPolicy;
+
+/**
+ * Yukinomiu
+ * 2017/8/5
+ */
+public final class LeastConnectionsPlacementPolicy implements PlacementPolicy {
+    private int start = 0;
+
+    @Override
+    public Switcher select(final Switcher[] switchers) {
+        // rotate the scan start so ties do not always land on the first switcher
+        final int length = switchers.length;
+        if (++start >= length) {
+            start = 0;
+        }
+
+        Switcher target = switchers[start];
+        for (int i = 1; i < length; i++) {
+            Switcher switcher = switchers[(start + i) % length];
+            if (switcher.getConnectionCount() < target.getConnectionCount()) {
+                target = switcher;
+            }
+        }
+        return target;
+    }
+}
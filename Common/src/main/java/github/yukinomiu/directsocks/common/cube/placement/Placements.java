@@ -0,0 +1,44 @@
+package github.yukinomiu.directsocks.common.cube.placement;
+
+import github.yukinomiu.directsocks.common.cube.Switcher;
+import github.yukinomiu.directsocks.common.cube.api.PlacementPolicy;
+import github.yukinomiu.directsocks.common.exception.DirectSocksConfigException;
+
+/**
+ * Yukinomiu
+ * 2017/8/5
+ */
+public final class Placements {
+    private Placements() {
+    }
+
+    public static PlacementPolicy byName(final String name) {
+        switch (name) {
+            case "roundRobin":
+                return new RoundRobinPlacementPolicy();
+
+            case "leastConnections":
+                return new LeastConnectionsPlacementPolicy();
+
+            case "leastBusy":
+                return new LeastBusyPlacementPolicy();
+
+            case "powerOfTwoChoices":
+                return new PowerOfTwoChoicesPlacementPolicy();
+
+            default:
+                throw new DirectSocksConfigException("placement policy not supported: " + name);
+        }
+    }
+
+    // busy ratio first, then throughput, then connection count
+    static int compareBusy(final Switcher a, final Switcher b) {
+        int result = Double.compare(a.getBusyRatio(), b.getBusyRatio());
+        if (result != 0) return result;
+
+        result = Long.compare(a.getBytesPerSecond(), b.getBytesPerSecond());
+        if (result != 0) return result;
+
+        return Integer.compare(a.getConnectionCount(), b.getConnectionCount());
+    }
+}
@@ -0,0 +1,36 @@
+package github.yukinomiu.directsocks.common.cube.placement;
+
+import github.yukinomiu.directsocks.common.cube.Switcher;
+import github.yukinomiu.directsocks.common.cube.api.PlacementPolicy;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Yukinomiu
+ * 2017/8/5
+ */
+public final class PowerOfTwoChoicesPlacementPolicy implements PlacementPolicy {
+
+    @Override
+    public Switcher select(final Switcher[] switchers) {
+        final int length = switchers.length;
+        if (length == 1) {
+            return switchers[0];
+        }
+
+        // two distinct random candidates, the less loaded one wins
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int first = random.nextInt(length);
+        int second = random.nextInt(length - 1);
+        if (second >= first) {
+            second++;
+        }
+
+        final Switcher a = switchers[first];
+        final Switcher b = switchers[second];
+        if (a.getConnectionCount() != b.getConnectionCount()) {
+            return a.getConnectionCount() < b.getConnectionCount() ? a : b;
+        }
+        return Placements.compareBusy(a, b) <= 0 ? a : b;
+    }
+}
@@ -0,0 +1,20 @@
+package github.yukinomiu.directsocks.common.cube.placement;
+
+import github.yukinomiu.directsocks.common.cube.Switcher;
+import github.yukinomiu.directsocks.common.cube.api.PlacementPolicy;
+
+/**
+ * Yukinomiu
+ * 2017/8/5
+ */
+public final class RoundRobinPlacementPolicy implements PlacementPolicy {
+    private int next = 0;
+
+    @Override
+    public Switcher select(final Switcher[] switchers) {
+        if (next >= switchers.length) {
+            next = 0;
+        }
+        return switchers[next++];
+    }
+}
@@ -19,6 +19,12 @@ public final class PropertiesUtil {
         return value;
     }
 
+    public static String getString(final Properties properties, final String name, final String defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null || value.length() == 0) return defaultValue;
+        return value;
+    }
+
     public static int getInt(final Properties properties, final String name) {
         String value = properties.getProperty(name);
         if (value == null || value.length() == 0)
@@ -31,6 +37,13 @@ public final class PropertiesUtil {
         }
     }
 
+    public static int getInt(final Properties properties, final String name, final int defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null || value.length() == 0) return defaultValue;
+
+        return getInt(properties, name);
+    }
+
     public static boolean getBoolean(final Properties properties, final String name) {
         String value = properties.getProperty(name);
         if (value == null || value.length() == 0)
@@ -44,4 +57,11 @@ public final class PropertiesUtil {
             throw new DirectSocksConfigException("config item must be boolean: " + name);
         }
     }
+
+    public static boolean getBoolean(final Properties properties, final String name, final boolean defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null || value.length() == 0) return defaultValue;
+
+        return getBoolean(properties, name);
+    }
 }
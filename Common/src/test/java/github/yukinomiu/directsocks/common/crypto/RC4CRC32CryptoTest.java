@@ -0,0 +1,67 @@
+package github.yukinomiu.directsocks.common.crypto;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+public class RC4CRC32CryptoTest {
+    private static final int PAYLOAD_SIZE = 4096;
+
+    @Test
+    public void everyRelayGetsItsOwnSession() {
+        final Crypto crypto = new RC4CRC32Crypto("secret");
+        final Crypto session = crypto.newSession();
+
+        assertNotSame(crypto, session);
+        assertNotSame(session, crypto.newSession());
+        assertNotSame(session, session.newSession());
+    }
+
+    @Test
+    public void sessionsReadWhatOtherSessionsWrote() throws Exception {
+        final Crypto crypto = new RC4CRC32Crypto("secret");
+        final Crypto writer = crypto.newSession();
+        final Crypto reader = crypto.newSession();
+
+        for (int i = 0; i < 4; i++) {
+            assertRoundTrip(writer, reader);
+            assertRoundTrip(reader, writer);
+        }
+        // the shared instance still speaks the same packages
+        assertRoundTrip(crypto, reader);
+        assertRoundTrip(writer, crypto);
+    }
+
+    @Test
+    public void statelessCryptosShareThemselves() {
+        final Crypto emptyCrypto = new EmptyCrypto();
+        assertSame(emptyCrypto, emptyCrypto.newSession());
+
+        final Crypto emptyPackageCrypto = new EmptyPackageCrypto();
+        assertSame(emptyPackageCrypto, emptyPackageCrypto.newSession());
+    }
+
+    private static void assertRoundTrip(final Crypto writer, final Crypto reader) throws Exception {
+        final byte[] sent = new byte[PAYLOAD_SIZE];
+        new Random().nextBytes(sent);
+
+        final ByteBuffer packet = ByteBuffer.allocate(PAYLOAD_SIZE + writer.getMaxPadding());
+        writer.encrypt(ByteBuffer.wrap(sent), packet);
+        packet.flip();
+
+        final ByteBuffer frame = ByteBuffer.allocate(PAYLOAD_SIZE + reader.getMaxPadding());
+        final ByteBuffer received = ByteBuffer.allocate(PAYLOAD_SIZE);
+        assertTrue(reader.decrypt(frame, packet, received));
+        assertArrayEquals(sent, received.array());
+    }
+}
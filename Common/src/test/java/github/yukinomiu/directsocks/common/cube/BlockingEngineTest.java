@@ -0,0 +1,107 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+public class BlockingEngineTest {
+    private RelayCube relayCube;
+
+    @Before
+    public void setUp() throws Exception {
+        relayCube = new RelayCube(Transports.BLOCKING);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final Cube cube = relayCube.getCube();
+        if (cube != null) {
+            try {
+                cube.shutdown(0);
+            } catch (RuntimeException e) {
+                // already shut down by the test
+            }
+        }
+        relayCube.close();
+    }
+
+    @Test
+    public void relaysSmallAndLargePayloads() throws Exception {
+        relayCube.start();
+        try (Socket socket = relayCube.connect()) {
+            RelayCube.roundTrip(socket, 1);
+            RelayCube.roundTrip(socket, 4096);
+            // far above the write watermarks, the reader pauses and resumes many times
+            RelayCube.roundTrip(socket, 4 * 1024 * 1024);
+        }
+    }
+
+    @Test
+    public void relaysConcurrentConnections() throws Exception {
+        relayCube.start();
+        final ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                futures.add(executor.submit(() -> {
+                    try (Socket socket = relayCube.connect()) {
+                        for (int j = 0; j < 8; j++) {
+                            RelayCube.roundTrip(socket, 64 * 1024);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closedConnectionsAreReleased() throws Exception {
+        final Cube cube = relayCube.start();
+        for (int i = 0; i < 8; i++) {
+            try (Socket socket = relayCube.connect()) {
+                RelayCube.roundTrip(socket, 1024);
+            }
+        }
+
+        // both sides of every relay are gone once the client closes
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (cube.getConnectionCount() > 0) {
+            assertTrue("connections never released", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+        assertEquals(0, cube.shutdown(1000));
+    }
+
+    @Test
+    public void relaysWithThreadLocalPool() throws Exception {
+        // a cache per connection thread, dead ones are reclaimed by the engine's periodic trim
+        relayCube.getCubeConfig().setBufferPoolType("threadLocal");
+        relayCube.start();
+        for (int i = 0; i < 8; i++) {
+            try (Socket socket = relayCube.connect()) {
+                RelayCube.roundTrip(socket, 64 * 1024);
+            }
+        }
+    }
+}
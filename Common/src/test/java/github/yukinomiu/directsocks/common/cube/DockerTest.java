@@ -0,0 +1,114 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+public class DockerTest {
+    private static final int DRAIN_TIMEOUT_MILLIS = 10000;
+
+    private RelayCube relayCube;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        relayCube = new RelayCube(Transports.SELECTOR);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        relayCube.close();
+    }
+
+    @Test
+    public void drainWaitsForOpenConnections() throws Exception {
+        final Cube cube = relayCube.start();
+        final Socket socket = relayCube.connect();
+        RelayCube.roundTrip(socket, 1024);
+
+        final long start = System.nanoTime();
+        final Drain drain = Drain.start(cube);
+        drain.awaitWaiting();
+
+        socket.close();
+        assertEquals(0, drain.remaining());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS));
+    }
+
+    @Test
+    public void drainLeavesTheConnectionCountReadable() throws Exception {
+        final Cube cube = relayCube.start();
+        final Socket socket = relayCube.connect();
+        RelayCube.roundTrip(socket, 1024);
+
+        final Drain drain = Drain.start(cube);
+        drain.awaitWaiting();
+
+        // the drain is waiting for the connection, reading the count and the retiring switchers must not wait with it
+        final Future<Integer> count = executor.submit(cube::getConnectionCount);
+        assertTrue(count.get(1, TimeUnit.SECONDS) > 0);
+        executor.submit(cube::getRetiringSwitchers).get(1, TimeUnit.SECONDS);
+
+        socket.close();
+        assertEquals(0, drain.remaining());
+    }
+
+    @Test
+    public void shutdownDoesNotDrain() throws Exception {
+        relayCube.getCubeConfig().setDrainTimeout(DRAIN_TIMEOUT_MILLIS);
+        final Cube cube = relayCube.start();
+        final Socket socket = relayCube.connect();
+        RelayCube.roundTrip(socket, 1024);
+
+        // the configured drain timeout is for shutdown(long), shutdown() closes the open connection at once
+        final Future<?> shutdown = executor.submit((Runnable) cube::shutdown);
+        shutdown.get(DRAIN_TIMEOUT_MILLIS / 2, TimeUnit.MILLISECONDS);
+        assertEquals(-1, socket.getInputStream().read());
+        socket.close();
+    }
+
+    private static final class Drain {
+        private final Thread thread;
+        private volatile int remaining = -1;
+
+        private Drain(final Cube cube) {
+            thread = new Thread(() -> remaining = cube.shutdown(DRAIN_TIMEOUT_MILLIS), "drain");
+        }
+
+        private static Drain start(final Cube cube) {
+            final Drain drain = new Drain(cube);
+            drain.thread.start();
+            return drain;
+        }
+
+        // the switchers are retired and the drain is waiting for them to stop
+        private void awaitWaiting() throws InterruptedException {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (thread.getState() != Thread.State.TIMED_WAITING) {
+                assertTrue("drain never started waiting", System.nanoTime() - deadline < 0);
+                Thread.sleep(10);
+            }
+        }
+
+        private int remaining() throws InterruptedException {
+            thread.join(DRAIN_TIMEOUT_MILLIS);
+            assertTrue("drain never finished", !thread.isAlive());
+            return remaining;
+        }
+    }
+}
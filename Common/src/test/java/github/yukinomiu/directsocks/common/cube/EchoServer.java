@@ -0,0 +1,66 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+// a relay target on 127.0.0.1 sending back whatever it reads, a thread per connection
+final class EchoServer implements Closeable {
+    private final ServerSocket serverSocket;
+
+    EchoServer() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), 0));
+
+        start("echo accept", this::accept);
+    }
+
+    InetSocketAddress getAddress() {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                start("echo", () -> echo(socket));
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private static void echo(final Socket socket) {
+        try (Socket s = socket) {
+            final InputStream in = s.getInputStream();
+            final OutputStream out = s.getOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            // peer gone
+        }
+    }
+
+    private static void start(final String name, final Runnable runnable) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,152 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.TransportProvider;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+// load on a relay cube per engine, side by side: connections/sec, throughput, and request latency
+// not a test, run from Common with:
+//   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=github.yukinomiu.directsocks.common.cube.EngineLoad -Dexec.args="selector,blocking 64 8"
+// args: engines, concurrent connections, seconds per measure
+public final class EngineLoad {
+    private static final int REQUEST_SIZE = 512;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private EngineLoad() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final String[] engines = (args.length > 0 ? args[0] : "selector,blocking").split(",");
+        final int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        for (String engine : engines) {
+            final TransportProvider transportProvider = Transports.byName(engine.trim());
+            try (RelayCube relayCube = new RelayCube(transportProvider)) {
+                relayCube.getCubeConfig().setWorkerCount(Runtime.getRuntime().availableProcessors());
+                final Cube cube = relayCube.start();
+                try {
+                    System.out.println(transportProvider.getName() + " " + connect(relayCube, concurrency, seconds));
+                    System.out.println(transportProvider.getName() + " " + throughput(relayCube, concurrency, seconds));
+                    System.out.println(transportProvider.getName() + " " + latency(relayCube, concurrency, seconds));
+                } finally {
+                    cube.shutdown(0);
+                }
+            }
+        }
+    }
+
+    // a connection per request: connect, one byte echoed, close
+    private static String connect(final RelayCube relayCube, final int concurrency, final int seconds) throws InterruptedException {
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        final AtomicLong failed = new AtomicLong();
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        run(concurrency, () -> {
+            final byte[] one = new byte[1];
+            while (System.nanoTime() - end < 0) {
+                final long start = System.nanoTime();
+                try (Socket socket = relayCube.connect()) {
+                    socket.getOutputStream().write(one);
+                    new DataInputStream(socket.getInputStream()).readFully(one);
+                    latencies.add(System.nanoTime() - start);
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                }
+            }
+        });
+        return report("connect", latencies, seconds, "conn/s") + " failed=" + failed.get();
+    }
+
+    // echoed bytes per second, every connection writing and reading at once
+    private static String throughput(final RelayCube relayCube, final int concurrency, final int seconds) throws InterruptedException {
+        final AtomicLong bytes = new AtomicLong();
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        run(concurrency, () -> {
+            try (Socket socket = relayCube.connect()) {
+                final OutputStream out = socket.getOutputStream();
+                final Thread writer = new Thread(() -> {
+                    final byte[] chunk = new byte[CHUNK_SIZE];
+                    try {
+                        while (System.nanoTime() - end < 0) {
+                            out.write(chunk);
+                        }
+                        socket.shutdownOutput();
+                    } catch (IOException e) {
+                        // closed by the reader
+                    }
+                });
+                writer.start();
+
+                final InputStream in = socket.getInputStream();
+                final byte[] chunk = new byte[CHUNK_SIZE];
+                int read;
+                while ((read = in.read(chunk)) != -1) {
+                    bytes.addAndGet(read);
+                }
+                writer.join();
+            } catch (IOException e) {
+                // counted up to here
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        return String.format("throughput %.1f MB/s", bytes.get() / 1048576.0 / seconds);
+    }
+
+    // request and response of REQUEST_SIZE bytes on long lived connections
+    private static String latency(final RelayCube relayCube, final int concurrency, final int seconds) throws InterruptedException {
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        run(concurrency, () -> {
+            final List<Long> own = new ArrayList<>();
+            try (Socket socket = relayCube.connect()) {
+                final OutputStream out = socket.getOutputStream();
+                final DataInputStream in = new DataInputStream(socket.getInputStream());
+                final byte[] request = new byte[REQUEST_SIZE];
+                final byte[] response = new byte[REQUEST_SIZE];
+                while (System.nanoTime() - end < 0) {
+                    final long start = System.nanoTime();
+                    out.write(request);
+                    in.readFully(response);
+                    own.add(System.nanoTime() - start);
+                }
+            } catch (IOException e) {
+                // counted up to here
+            }
+            latencies.addAll(own);
+        });
+        return report("latency", latencies, seconds, "req/s");
+    }
+
+    private static void run(final int concurrency, final Runnable task) throws InterruptedException {
+        final Thread[] threads = new Thread[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            threads[i] = new Thread(task, "load " + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static String report(final String name, final List<Long> latencies, final int seconds, final String unit) {
+        final List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        final double p50 = sorted.isEmpty() ? 0 : sorted.get(sorted.size() / 2) / 1e6;
+        final double p99 = sorted.isEmpty() ? 0 : sorted.get((int) (sorted.size() * 0.99)) / 1e6;
+        return String.format("%s %.0f %s p50=%.2fms p99=%.2fms", name, sorted.size() / (double) seconds, unit, p50, p99);
+    }
+}
@@ -0,0 +1,137 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.TransportProvider;
+import github.yukinomiu.directsocks.common.cube.exception.CubeInitException;
+import github.yukinomiu.directsocks.common.cube.placement.Placements;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+// a cube on 127.0.0.1 relaying to an echo server, what the engine tests run their traffic through
+final class RelayCube implements Closeable {
+    private final EchoServer echoServer;
+    private final CubeConfig cubeConfig;
+    private Cube cube;
+
+    RelayCube(final TransportProvider transportProvider) throws IOException {
+        echoServer = new EchoServer();
+        cubeConfig = newConfig(transportProvider);
+    }
+
+    // change cubeConfig before start
+    CubeConfig getCubeConfig() {
+        return cubeConfig;
+    }
+
+    Cube start() throws CubeInitException {
+        cube = new Cube(cubeConfig, new RelayNioHandle(echoServer.getAddress()));
+        cube.start();
+        return cube;
+    }
+
+    Cube getCube() {
+        return cube;
+    }
+
+    Socket connect() throws IOException {
+        final Socket socket = new Socket(cubeConfig.getBindAddress(), cubeConfig.getBindPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    @Override
+    public void close() throws IOException {
+        echoServer.close();
+    }
+
+    // write length random bytes and expect them echoed back in order
+    static void roundTrip(final Socket socket, final int length) throws IOException {
+        final byte[] sent = new byte[length];
+        new Random().nextBytes(sent);
+
+        // written from another thread, a large payload would fill both directions otherwise
+        final OutputStream out = socket.getOutputStream();
+        final IOException[] writeException = new IOException[1];
+        final Thread writer = new Thread(() -> {
+            try {
+                out.write(sent);
+                out.flush();
+            } catch (IOException e) {
+                writeException[0] = e;
+            }
+        }, "round trip writer");
+        writer.start();
+
+        final byte[] received = new byte[length];
+        new DataInputStream(socket.getInputStream()).readFully(received);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writeException[0] != null) throw writeException[0];
+        assertArrayEquals(sent, received);
+    }
+
+    private static CubeConfig newConfig(final TransportProvider transportProvider) throws IOException {
+        final InetAddress loopback = InetAddress.getByAddress(new byte[]{127, 0, 0, 1});
+        final int bindPort;
+        try (ServerSocket probe = new ServerSocket(0, 1, loopback)) {
+            bindPort = probe.getLocalPort();
+        }
+
+        final CubeConfig config = new CubeConfig();
+        config.setTransportProvider(transportProvider);
+        config.setBindAddress(loopback);
+        config.setBindPort(bindPort);
+        config.setBacklog(128);
+        config.setReusePort(false);
+        config.setWorkerCount(2);
+        config.setPlacementPolicy(Placements.byName("roundRobin"));
+        config.setDrainTimeout(0);
+        config.setTcpNoDelay(true);
+        config.setTcpKeepAlive(false);
+        config.setMaxReadsPerEvent(16);
+        config.setMaxReadBytesPerEvent(16 * 4096);
+        config.setOptimizeSelectedKeys(true);
+        config.setEagerFlush(true);
+        config.setReadBufferSize(4096);
+        config.setReadPoolSize(64);
+        config.setWriteBufferSize(4096);
+        config.setWritePoolSize(64);
+        config.setFrameBufferSize(4096);
+        config.setFramePoolSize(64);
+        config.setDirectReadBuffer(false);
+        config.setDirectWriteBuffer(false);
+        config.setDirectFrameBuffer(false);
+        config.setBufferPoolType("simple");
+        config.setBufferPoolIdleTimeout(60000);
+        config.setBufferPoolAutoTune(false);
+        config.setBufferLeakSampleInterval(0);
+        config.setWriteHighWatermark(8 * 4096);
+        config.setWriteLowWatermark(2 * 4096);
+        config.setHandshakeTimeout(10000);
+        config.setConnectTimeout(10000);
+        config.setIdleTimeout(60000);
+        config.setWriteStallTimeout(60000);
+        config.setHibernateTimeout(10000);
+        // never asked, the relay target is an address
+        config.setDnsServers(Collections.singletonList(new InetSocketAddress(loopback, 53)));
+        config.setDnsTimeout(1000);
+        return config;
+    }
+}
@@ -0,0 +1,81 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.CloseableAttachment;
+import github.yukinomiu.directsocks.common.cube.api.NioHandle;
+import github.yukinomiu.directsocks.common.cube.exception.CubeConnectionException;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+// relays every accepted connection to one target, the smallest handler driving a cube the way the server does
+final class RelayNioHandle implements NioHandle {
+    private final InetSocketAddress target;
+
+    RelayNioHandle(final InetSocketAddress target) {
+        this.target = target;
+    }
+
+    @Override
+    public void handleRead(final CubeContext cubeContext) {
+        final Peer peer = (Peer) cubeContext.attachment();
+        if (peer != null) {
+            relay(cubeContext, peer.cubeContext);
+            return;
+        }
+
+        // first data of an accepted connection, it stays in the read buffer until the target is connected
+        final CubeContext targetCubeContext;
+        try {
+            targetCubeContext = cubeContext.readyConnect(target);
+        } catch (CubeConnectionException e) {
+            cubeContext.close();
+            return;
+        }
+        cubeContext.attach(new Peer(targetCubeContext));
+        targetCubeContext.attach(new Peer(cubeContext));
+    }
+
+    @Override
+    public void handleConnectSuccess(final CubeContext cubeContext) {
+        final CubeContext clientCubeContext = ((Peer) cubeContext.attachment()).cubeContext;
+        clientCubeContext.finishHandshake();
+        relay(clientCubeContext, cubeContext);
+        cubeContext.readyRead();
+    }
+
+    @Override
+    public void handleConnectFail(final CubeContext cubeContext, final CubeConnectionException cubeConnectionException) {
+        cubeContext.close();
+    }
+
+    private static void relay(final CubeContext source, final CubeContext destination) {
+        if (destination.relayReadBuffer(source)) {
+            return;
+        }
+
+        final ByteBuffer readBuffer = source.getReadBuffer();
+        destination.readyWrite(readBuffer.remaining()).put(readBuffer);
+        destination.relayWrite(source);
+    }
+
+    // closing one side closes the other once its queued data is written
+    private static final class Peer implements CloseableAttachment {
+        private final CubeContext cubeContext;
+
+        private Peer(final CubeContext cubeContext) {
+            this.cubeContext = cubeContext;
+        }
+
+        @Override
+        public void close() {
+            if (cubeContext.isClosed()) return;
+
+            cubeContext.closeAfterWrite();
+            cubeContext.readyWrite();
+        }
+    }
+}
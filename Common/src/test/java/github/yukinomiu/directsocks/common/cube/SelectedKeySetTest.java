@@ -0,0 +1,258 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+// the build opens sun.nio.ch to the tests on Java 9+, install succeeds on a JDK selector here
+public class SelectedKeySetTest {
+    private Selector selector;
+
+    @Before
+    public void setUp() throws IOException {
+        selector = Selector.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        selector.close();
+    }
+
+    @Test
+    public void installReplacesTheSelectedKeys() {
+        final SelectedKeySet selectedKeySet = SelectedKeySet.install(selector);
+        assertNotNull(selectedKeySet);
+        assertSame(selectedKeySet, selector.selectedKeys());
+    }
+
+    @Test
+    public void selectReportsIntoTheArray() throws IOException {
+        final SelectedKeySet selectedKeySet = SelectedKeySet.install(selector);
+        assertNotNull(selectedKeySet);
+
+        try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
+            serverSocketChannel.bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), 0));
+            serverSocketChannel.configureBlocking(false);
+            final SelectionKey selectionKey = serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            try (Socket socket = new Socket(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), serverSocketChannel.socket().getLocalPort())) {
+                assertEquals(1, selector.select(5000));
+                assertEquals(1, selectedKeySet.size());
+                assertSame(selectionKey, selectedKeySet.get(0));
+
+                // the key is not taken out by the selector, a key not handled is reported again after reset
+                selectedKeySet.reset();
+                assertEquals(0, selectedKeySet.size());
+                assertEquals(1, selector.select(5000));
+                assertSame(selectionKey, selectedKeySet.get(0));
+                selectedKeySet.reset();
+
+                try (SocketChannel accepted = serverSocketChannel.accept()) {
+                    assertNotNull(accepted);
+                    assertTrue(socket.isConnected());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void growsPastTheInitialCapacity() throws IOException {
+        final SelectedKeySet selectedKeySet = SelectedKeySet.install(selector);
+        assertNotNull(selectedKeySet);
+
+        // one select reports at most 1024 keys with epoll, so the keys are added the way the selector does
+        final Pipe[] pipes = new Pipe[1500];
+        try {
+            final SelectionKey[] selectionKeys = new SelectionKey[pipes.length];
+            for (int i = 0; i < pipes.length; i++) {
+                pipes[i] = Pipe.open();
+                pipes[i].sink().configureBlocking(false);
+                selectionKeys[i] = pipes[i].sink().register(selector, SelectionKey.OP_WRITE);
+                assertTrue(selectedKeySet.add(selectionKeys[i]));
+            }
+            assertFalse(selectedKeySet.add(null));
+
+            assertEquals(pipes.length, selectedKeySet.size());
+            int index = 0;
+            for (SelectionKey selectionKey : selectedKeySet) {
+                assertSame(selectionKeys[index], selectionKey);
+                assertSame(selectionKeys[index], selectedKeySet.get(index));
+                index++;
+            }
+            assertEquals(pipes.length, index);
+
+            selectedKeySet.reset();
+            assertEquals(0, selectedKeySet.size());
+            assertFalse(selectedKeySet.iterator().hasNext());
+        } finally {
+            for (Pipe pipe : pipes) {
+                if (pipe == null) continue;
+                pipe.sink().close();
+                pipe.source().close();
+            }
+        }
+    }
+
+    @Test
+    public void selectorOfAnotherProviderIsLeftAlone() throws IOException {
+        try (Selector foreign = new ForeignSelector()) {
+            assertNull(SelectedKeySet.install(foreign));
+        }
+    }
+
+    @Test
+    public void switchersRelayThroughTheArray() throws Exception {
+        try (RelayCube relayCube = new RelayCube(Transports.SELECTOR)) {
+            relayCube.getCubeConfig().setOptimizeSelectedKeys(true);
+            final Cube cube = relayCube.start();
+            try {
+                for (Switcher switcher : cube.getSwitchers()) {
+                    assertTrue(switcher.isSelectedKeySetInstalled());
+                }
+                relay(relayCube);
+            } finally {
+                cube.shutdown(0);
+            }
+        }
+    }
+
+    @Test
+    public void switchersRelayThroughTheHashSet() throws Exception {
+        try (RelayCube relayCube = new RelayCube(Transports.SELECTOR)) {
+            relayCube.getCubeConfig().setOptimizeSelectedKeys(false);
+            final Cube cube = relayCube.start();
+            try {
+                for (Switcher switcher : cube.getSwitchers()) {
+                    assertFalse(switcher.isSelectedKeySetInstalled());
+                }
+                relay(relayCube);
+            } finally {
+                cube.shutdown(0);
+            }
+        }
+    }
+
+    private static void relay(final RelayCube relayCube) throws IOException {
+        // more connections than switchers, every switcher handles several keys per select
+        final Socket[] sockets = new Socket[8];
+        try {
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i] = relayCube.connect();
+            }
+            for (Socket socket : sockets) {
+                RelayCube.roundTrip(socket, 1);
+                RelayCube.roundTrip(socket, 1024 * 1024);
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null) socket.close();
+            }
+        }
+    }
+
+    // a selector which is not a sun.nio.ch one, install must not touch it
+    private static final class ForeignSelector extends AbstractSelector {
+        private ForeignSelector() {
+            super(new ForeignSelectorProvider());
+        }
+
+        @Override
+        protected void implCloseSelector() {
+        }
+
+        @Override
+        protected SelectionKey register(final AbstractSelectableChannel ch, final int ops, final Object att) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<SelectionKey> keys() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<SelectionKey> selectedKeys() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int selectNow() {
+            return 0;
+        }
+
+        @Override
+        public int select(final long timeout) {
+            return 0;
+        }
+
+        @Override
+        public int select() {
+            return 0;
+        }
+
+        @Override
+        public Selector wakeup() {
+            return this;
+        }
+    }
+
+    private static final class ForeignSelectorProvider extends SelectorProvider {
+        @Override
+        public DatagramChannel openDatagramChannel() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DatagramChannel openDatagramChannel(final ProtocolFamily family) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Pipe openPipe() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public AbstractSelector openSelector() {
+            return new ForeignSelector();
+        }
+
+        @Override
+        public ServerSocketChannel openServerSocketChannel() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SocketChannel openSocketChannel() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.PlacementPolicy;
+import github.yukinomiu.directsocks.common.cube.placement.LeastConnectionsPlacementPolicy;
+import github.yukinomiu.directsocks.common.cube.placement.PowerOfTwoChoicesPlacementPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+public class SwitcherTest {
+    private RelayCube relayCube;
+    private BufferPools bufferPools;
+    private Switcher[] switchers;
+    private ServerSocketChannel serverSocketChannel;
+    private final List<SocketChannel> channels = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        relayCube = new RelayCube(Transports.SELECTOR);
+        final CubeConfig cubeConfig = relayCube.getCubeConfig();
+        bufferPools = new BufferPools(cubeConfig);
+
+        switchers = new Switcher[3];
+        for (int i = 0; i < switchers.length; i++) {
+            switchers[i] = new Switcher(cubeConfig, new RelayNioHandle(new InetSocketAddress(0)),
+                    bufferPools.getReadPool(), bufferPools.getWritePool(), bufferPools.getFramePool());
+        }
+
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Switcher switcher : switchers) {
+            if (switcher.isAlive()) {
+                switcher.shutdown();
+            } else {
+                switcher.discard();
+            }
+        }
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        serverSocketChannel.close();
+        bufferPools.shutdown();
+        relayCube.close();
+    }
+
+    @Test
+    public void leastConnectionsSeesChannelsNotRegisteredYet() throws Exception {
+        assertBurstAvoidsTheLoadedSwitcher(new LeastConnectionsPlacementPolicy());
+        // spread evenly over the others
+        assertEquals(3, switchers[1].getConnectionCount());
+        assertEquals(3, switchers[2].getConnectionCount());
+    }
+
+    @Test
+    public void powerOfTwoChoicesSeesChannelsNotRegisteredYet() throws Exception {
+        assertBurstAvoidsTheLoadedSwitcher(new PowerOfTwoChoicesPlacementPolicy());
+    }
+
+    @Test
+    public void registeringDoesNotCountAgain() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(switchers[0].accept(acceptOne()));
+        }
+        assertEquals(4, switchers[0].getConnectionCount());
+
+        // the loop registers the queued channels, they are the same connections
+        switchers[0].start();
+        Thread.sleep(200);
+        assertEquals(4, switchers[0].getConnectionCount());
+
+        switchers[0].shutdown();
+        assertEquals(0, switchers[0].getConnectionCount());
+    }
+
+    // none of the switcher loops runs, every channel placed stays in an accept queue
+    private void assertBurstAvoidsTheLoadedSwitcher(final PlacementPolicy placementPolicy) throws IOException {
+        for (int i = 0; i < 6; i++) {
+            assertTrue(switchers[0].accept(acceptOne()));
+        }
+
+        for (int i = 0; i < 6; i++) {
+            assertTrue(placementPolicy.select(switchers).accept(acceptOne()));
+        }
+
+        assertEquals(6, switchers[0].getConnectionCount());
+        assertEquals(6, switchers[1].getConnectionCount() + switchers[2].getConnectionCount());
+    }
+
+    private SocketChannel acceptOne() throws IOException {
+        final SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        channels.add(client);
+        final SocketChannel accepted = serverSocketChannel.accept();
+        channels.add(accepted);
+        return accepted;
+    }
+}
@@ -0,0 +1,116 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+// the same relay traffic through every engine, sample is the provider found through ServiceLoader
+@RunWith(Parameterized.class)
+public class TransportRelayTest {
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Object[]> engines() {
+        return Arrays.asList(new Object[][]{{"selector"}, {"blocking"}, {"async"}, {"sample"}});
+    }
+
+    private final String engine;
+    private RelayCube relayCube;
+    private Cube cube;
+
+    public TransportRelayTest(final String engine) {
+        this.engine = engine;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        relayCube = new RelayCube(Transports.byName(engine));
+        cube = relayCube.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (cube != null) cube.shutdown(0);
+        relayCube.close();
+    }
+
+    @Test
+    public void relaysBothWays() throws Exception {
+        try (Socket socket = relayCube.connect()) {
+            RelayCube.roundTrip(socket, 1);
+            RelayCube.roundTrip(socket, 4096);
+            RelayCube.roundTrip(socket, 4 * 1024 * 1024);
+        }
+    }
+
+    @Test
+    public void relaysConcurrentConnections() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                futures.add(executor.submit(() -> {
+                    try (Socket socket = relayCube.connect()) {
+                        for (int j = 0; j < 8; j++) {
+                            RelayCube.roundTrip(socket, 64 * 1024);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closingTheClientReleasesBothSides() throws Exception {
+        try (Socket socket = relayCube.connect()) {
+            RelayCube.roundTrip(socket, 1024);
+            assertEquals(2, cube.getConnectionCount());
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (cube.getConnectionCount() > 0) {
+            assertTrue("connections never released", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void shutdownClosesOpenConnections() throws Exception {
+        try (Socket socket = relayCube.connect()) {
+            RelayCube.roundTrip(socket, 1024);
+
+            assertEquals(2, cube.shutdown(0));
+            cube = null;
+            final InputStream in = socket.getInputStream();
+            try {
+                assertEquals(-1, in.read());
+            } catch (SocketException e) {
+                // reset, closed as well
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package github.yukinomiu.directsocks.common.cube;
+
+import github.yukinomiu.directsocks.common.cube.api.TransportProvider;
+import github.yukinomiu.directsocks.common.cube.sample.SampleTransportProvider;
+import github.yukinomiu.directsocks.common.exception.DirectSocksConfigException;
+import org.junit.Test;
+
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+public class TransportsTest {
+    @Test
+    public void builtInNames() {
+        assertSame(Transports.SELECTOR, Transports.byName("selector"));
+        assertSame(Transports.BLOCKING, Transports.byName("blocking"));
+        assertSame(Transports.ASYNC, Transports.byName("async"));
+    }
+
+    @Test
+    public void otherNamesComeFromServiceLoader() {
+        // registered by META-INF/services in the test resources
+        final TransportProvider provider = Transports.byName("sample");
+        assertTrue(provider instanceof SampleTransportProvider);
+        assertEquals("sample", provider.getName());
+    }
+
+    @Test(expected = DirectSocksConfigException.class)
+    public void unknownNameIsRejected() {
+        Transports.byName("missing");
+    }
+
+    @Test
+    public void relaysThroughServiceLoaderProvider() throws Exception {
+        final int created = SampleTransportProvider.createdCount();
+        final int started = SampleTransportProvider.startedCount();
+
+        try (RelayCube relayCube = new RelayCube(Transports.byName("sample"))) {
+            final Cube cube = relayCube.start();
+            try (Socket socket = relayCube.connect()) {
+                RelayCube.roundTrip(socket, 64 * 1024);
+            } finally {
+                cube.shutdown(0);
+            }
+        }
+        assertEquals(created + 1, SampleTransportProvider.createdCount());
+        assertEquals(started + 1, SampleTransportProvider.startedCount());
+    }
+}
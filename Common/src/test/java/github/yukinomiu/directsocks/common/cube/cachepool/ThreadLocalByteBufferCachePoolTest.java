@@ -0,0 +1,92 @@
+package github.yukinomiu.directsocks.common.cube.cachepool;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+public class ThreadLocalByteBufferCachePoolTest {
+    @Test
+    public void buffersComeBackToTheSameThread() throws Exception {
+        final ThreadLocalByteBufferCachePool pool = new ThreadLocalByteBufferCachePool(1024, 64, false);
+        pool.start();
+
+        final ByteBuffer byteBuffer = pool.get();
+        pool.returnBack(byteBuffer);
+        assertTrue(byteBuffer == pool.get());
+        assertEquals(1, pool.missCount());
+        pool.shutdown();
+    }
+
+    @Test
+    public void trimReclaimsCachesOfDeadThreads() throws Exception {
+        // no idle timeout, trim still has to collect what terminated threads leave behind
+        final ThreadLocalByteBufferCachePool pool = new ThreadLocalByteBufferCachePool(1024, 64, false);
+        pool.start();
+
+        final List<WeakReference<Thread>> threads = returnFromThreads(pool, 4);
+        assertEquals(4, pool.left());
+        assertEquals(4, pool.missCount());
+
+        pool.trim();
+        // the pool no longer holds on to the threads
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        for (WeakReference<Thread> thread : threads) {
+            while (thread.get() != null) {
+                assertTrue("dead thread still referenced", System.nanoTime() - deadline < 0);
+                System.gc();
+                Thread.sleep(10);
+            }
+        }
+
+        // and the buffers went to the shared store, the next thread takes them instead of creating new ones
+        final Thread taker = new Thread(() -> {
+            for (int i = 0; i < 4; i++) {
+                assertNotNull(pool.get());
+            }
+        });
+        taker.start();
+        taker.join();
+        assertEquals(4, pool.missCount());
+        pool.shutdown();
+    }
+
+    // every thread holds its buffer until all have taken one, so each cache ends up with one, the threads have terminated on return
+    private static List<WeakReference<Thread>> returnFromThreads(final ByteBufferCachePool pool, final int count) throws InterruptedException {
+        final CountDownLatch taken = new CountDownLatch(count);
+        final List<Thread> started = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final Thread thread = new Thread(() -> {
+                final ByteBuffer byteBuffer = pool.get();
+                taken.countDown();
+                try {
+                    taken.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                pool.returnBack(byteBuffer);
+            });
+            thread.start();
+            started.add(thread);
+        }
+
+        final List<WeakReference<Thread>> threads = new ArrayList<>();
+        for (Thread thread : started) {
+            thread.join();
+            threads.add(new WeakReference<>(thread));
+        }
+        return threads;
+    }
+}
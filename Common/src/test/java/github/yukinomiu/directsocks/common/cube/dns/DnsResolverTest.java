@@ -0,0 +1,318 @@
+package github.yukinomiu.directsocks.common.cube.dns;
+
+import github.yukinomiu.directsocks.common.cube.exception.DnsException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Yukinomiu
+ * 2017/8/3
+ */
+public class DnsResolverTest {
+    private static final int TIMEOUT_MILLIS = 200;
+
+    private Selector selector;
+    private LoopbackDnsServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        selector = Selector.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) server.close();
+        selector.close();
+    }
+
+    @Test
+    public void resolvesA() throws Exception {
+        server = new LoopbackDnsServer(question -> question.type == DnsCodec.TYPE_A
+                ? question.reply().address("a.test", "10.0.0.1").build()
+                : question.reply().build());
+
+        final Result result = resolve(newResolver(null), "a.test");
+        assertNull(result.dnsException);
+        assertEquals(Collections.singletonList(InetAddress.getByName("10.0.0.1")), result.addresses());
+    }
+
+    @Test
+    public void resolvesAAAAWhenThereIsNoA() throws Exception {
+        server = new LoopbackDnsServer(question -> question.type == DnsCodec.TYPE_AAAA
+                ? question.reply().address("v6.test", "fd00::1").build()
+                : question.reply().build());
+
+        final Result result = resolve(newResolver(null), "v6.test");
+        assertNull(result.dnsException);
+        assertEquals(Collections.singletonList(InetAddress.getByName("fd00::1")), result.addresses());
+    }
+
+    @Test
+    public void nameErrorOnNxDomain() throws Exception {
+        server = new LoopbackDnsServer(question -> question.reply().rcode(DnsCodec.RCODE_NAME_ERROR).build());
+
+        final Result result = resolve(newResolver(null), "missing.test");
+        assertNull(result.addresses);
+        assertNotNull(result.dnsException);
+        assertTrue(result.dnsException.isNameError());
+    }
+
+    @Test
+    public void retriesOnServerFailure() throws Exception {
+        server = new LoopbackDnsServer(question -> {
+            if (server.count(question.name, question.type) == 1) {
+                return question.reply().rcode(LoopbackDnsServer.RCODE_SERVER_FAILURE).build();
+            }
+            return question.type == DnsCodec.TYPE_A
+                    ? question.reply().address("flaky.test", "10.0.0.2").build()
+                    : question.reply().build();
+        });
+
+        final Result result = resolve(newResolver(null), "flaky.test");
+        assertNull(result.dnsException);
+        assertEquals(Collections.singletonList(InetAddress.getByName("10.0.0.2")), result.addresses());
+        assertEquals(2, server.count("flaky.test", DnsCodec.TYPE_A));
+    }
+
+    @Test
+    public void everyAttemptAsksFromAnotherSocket() throws Exception {
+        server = new LoopbackDnsServer(question -> question.reply().rcode(LoopbackDnsServer.RCODE_SERVER_FAILURE).build());
+
+        final Result result = resolve(newResolver(null), "failing.test");
+        assertNotNull(result.dnsException);
+        assertFalse(result.dnsException.isNameError());
+
+        final Set<Integer> ports = new HashSet<>();
+        for (LoopbackDnsServer.Question question : server.getQuestions()) {
+            ports.add(question.sourcePort);
+        }
+        // 2 attempts of A and AAAA
+        assertEquals(4, server.getQuestions().size());
+        assertEquals(4, ports.size());
+    }
+
+    @Test
+    public void timeoutAfterAllAttempts() throws Exception {
+        server = new LoopbackDnsServer(question -> Collections.emptyList());
+
+        final long start = System.nanoTime();
+        final Result result = resolve(newResolver(null), "silent.test");
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertNull(result.addresses);
+        assertNotNull(result.dnsException);
+        assertFalse(result.dnsException.isNameError());
+        assertTrue(elapsedMillis >= 2 * TIMEOUT_MILLIS);
+        assertEquals(2, server.count("silent.test", DnsCodec.TYPE_A));
+    }
+
+    @Test
+    public void concurrentLookupsOfOneNameShareTheQueries() throws Exception {
+        server = new LoopbackDnsServer(question -> question.type == DnsCodec.TYPE_A
+                ? question.reply().address("shared.test", "10.0.0.3").build()
+                : question.reply().build());
+
+        final DnsResolver resolver = newResolver(null);
+        final List<Result> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final Result result = new Result();
+            resolver.resolve("shared.test", result);
+            results.add(result);
+        }
+        assertEquals(1, resolver.pendingCount());
+
+        for (Result result : results) {
+            drive(resolver, result);
+            assertNull(result.dnsException);
+            assertEquals(Collections.singletonList(InetAddress.getByName("10.0.0.3")), result.addresses());
+        }
+        assertEquals(1, server.count("shared.test", DnsCodec.TYPE_A));
+        // the answer to A completes the lookup, the responder may not have taken the AAAA query yet
+        assertTrue(server.count("shared.test", DnsCodec.TYPE_AAAA) <= 1);
+        assertEquals(0, resolver.pendingCount());
+    }
+
+    @Test
+    public void responseToAnotherQuestionIsIgnored() throws Exception {
+        server = new LoopbackDnsServer(question -> {
+            final List<byte[]> responses = new ArrayList<>();
+            // same ID and port, but not the question asked
+            responses.addAll(question.reply().question("evil.test", question.type).address("evil.test", "10.6.6.6").build());
+            responses.addAll(question.reply().question(question.name, DnsCodec.TYPE_CNAME).address(question.name, "10.6.6.7").build());
+            responses.addAll(question.type == DnsCodec.TYPE_A
+                    ? question.reply().address("real.test", "10.0.0.4").build()
+                    : question.reply().build());
+            return responses;
+        });
+
+        final Result result = resolve(newResolver(null), "real.test");
+        assertNull(result.dnsException);
+        assertEquals(Collections.singletonList(InetAddress.getByName("10.0.0.4")), result.addresses());
+    }
+
+    @Test
+    public void answersOwnedByAnotherNameAreIgnored() throws Exception {
+        server = new LoopbackDnsServer(question -> question.type == DnsCodec.TYPE_A
+                ? question.reply().address("evil.test", "10.6.6.6").address("owned.test", "10.0.0.5").build()
+                : question.reply().address("evil.test", "fd00::6").build());
+
+        final Result result = resolve(newResolver(null), "owned.test");
+        assertNull(result.dnsException);
+        assertEquals(Collections.singletonList(InetAddress.getByName("10.0.0.5")), result.addresses());
+    }
+
+    @Test
+    public void followsTheCnameChain() throws Exception {
+        server = new LoopbackDnsServer(question -> question.type == DnsCodec.TYPE_A
+                ? question.reply()
+                .address("unrelated.test", "10.6.6.6")
+                .cname("www.alias.test", "edge.alias.test")
+                .cname("edge.alias.test", "host.cdn.test")
+                .address("host.cdn.test", "10.0.0.6")
+                .build()
+                : question.reply().cname("www.alias.test", "edge.alias.test").build());
+
+        final Result result = resolve(newResolver(null), "WWW.Alias.Test");
+        assertNull(result.dnsException);
+        assertEquals(Collections.singletonList(InetAddress.getByName("10.0.0.6")), result.addresses());
+    }
+
+    @Test
+    public void truncatedResponseIsAskedAgainOverTcp() throws Exception {
+        server = new LoopbackDnsServer(question -> {
+            if (!question.tcp) {
+                return question.reply().truncated().address("big.test", "10.6.6.6").build();
+            }
+            return question.type == DnsCodec.TYPE_A
+                    ? question.reply().address("big.test", "10.0.0.7").address("big.test", "10.0.0.8").build()
+                    : question.reply().build();
+        });
+
+        final Result result = resolve(newResolver(null), "big.test");
+        assertNull(result.dnsException);
+        assertEquals(Arrays.asList(InetAddress.getByName("10.0.0.7"), InetAddress.getByName("10.0.0.8")), result.addresses());
+
+        // the lookup may complete with A before the AAAA query went out over TCP
+        boolean askedOverTcp = false;
+        for (LoopbackDnsServer.Question question : server.getQuestions()) {
+            askedOverTcp |= question.tcp && question.type == DnsCodec.TYPE_A;
+        }
+        assertTrue(askedOverTcp);
+    }
+
+    @Test
+    public void nameErrorIsCachedAsNegative() throws Exception {
+        server = new LoopbackDnsServer(question -> question.reply().rcode(DnsCodec.RCODE_NAME_ERROR).build());
+
+        final DnsResolver resolver = newResolver(new DnsCache(16, 60, 60));
+        assertTrue(resolve(resolver, "gone.test").dnsException.isNameError());
+        final Result cached = resolve(resolver, "gone.test");
+        assertTrue(cached.dnsException.isNameError());
+        assertEquals(1, server.count("gone.test", DnsCodec.TYPE_A));
+    }
+
+    @Test
+    public void emptyAnswerIsNotCached() throws Exception {
+        server = new LoopbackDnsServer(question -> {
+            if (server.count(question.name, question.type) == 1 || question.type == DnsCodec.TYPE_AAAA) {
+                return question.reply().build();
+            }
+            return question.reply().address("later.test", "10.0.0.9").build();
+        });
+
+        final DnsResolver resolver = newResolver(new DnsCache(16, 60, 60));
+        final Result empty = resolve(resolver, "later.test");
+        assertNull(empty.addresses);
+        assertFalse(empty.dnsException.isNameError());
+
+        final Result result = resolve(resolver, "later.test");
+        assertNull(result.dnsException);
+        assertEquals(Collections.singletonList(InetAddress.getByName("10.0.0.9")), result.addresses());
+    }
+
+    @Test
+    public void literalsNeverHitTheNetwork() throws Exception {
+        server = new LoopbackDnsServer(question -> question.reply().rcode(DnsCodec.RCODE_NAME_ERROR).build());
+
+        final Result result = resolve(newResolver(null), "192.0.2.1");
+        assertEquals(Collections.singletonList(InetAddress.getByName("192.0.2.1")), result.addresses());
+        assertTrue(server.getQuestions().isEmpty());
+    }
+
+    @Test
+    public void systemResolverWithoutNameservers() throws Exception {
+        // no resolv.conf, the lookup runs off this thread and its result comes back through the selector loop
+        final DnsResolver resolver = new DnsResolver(selector, Collections.emptyList(), TIMEOUT_MILLIS, null);
+        final Result result = resolve(resolver, "missing.invalid");
+        assertNull(result.addresses);
+        assertTrue(result.dnsException.isNameError());
+        assertEquals(Thread.currentThread(), result.thread);
+        assertEquals(0, resolver.pendingCount());
+        resolver.close();
+    }
+
+    private DnsResolver newResolver(final DnsCache dnsCache) {
+        return new DnsResolver(selector, Collections.singletonList(server.getAddress()), TIMEOUT_MILLIS, dnsCache);
+    }
+
+    private Result resolve(final DnsResolver resolver, final String host) throws IOException {
+        final Result result = new Result();
+        resolver.resolve(host, result);
+        drive(resolver, result);
+        return result;
+    }
+
+    // the loop a switcher runs, until the result is in
+    private void drive(final DnsResolver resolver, final Result result) throws IOException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!result.done) {
+            assertTrue("resolver never called back", System.nanoTime() - deadline < 0);
+
+            selector.select(Math.max(1, resolver.nextTimeout()));
+            for (SelectionKey selectionKey : selector.selectedKeys()) {
+                resolver.handleSelected(selectionKey);
+            }
+            selector.selectedKeys().clear();
+            resolver.checkTimeout();
+        }
+    }
+
+    private static final class Result implements ResolveCallback {
+        private boolean done;
+        private InetAddress[] addresses;
+        private DnsException dnsException;
+        private Thread thread;
+
+        @Override
+        public void doCallback(final InetAddress[] addresses, final DnsException dnsException) {
+            assertFalse("called back twice", done);
+            this.done = true;
+            this.thread = Thread.currentThread();
+            this.addresses = addresses;
+            this.dnsException = dnsException;
+        }
+
+        private List<InetAddress> addresses() {
+            return addresses == null ? null : Arrays.asList(addresses);
+        }
+    }
+}
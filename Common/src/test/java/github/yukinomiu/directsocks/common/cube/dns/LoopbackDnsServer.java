@@ -0,0 +1,254 @@
+package github.yukinomiu.directsocks.common.cube.dns;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Yukinomiu
+ * 2017/8/3
+ */
+// a stand-in nameserver on 127.0.0.1, answering UDP and TCP on the same port with whatever the handler builds
+final class LoopbackDnsServer implements Closeable {
+    static final int RCODE_SERVER_FAILURE = 2;
+
+    private final Handler handler;
+    private final DatagramSocket datagramSocket;
+    private final ServerSocket serverSocket;
+    private final List<Question> questions = Collections.synchronizedList(new ArrayList<>());
+
+    LoopbackDnsServer(final Handler handler) throws IOException {
+        this.handler = handler;
+
+        // the UDP port may already be taken for TCP, e.g. by a connection of another test, then try another one
+        final InetAddress loopback = InetAddress.getByAddress(new byte[]{127, 0, 0, 1});
+        int attempts = 0;
+        while (true) {
+            final DatagramSocket udp = new DatagramSocket(new InetSocketAddress(loopback, 0));
+            final ServerSocket tcp = new ServerSocket();
+            try {
+                tcp.bind(new InetSocketAddress(loopback, udp.getLocalPort()));
+            } catch (BindException e) {
+                udp.close();
+                tcp.close();
+                if (++attempts == 16) throw e;
+                continue;
+            }
+
+            datagramSocket = udp;
+            serverSocket = tcp;
+            break;
+        }
+
+        start("loopback dns udp", this::serveUdp);
+        start("loopback dns tcp", this::serveTcp);
+    }
+
+    InetSocketAddress getAddress() {
+        return (InetSocketAddress) datagramSocket.getLocalSocketAddress();
+    }
+
+    // every query received, in order
+    List<Question> getQuestions() {
+        synchronized (questions) {
+            return new ArrayList<>(questions);
+        }
+    }
+
+    int count(final String name, final int type) {
+        int count = 0;
+        for (Question question : getQuestions()) {
+            if (question.name.equals(name) && question.type == type) count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        datagramSocket.close();
+        serverSocket.close();
+    }
+
+    private void start(final String name, final Runnable runnable) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serveUdp() {
+        final byte[] buffer = new byte[4096];
+        while (!datagramSocket.isClosed()) {
+            try {
+                final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                datagramSocket.receive(packet);
+
+                final Question question = Question.parse(packet.getData(), packet.getLength(), packet.getPort(), false);
+                questions.add(question);
+                for (byte[] response : handler.respond(question)) {
+                    datagramSocket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serveTcp() {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                final DataInputStream in = new DataInputStream(socket.getInputStream());
+                final byte[] message = new byte[in.readUnsignedShort()];
+                in.readFully(message);
+
+                final Question question = Question.parse(message, message.length, socket.getPort(), true);
+                questions.add(question);
+                final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                for (byte[] response : handler.respond(question)) {
+                    out.writeShort(response.length);
+                    out.write(response);
+                }
+                out.flush();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    interface Handler {
+        // the messages to send back, none to drop the query
+        List<byte[]> respond(Question question) throws IOException;
+    }
+
+    static final class Question {
+        final int id;
+        final String name;
+        final int type;
+        final int sourcePort;
+        final boolean tcp;
+
+        private Question(final int id, final String name, final int type, final int sourcePort, final boolean tcp) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.sourcePort = sourcePort;
+            this.tcp = tcp;
+        }
+
+        private static Question parse(final byte[] message, final int length, final int sourcePort, final boolean tcp) {
+            final int id = ((message[0] & 0xff) << 8) | (message[1] & 0xff);
+            final StringBuilder name = new StringBuilder();
+            int position = 12;
+            int labelLength;
+            while ((labelLength = message[position] & 0xff) != 0) {
+                if (name.length() > 0) name.append('.');
+                name.append(new String(message, position + 1, labelLength, StandardCharsets.US_ASCII));
+                position += labelLength + 1;
+            }
+            position++;
+            if (position + 4 > length) throw new IllegalArgumentException("short query");
+            final int type = ((message[position] & 0xff) << 8) | (message[position + 1] & 0xff);
+            return new Question(id, name.toString(), type, sourcePort, tcp);
+        }
+
+        // a response echoing this question, with no answers yet
+        Response reply() {
+            return new Response(id, name, type);
+        }
+    }
+
+    static final class Response {
+        private final int id;
+        private String name;
+        private int type;
+        private int rcode;
+        private boolean truncated;
+        private final List<byte[]> answers = new ArrayList<>();
+
+        private Response(final int id, final String name, final int type) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+        }
+
+        // echo another question back, as a forged response would
+        Response question(final String name, final int type) {
+            this.name = name;
+            this.type = type;
+            return this;
+        }
+
+        Response rcode(final int rcode) {
+            this.rcode = rcode;
+            return this;
+        }
+
+        Response truncated() {
+            this.truncated = true;
+            return this;
+        }
+
+        Response address(final String owner, final String address) throws IOException {
+            final byte[] bytes = InetAddress.getByName(address).getAddress();
+            return answer(owner, bytes.length == 4 ? DnsCodec.TYPE_A : DnsCodec.TYPE_AAAA, 300, bytes);
+        }
+
+        Response cname(final String owner, final String target) throws IOException {
+            return answer(owner, DnsCodec.TYPE_CNAME, 300, encodeName(target));
+        }
+
+        Response answer(final String owner, final int type, final int ttl, final byte[] data) throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.write(encodeName(owner));
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeInt(ttl);
+            out.writeShort(data.length);
+            out.write(data);
+            answers.add(bytes.toByteArray());
+            return this;
+        }
+
+        List<byte[]> build() throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(id);
+            out.writeShort(0x8180 | (truncated ? 0x0200 : 0) | rcode);
+            out.writeShort(1);
+            out.writeShort(answers.size());
+            out.writeShort(0);
+            out.writeShort(0);
+            out.write(encodeName(name));
+            out.writeShort(type);
+            out.writeShort(1);
+            for (byte[] answer : answers) {
+                out.write(answer);
+            }
+            return Collections.singletonList(bytes.toByteArray());
+        }
+
+        private static byte[] encodeName(final String name) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (String label : name.split("\\.")) {
+                final byte[] labelBytes = label.getBytes(StandardCharsets.US_ASCII);
+                bytes.write(labelBytes.length);
+                bytes.write(labelBytes, 0, labelBytes.length);
+            }
+            bytes.write(0);
+            return bytes.toByteArray();
+        }
+    }
+}
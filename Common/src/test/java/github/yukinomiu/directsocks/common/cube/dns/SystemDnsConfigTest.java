@@ -0,0 +1,77 @@
+package github.yukinomiu.directsocks.common.cube.dns;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Yukinomiu
+ * 2017/8/3
+ */
+public class SystemDnsConfigTest {
+    @Test
+    public void parsesIPv4Literals() {
+        assertAddress(new int[]{1, 2, 3, 4}, "1.2.3.4");
+        assertAddress(new int[]{255, 255, 255, 255}, "255.255.255.255");
+        assertAddress(new int[]{0, 0, 0, 0}, "0.0.0.0");
+        assertAddress(new int[]{10, 2, 3, 4}, "010.2.3.4");
+    }
+
+    @Test
+    public void rejectsMalformedIPv4Literals() {
+        assertNull(SystemDnsConfig.literalAddress("1.2.3.999"));
+        assertNull(SystemDnsConfig.literalAddress("1.2.3"));
+        assertNull(SystemDnsConfig.literalAddress("1.2.3.4.5"));
+        assertNull(SystemDnsConfig.literalAddress("1.2..4"));
+        assertNull(SystemDnsConfig.literalAddress("1.2.3.4."));
+        assertNull(SystemDnsConfig.literalAddress("1.2.3.0004"));
+        assertNull(SystemDnsConfig.literalAddress("1.2.3.4 "));
+        assertNull(SystemDnsConfig.literalAddress("0x7f.0.0.1"));
+        assertNull(SystemDnsConfig.literalAddress("１.2.3.4"));
+        assertNull(SystemDnsConfig.literalAddress("example.com"));
+        assertNull(SystemDnsConfig.literalAddress(""));
+    }
+
+    @Test
+    public void parsesIPv6Literals() {
+        assertAddress(new int[16], "::");
+        assertAddress(new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1}, "::1");
+        assertAddress(new int[]{0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0}, "1::");
+        assertAddress(new int[]{0xfe, 0x80, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 2}, "FE80::1:2");
+        assertAddress(new int[]{0, 1, 0, 2, 0, 3, 0, 4, 0, 5, 0, 6, 0, 7, 0, 8}, "1:2:3:4:5:6:7:8");
+        assertAddress(new int[]{0, 1, 0, 2, 0, 3, 0, 4, 0, 5, 0, 6, 1, 2, 3, 4}, "1:2:3:4:5:6:1.2.3.4");
+        assertAddress(new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 2, 3, 4}, "::1.2.3.4");
+        // IPv4 mapped, taken as IPv4 like InetAddress does
+        assertAddress(new int[]{1, 2, 3, 4}, "::ffff:1.2.3.4");
+    }
+
+    @Test
+    public void rejectsMalformedIPv6Literals() {
+        assertNull(SystemDnsConfig.literalAddress(":::"));
+        assertNull(SystemDnsConfig.literalAddress("1:::2"));
+        assertNull(SystemDnsConfig.literalAddress("1::2::3"));
+        assertNull(SystemDnsConfig.literalAddress(":1"));
+        assertNull(SystemDnsConfig.literalAddress("1:2:"));
+        assertNull(SystemDnsConfig.literalAddress("12345::"));
+        assertNull(SystemDnsConfig.literalAddress("::g"));
+        assertNull(SystemDnsConfig.literalAddress("1:2:3:4:5:6:7:8:9"));
+        assertNull(SystemDnsConfig.literalAddress("1:2:3:4:5:6:7"));
+        assertNull(SystemDnsConfig.literalAddress("::1:2:3:4:5:6:7:8"));
+        assertNull(SystemDnsConfig.literalAddress("1:2:3:4:5:6:7:1.2.3.4"));
+        assertNull(SystemDnsConfig.literalAddress("::1.2.3.999"));
+        assertNull(SystemDnsConfig.literalAddress("fe80::1%eth0"));
+        assertNull(SystemDnsConfig.literalAddress("[::1]"));
+    }
+
+    private static void assertAddress(final int[] expected, final String host) {
+        final InetAddress address = SystemDnsConfig.literalAddress(host);
+        final byte[] bytes = new byte[expected.length];
+        for (int i = 0; i < expected.length; i++) {
+            bytes[i] = (byte) expected[i];
+        }
+        assertArrayEquals(host, bytes, address == null ? null : address.getAddress());
+    }
+}
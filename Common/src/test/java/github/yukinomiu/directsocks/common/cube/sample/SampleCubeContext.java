@@ -0,0 +1,118 @@
+package github.yukinomiu.directsocks.common.cube.sample;
+
+import github.yukinomiu.directsocks.common.cube.CubeContext;
+import github.yukinomiu.directsocks.common.cube.api.Cancellable;
+import github.yukinomiu.directsocks.common.cube.cachepool.ByteBufferCachePool;
+import github.yukinomiu.directsocks.common.cube.dns.ResolveCallback;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+// the connection of a transport outside the cube package, with no channel: what the handler writes is collected by flush
+final class SampleCubeContext extends CubeContext {
+    private boolean readInterest;
+    private boolean writeInterest;
+    private boolean channelClosed;
+
+    SampleCubeContext(final ByteBufferCachePool pool) {
+        super(pool, pool, pool, 4096, 1024, 0, 0, 0);
+        start();
+    }
+
+    // a read arriving: data in the read buffer and the handler may look at it
+    ByteBuffer receive(final byte[] data) {
+        finishRead();
+        final ByteBuffer readBuffer = getReadBuffer();
+        readBuffer.clear();
+        readBuffer.put(data);
+        readBuffer.flip();
+        markRead();
+        return readBuffer;
+    }
+
+    // what a write ready event does, the whole queue is taken as written
+    byte[] flush() {
+        final ByteBuffer[] buffers = new ByteBuffer[16];
+        final int count = takeWriteBuffers(buffers);
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            length += buffers[i].remaining();
+        }
+
+        final byte[] written = new byte[length];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            final int remaining = buffers[i].remaining();
+            buffers[i].get(written, position, remaining);
+            position += remaining;
+        }
+        takenWriteDone(buffers, count, length);
+        markWritten();
+        finishFlush();
+        return written;
+    }
+
+    boolean isReadInterested() {
+        return readInterest;
+    }
+
+    boolean isWriteInterested() {
+        return writeInterest;
+    }
+
+    boolean isChannelClosed() {
+        return channelClosed;
+    }
+
+    @Override
+    protected InetSocketAddress remoteSocketAddress() {
+        return null;
+    }
+
+    @Override
+    protected InetSocketAddress localSocketAddress() {
+        return null;
+    }
+
+    @Override
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    @Override
+    protected Cancellable schedule(final Runnable task, final long delayMillis) {
+        // no timeouts are configured
+        return () -> {
+        };
+    }
+
+    @Override
+    protected void interestRead(final boolean interested) {
+        readInterest = interested;
+    }
+
+    @Override
+    protected void interestWrite(final boolean interested) {
+        writeInterest = interested;
+    }
+
+    @Override
+    protected void resolveHost(final String host, final ResolveCallback callback) {
+        throw new UnsupportedOperationException("no resolver");
+    }
+
+    @Override
+    protected void closeChannel() {
+        channelClosed = true;
+    }
+
+    @Override
+    public CubeContext readyConnect(final SocketAddress remoteAddress) {
+        throw new UnsupportedOperationException("no connector");
+    }
+}
@@ -0,0 +1,66 @@
+package github.yukinomiu.directsocks.common.cube.sample;
+
+import github.yukinomiu.directsocks.common.cube.cachepool.SimpleByteBufferCachePool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+// the hooks and bookkeeping a transport outside the cube package builds its connections on
+public class SampleCubeContextTest {
+    private SimpleByteBufferCachePool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new SimpleByteBufferCachePool(4096, 16, false);
+        pool.start();
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void handlerWritesReachTheTransport() {
+        final SampleCubeContext cubeContext = new SampleCubeContext(pool);
+        cubeContext.readyRead();
+        assertTrue(cubeContext.isReadInterested());
+
+        // an echo handler
+        final ByteBuffer readBuffer = cubeContext.receive("ping".getBytes(StandardCharsets.US_ASCII));
+        assertFalse(cubeContext.isReadInterested());
+        cubeContext.readyWrite(readBuffer.remaining()).put(readBuffer);
+        cubeContext.readAfterWrite();
+        assertTrue(cubeContext.isWriteInterested());
+
+        assertArrayEquals("ping".getBytes(StandardCharsets.US_ASCII), cubeContext.flush());
+        assertFalse(cubeContext.isWriteInterested());
+        // read again once the queue is flushed
+        assertTrue(cubeContext.isReadInterested());
+        assertEquals(0, cubeContext.getQueuedBytes());
+    }
+
+    @Test
+    public void closeAfterWriteClosesOnceFlushed() {
+        final SampleCubeContext cubeContext = new SampleCubeContext(pool);
+        cubeContext.readyWrite().put((byte) 1);
+        cubeContext.closeAfterWrite();
+        assertFalse(cubeContext.isChannelClosed());
+
+        assertArrayEquals(new byte[]{1}, cubeContext.flush());
+        assertTrue(cubeContext.isClosed());
+        assertTrue(cubeContext.isChannelClosed());
+    }
+}
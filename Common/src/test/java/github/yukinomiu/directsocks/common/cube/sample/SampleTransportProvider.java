@@ -0,0 +1,65 @@
+package github.yukinomiu.directsocks.common.cube.sample;
+
+import github.yukinomiu.directsocks.common.cube.BufferPools;
+import github.yukinomiu.directsocks.common.cube.CubeConfig;
+import github.yukinomiu.directsocks.common.cube.Transports;
+import github.yukinomiu.directsocks.common.cube.api.NioHandle;
+import github.yukinomiu.directsocks.common.cube.api.Transport;
+import github.yukinomiu.directsocks.common.cube.api.TransportProvider;
+import github.yukinomiu.directsocks.common.cube.cachepool.ByteBufferCachePool;
+import github.yukinomiu.directsocks.common.cube.exception.CubeInitException;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Yukinomiu
+ * 2017/8/10
+ */
+// a provider from outside the cube package, registered in META-INF/services and selected with engine=sample
+// it runs the selector engine and counts what it is asked for
+public final class SampleTransportProvider implements TransportProvider {
+    private static final AtomicInteger created = new AtomicInteger();
+    private static final AtomicInteger started = new AtomicInteger();
+
+    @Override
+    public String getName() {
+        return "sample";
+    }
+
+    @Override
+    public Transport newTransport(final CubeConfig cubeConfig, final NioHandle nioHandle, final BufferPools bufferPools) throws CubeInitException {
+        final Transport transport = Transports.SELECTOR.newTransport(cubeConfig, nioHandle, bufferPools);
+        created.incrementAndGet();
+        return new Transport() {
+            @Override
+            public void start() {
+                started.incrementAndGet();
+                transport.start();
+            }
+
+            @Override
+            public int shutdown(final long drainTimeoutMillis) {
+                return transport.shutdown(drainTimeoutMillis);
+            }
+
+            @Override
+            public int getConnectionCount() {
+                return transport.getConnectionCount();
+            }
+
+            @Override
+            public List<ByteBufferCachePool> getBufferPools() {
+                return transport.getBufferPools();
+            }
+        };
+    }
+
+    public static int createdCount() {
+        return created.get();
+    }
+
+    public static int startedCount() {
+        return started.get();
+    }
+}
@@ -55,6 +55,21 @@ public final class Server implements LifeCycle {
         logger.debug("Server closed");
     }
 
+    // wait up to drainTimeoutMillis for established connections to finish, shutdown() does not wait
+    public void shutdown(final long drainTimeoutMillis) {
+        if (state != State.RUNNING) throw new ServerStateException();
+        state = State.STOPPING;
+
+        cube.shutdown(drainTimeoutMillis);
+
+        state = State.STOPPED;
+        logger.debug("Server closed");
+    }
+
+    public Cube getCube() {
+        return cube;
+    }
+
     private void checkConfig(final ServerConfig serverConfig) throws ServerInitException {
         if (serverConfig == null) throw new ServerInitException("config can not be null");
     }
@@ -95,11 +95,13 @@ public final class ServerNioHandle implements NioHandle {
         writeBuffer.put(address);
         writeBuffer.putShort(portShort);
         clientCubeContext.readAfterWrite();
+        cubeContext.readyRead(); // target may speak first
 
         // change state
         ServerContext clientServerContext = (ServerContext) clientCubeContext.attachment();
         ClientRoleContext clientRoleContext = (ClientRoleContext) clientServerContext.getCurrentChannelContext();
         clientRoleContext.setServerState(ServerState.DIRECT_SOCKS);
+        clientCubeContext.finishHandshake();
     }
 
     @Override
@@ -137,10 +139,15 @@ public final class ServerNioHandle implements NioHandle {
 
     private void handleTargetRead(final CubeContext cubeContext, final ServerContext serverContext) {
         final CubeContext clientCubeContext = serverContext.getAssociatedCubeContext();
-        final Crypto crypto = serverConfig.getCrypto();
+        final Crypto crypto = serverContext.getCrypto();
+
+        // nothing to transform, hand the read buffer over
+        if (crypto.isIdentity() && clientCubeContext.relayReadBuffer(cubeContext)) {
+            return;
+        }
 
         final ByteBuffer readBuffer = cubeContext.getReadBuffer();
-        final ByteBuffer writeBuffer = clientCubeContext.readyWrite();
+        final ByteBuffer writeBuffer = clientCubeContext.readyWrite(readBuffer.remaining() + crypto.getMaxPadding());
 
         // encrypt and exchange
         try {
@@ -152,8 +159,7 @@ public final class ServerNioHandle implements NioHandle {
             return;
         }
 
-        clientCubeContext.readAfterWrite();
-        clientCubeContext.setAfterWriteCallback(arg -> cubeContext.readyRead(), null);
+        clientCubeContext.relayWrite(cubeContext);
     }
 
     private void handleClientDirectSocksAuthRead(final CubeContext cubeContext,
@@ -270,16 +276,25 @@ public final class ServerNioHandle implements NioHandle {
             return;
         }
 
-        // connect target
-        String targetHost = null;
-        final InetAddress targetAddress; // resolve target address
+        // resolve target address
+        final int port = portShort & 0xffff;
+        final InetAddress targetAddress;
         try {
             if (addressType == DirectSocksAddressType.IPV4) {
                 targetAddress = InetAddress.getByAddress(address);
 
             } else if (addressType == DirectSocksAddressType.DOMAIN_NAME) {
-                targetHost = new String(address, StandardCharsets.US_ASCII);
-                targetAddress = InetAddress.getByName(targetHost);
+                final String targetHost = new String(address, StandardCharsets.US_ASCII);
+                cubeContext.resolve(targetHost, (addresses, dnsException) -> {
+                    if (dnsException != null) {
+                        logger.info("resolving host name fail: {}, {}", targetHost, dnsException.getMessage());
+                        replyAndClose(cubeContext, DirectSocksReply.HOST_UNREACHABLE);
+                        return;
+                    }
+
+                    connectTarget(cubeContext, serverContext, addresses[0], port);
+                });
+                return;
 
             } else if (addressType == DirectSocksAddressType.IPV6) {
                 targetAddress = InetAddress.getByAddress(address);
@@ -288,28 +303,28 @@ public final class ServerNioHandle implements NioHandle {
                 throw new ServerRuntimeException("target address type not supported");
             }
         } catch (UnknownHostException e) {
-            logger.info("resolving host name fail: {}", targetHost);
-
-            final ByteBuffer writeBuffer = cubeContext.readyWrite();
-            writeBuffer.put(DirectSocksVersion.VERSION_1);
-            writeBuffer.put(DirectSocksReply.HOST_UNREACHABLE);
-            cubeContext.closeAfterWrite();
+            logger.info("illegal target address: {}", e.getMessage());
+            replyAndClose(cubeContext, DirectSocksReply.HOST_UNREACHABLE);
             return;
         }
 
+        connectTarget(cubeContext, serverContext, targetAddress, port);
+    }
+
+    private void connectTarget(final CubeContext cubeContext,
+                               final ServerContext serverContext,
+                               final InetAddress targetAddress,
+                               final int port) {
+
         // connect target
-        SocketAddress targetSocketAddress = new InetSocketAddress(targetAddress, (int) portShort);
+        SocketAddress targetSocketAddress = new InetSocketAddress(targetAddress, port);
 
         CubeContext targetCubeContext;
         try {
             targetCubeContext = cubeContext.readyConnect(targetSocketAddress);
         } catch (CubeConnectionException e) {
             logger.info("connect to target exception: {}", e.getMessage());
-
-            final ByteBuffer writeBuffer = cubeContext.readyWrite();
-            writeBuffer.put(DirectSocksVersion.VERSION_1);
-            writeBuffer.put(DirectSocksReply.HOST_UNREACHABLE);
-            cubeContext.closeAfterWrite();
+            replyAndClose(cubeContext, DirectSocksReply.HOST_UNREACHABLE);
             return;
         }
 
@@ -319,6 +334,17 @@ public final class ServerNioHandle implements NioHandle {
         // associate
         serverContext.setAssociatedCubeContext(targetCubeContext);
         targetServerContext.setAssociatedCubeContext(cubeContext);
+
+        final Crypto crypto = serverConfig.getCrypto().newSession();
+        serverContext.setCrypto(crypto);
+        targetServerContext.setCrypto(crypto);
+    }
+
+    private void replyAndClose(final CubeContext cubeContext, final byte reply) {
+        final ByteBuffer writeBuffer = cubeContext.readyWrite();
+        writeBuffer.put(DirectSocksVersion.VERSION_1);
+        writeBuffer.put(reply);
+        cubeContext.closeAfterWrite();
     }
 
     private void handleClientDirectSocksRead(final CubeContext cubeContext,
@@ -326,16 +352,23 @@ public final class ServerNioHandle implements NioHandle {
                                              final ClientRoleContext clientRoleContext) {
 
         final CubeContext targetCubeContext = serverContext.getAssociatedCubeContext();
-        final Crypto crypto = serverConfig.getCrypto();
+        final Crypto crypto = serverContext.getCrypto();
+
+        // nothing to transform, hand the read buffer over
+        if (crypto.isIdentity() && targetCubeContext.relayReadBuffer(cubeContext)) {
+            return;
+        }
 
         final ByteBuffer readBuffer = cubeContext.getReadBuffer();
-        final ByteBuffer writeBuffer = targetCubeContext.readyWrite();
         final ByteBuffer frameBuffer = cubeContext.getFrameBuffer();
 
-        // decrypt and exchange
-        boolean process;
+        // decrypt and exchange, a read may carry more frames than one write buffer holds
+        boolean process = false;
         try {
-            process = crypto.decrypt(frameBuffer, readBuffer, writeBuffer);
+            do {
+                final ByteBuffer writeBuffer = targetCubeContext.readyWrite(frameBuffer.capacity());
+                process |= crypto.decrypt(frameBuffer, readBuffer, writeBuffer);
+            } while (readBuffer.hasRemaining());
         } catch (Exception e) {
             logger.warn("server decrypt exception: {}", e.getMessage());
             cubeContext.close();
@@ -344,8 +377,7 @@ public final class ServerNioHandle implements NioHandle {
         }
 
         if (process) {
-            targetCubeContext.readAfterWrite();
-            targetCubeContext.setAfterWriteCallback(arg -> cubeContext.readyRead(), null);
+            targetCubeContext.relayWrite(cubeContext);
         } else {
             targetCubeContext.cancelReadyWrite();
             cubeContext.readyRead();